@@ -0,0 +1,146 @@
+/* MediaUtil LLJTran - $RCSfile: ByteBufferInputStream.java,v $
+ * Copyright (C) 1999-2005 Dmitriy Rogatkin, Suresh Mahalingam.  All rights reserved.
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *  THIS SOFTWARE IS PROVIDED BY THE AUTHOR AND CONTRIBUTORS ``AS IS'' AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ *  IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ *  ARE DISCLAIMED. IN NO EVENT SHALL THE AUTHOR OR CONTRIBUTORS BE LIABLE FOR
+ *  ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *  $Id$
+ *
+ */
+package android.mediautil.generic;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * An InputStream reading from a ByteBuffer. The stream works on a duplicate
+ * of the buffer passed so that the position of the original buffer is not
+ * affected. Skipping is a seek within the buffer and mark/reset is supported
+ * for any read limit.
+ * <p>
+ * 
+ * Readers which can work on a ByteBuffer directly can get it using
+ * {@link #getBuffer()} and avoid copying the bytes through the stream.
+ */
+public class ByteBufferInputStream extends InputStream {
+	private ByteBuffer buffer;
+	private int markPos;
+
+	/**
+	 * Constructor.
+	 * 
+	 * @param buffer
+	 *            Buffer to read from. Reading starts at the buffer's current
+	 *            position and ends at its limit.
+	 */
+	public ByteBufferInputStream(ByteBuffer buffer) {
+		this.buffer = buffer.duplicate();
+		markPos = this.buffer.position();
+	}
+
+	/**
+	 * Maps a file read only into memory.
+	 * 
+	 * @param file
+	 *            File to map
+	 * @return Buffer with the contents of the file. The mapping remains valid
+	 *         after the file is closed.
+	 */
+	public static ByteBuffer map(File file) throws IOException {
+		FileInputStream fis = new FileInputStream(file);
+		try {
+			FileChannel channel = fis.getChannel();
+			return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel
+					.size());
+		} finally {
+			fis.close();
+		}
+	}
+
+	/**
+	 * Returns the buffer the stream reads from. The position of the buffer
+	 * is the current position of the stream and changing it changes the
+	 * position of the stream.
+	 */
+	public ByteBuffer getBuffer() {
+		return buffer;
+	}
+
+	/**
+	 * Returns the current position of the stream in the buffer.
+	 */
+	public int getPosition() {
+		return buffer.position();
+	}
+
+	/**
+	 * Sets the current position of the stream in the buffer.
+	 * 
+	 * @param position
+	 *            New position which must not be larger than the limit of the
+	 *            buffer
+	 */
+	public void setPosition(int position) {
+		buffer.position(position);
+	}
+
+	public int read() {
+		return buffer.hasRemaining() ? buffer.get() & 255 : -1;
+	}
+
+	public int read(byte[] b, int off, int len) {
+		if (len == 0)
+			return 0;
+		int remaining = buffer.remaining();
+		if (remaining == 0)
+			return -1;
+		if (len > remaining)
+			len = remaining;
+		buffer.get(b, off, len);
+		return len;
+	}
+
+	public long skip(long n) {
+		if (n <= 0)
+			return 0;
+		int remaining = buffer.remaining();
+		if (n > remaining)
+			n = remaining;
+		buffer.position(buffer.position() + (int) n);
+		return n;
+	}
+
+	public int available() {
+		return buffer.remaining();
+	}
+
+	public boolean markSupported() {
+		return true;
+	}
+
+	public void mark(int readlimit) {
+		markPos = buffer.position();
+	}
+
+	public void reset() {
+		buffer.position(markPos);
+	}
+}
@@ -0,0 +1,171 @@
+/* MediaUtil LLJTran - $RCSfile: InStreamFromIterativeWriter.java,v $
+ * Copyright (C) 1999-2005 Dmitriy Rogatkin, Suresh Mahalingam.  All rights reserved.
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *  THIS SOFTWARE IS PROVIDED BY THE AUTHOR AND CONTRIBUTORS ``AS IS'' AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ *  IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ *  ARE DISCLAIMED. IN NO EVENT SHALL THE AUTHOR OR CONTRIBUTORS BE LIABLE FOR
+ *  ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *  $Id$
+ *
+ */
+package android.mediautil.generic.directio;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * An InputStream which reads what an IterativeWriter writes. The
+ * IterativeWriter writes to the OutputStream returned by
+ * {@link #getOutputStream()} and its nextWrite is called whenever the
+ * InputStream runs out of bytes. The bytes written are held in a ring buffer
+ * which grows only if the IterativeWriter writes more than it is asked to.
+ * This way the transformed image can be pulled from an LLJTran Object without
+ * writing it out first:
+ * 
+ * <pre>
+ * InStreamFromIterativeWriter is = new InStreamFromIterativeWriter();
+ * IterativeWriter writer = llj.initWrite(is.getOutputStream(), LLJTran.ROT_90,
+ * 		LLJTran.OPT_WRITE_ALL, null, 0);
+ * is.setIterativeWriter(writer);
+ * upload(is);
+ * is.close();
+ * </pre>
+ */
+public class InStreamFromIterativeWriter extends InputStream implements
+		ByteCounter {
+	/** Default size of the buffer */
+	public static final int DEFAULT_BUF_SIZE = 64 * 1024;
+
+	private RingBuffer ring;
+	private int bufSize;
+	private IterativeWriter writer;
+	private WriterStream outStream = new WriterStream();
+	private boolean done;
+	private long readCount;
+
+	/**
+	 * Constructor using a buffer of DEFAULT_BUF_SIZE bytes.
+	 */
+	public InStreamFromIterativeWriter() {
+		this(DEFAULT_BUF_SIZE);
+	}
+
+	/**
+	 * Constructor.
+	 * 
+	 * @param bufSize
+	 *            Size of the buffer. The IterativeWriter is asked to write
+	 *            upto half of it at a time.
+	 */
+	public InStreamFromIterativeWriter(int bufSize) {
+		if (bufSize < 2)
+			throw new IllegalArgumentException("Invalid bufSize: " + bufSize);
+		this.bufSize = bufSize;
+		ring = new RingBuffer(bufSize);
+	}
+
+	/**
+	 * Gets the OutputStream to which the IterativeWriter writes.
+	 * 
+	 * @return OutputStream which implements {@link ByteCounter}
+	 */
+	public OutputStream getOutputStream() {
+		return outStream;
+	}
+
+	/**
+	 * Sets the IterativeWriter which writes what is read.
+	 * 
+	 * @param writer
+	 *            IterativeWriter writing to getOutputStream()
+	 */
+	public void setIterativeWriter(IterativeWriter writer) {
+		this.writer = writer;
+	}
+
+	// Makes the writer write till there is something to read. Returns false
+	// if it is done.
+	private boolean fill() throws IOException {
+		while (ring.count() == 0) {
+			if (done)
+				return false;
+			if (writer == null)
+				throw new IOException("IterativeWriter not set");
+			if (writer.nextWrite(bufSize / 2) == IterativeReader.STOP)
+				done = true;
+		}
+		return true;
+	}
+
+	public int read() throws IOException {
+		byte b[] = new byte[1];
+		return read(b, 0, 1) == 1 ? b[0] & 255 : -1;
+	}
+
+	public int read(byte[] b, int off, int len) throws IOException {
+		if (len <= 0)
+			return 0;
+		if (!fill())
+			return -1;
+		int n = ring.read(b, off, len);
+		readCount += n;
+		return n;
+	}
+
+	public long skip(long n) throws IOException {
+		if (n <= 0 || !fill())
+			return 0;
+		if (n > ring.count())
+			n = ring.count();
+		ring.skip((int) n);
+		readCount += n;
+		return n;
+	}
+
+	public int available() {
+		return ring.count();
+	}
+
+	/**
+	 * Closes the stream. The IterativeWriter is not called after this.
+	 */
+	public void close() {
+		done = true;
+		ring.clear();
+	}
+
+	public long getByteCount() {
+		return readCount;
+	}
+
+	private class WriterStream extends OutputStream implements ByteCounter {
+		private long writeCount;
+
+		public void write(int b) {
+			write(new byte[] { (byte) b }, 0, 1);
+		}
+
+		public void write(byte[] b, int off, int len) {
+			ring.write(b, off, len);
+			writeCount += len;
+		}
+
+		public long getByteCount() {
+			return writeCount;
+		}
+	}
+}
@@ -0,0 +1,216 @@
+/* MediaUtil LLJTran - $RCSfile: OutStreamToIterativeReader.java,v $
+ * Copyright (C) 1999-2005 Dmitriy Rogatkin, Suresh Mahalingam.  All rights reserved.
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *  THIS SOFTWARE IS PROVIDED BY THE AUTHOR AND CONTRIBUTORS ``AS IS'' AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ *  IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ *  ARE DISCLAIMED. IN NO EVENT SHALL THE AUTHOR OR CONTRIBUTORS BE LIABLE FOR
+ *  ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *  $Id$
+ *
+ */
+package android.mediautil.generic.directio;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * An OutputStream whose output is read by an IterativeReader as it is being
+ * written. The IterativeReader reads from the InputStream returned by
+ * {@link #getInputStream()}. The bytes written are held in a ring buffer of
+ * bufSize bytes and the IterativeReader's nextRead is called whenever the
+ * buffer is full. This way an image being produced can be read into an
+ * LLJTran Object without saving it in between:
+ * 
+ * <pre>
+ * OutStreamToIterativeReader os = new OutStreamToIterativeReader();
+ * LLJTran llj = new LLJTran(os.getInputStream());
+ * llj.initRead(LLJTran.READ_ALL, true, true);
+ * os.setIterativeReader(llj);
+ * bitmap.compress(Bitmap.CompressFormat.JPEG, 90, os);
+ * os.close();
+ * </pre>
+ * 
+ * The IterativeReader is asked to read half of the bytes in the buffer so
+ * that it can read somewhat more than requested. If it reads beyond what is
+ * in the buffer before the stream is closed, it gets an IOException.
+ * Once the IterativeReader returns STOP the rest of the output is discarded.
+ */
+public class OutStreamToIterativeReader extends OutputStream {
+	/** Default size of the buffer */
+	public static final int DEFAULT_BUF_SIZE = 64 * 1024;
+
+	private RingBuffer ring;
+	private IterativeReader reader;
+	private ReaderStream inStream = new ReaderStream();
+	private boolean closed, stopped;
+	private long byteCount;
+
+	/**
+	 * Constructor using a buffer of DEFAULT_BUF_SIZE bytes.
+	 */
+	public OutStreamToIterativeReader() {
+		this(DEFAULT_BUF_SIZE);
+	}
+
+	/**
+	 * Constructor.
+	 * 
+	 * @param bufSize
+	 *            Size of the buffer holding the bytes written till they are
+	 *            read
+	 */
+	public OutStreamToIterativeReader(int bufSize) {
+		if (bufSize < 2)
+			throw new IllegalArgumentException("Invalid bufSize: " + bufSize);
+		ring = new RingBuffer(bufSize);
+	}
+
+	/**
+	 * Gets the InputStream from which the IterativeReader reads.
+	 * 
+	 * @return InputStream which implements {@link ByteCounter}
+	 */
+	public InputStream getInputStream() {
+		return inStream;
+	}
+
+	/**
+	 * Sets the IterativeReader which reads what is written.
+	 * 
+	 * @param reader
+	 *            IterativeReader reading from getInputStream()
+	 */
+	public void setIterativeReader(IterativeReader reader) {
+		this.reader = reader;
+	}
+
+	// Makes the reader read from the buffer
+	private void drive(int numBytes) throws IOException {
+		if (reader == null)
+			throw new IOException("IterativeReader not set");
+		int prevCount = ring.count();
+		for (int idleCalls = 0; idleCalls < SplitInputStream.MAX_IDLE_CALLS;
+				idleCalls++) {
+			if (reader.nextRead(numBytes) == IterativeReader.STOP) {
+				stopped = true;
+				ring.clear();
+				return;
+			}
+			if (ring.count() < prevCount)
+				return;
+		}
+		if (!closed)
+			throw new IOException("IterativeReader is not reading");
+		// Nothing more will be read
+		stopped = true;
+		ring.clear();
+	}
+
+	public void write(int b) throws IOException {
+		write(new byte[] { (byte) b }, 0, 1);
+	}
+
+	public void write(byte[] b, int off, int len) throws IOException {
+		if (closed)
+			throw new IOException("Stream closed");
+		while (len > 0 && !stopped) {
+			int n = Math.min(len, ring.free());
+			ring.write(b, off, n);
+			byteCount += n;
+			off += n;
+			len -= n;
+			if (ring.free() == 0)
+				drive(ring.count() / 2);
+		}
+	}
+
+	/**
+	 * Lets the IterativeReader read if at least half of the buffer is filled.
+	 * With less the reader would not have enough to read ahead.
+	 */
+	public void flush() throws IOException {
+		if (!stopped && !closed && ring.count() >= ring.capacity() / 2)
+			drive(ring.count() / 2);
+	}
+
+	/**
+	 * Marks the end of the output and lets the IterativeReader read the rest
+	 * of it till it returns STOP or stops reading.
+	 */
+	public void close() throws IOException {
+		if (closed)
+			return;
+		closed = true;
+		if (reader == null)
+			return;
+		while (!stopped)
+			drive(Integer.MAX_VALUE);
+	}
+
+	/**
+	 * Gets the number of bytes written.
+	 * 
+	 * @return Number of bytes written so far
+	 */
+	public long getByteCount() {
+		return byteCount;
+	}
+
+	private class ReaderStream extends InputStream implements ByteCounter {
+		private long readCount;
+
+		public int read() throws IOException {
+			byte b[] = new byte[1];
+			return read(b, 0, 1) == 1 ? b[0] & 255 : -1;
+		}
+
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (len <= 0)
+				return 0;
+			if (ring.count() == 0) {
+				if (closed)
+					return -1;
+				throw new IOException("Empty Buffer, IterativeReader read "
+						+ "ahead of what was written");
+			}
+			int n = ring.read(b, off, len);
+			readCount += n;
+			return n;
+		}
+
+		public long skip(long n) throws IOException {
+			if (n <= 0)
+				return 0;
+			if (ring.count() == 0 && !closed)
+				throw new IOException("Empty Buffer, IterativeReader read "
+						+ "ahead of what was written");
+			if (n > ring.count())
+				n = ring.count();
+			ring.skip((int) n);
+			readCount += n;
+			return n;
+		}
+
+		public int available() {
+			return ring.count();
+		}
+
+		public long getByteCount() {
+			return readCount;
+		}
+	}
+}
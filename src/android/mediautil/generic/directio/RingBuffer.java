@@ -0,0 +1,128 @@
+/* MediaUtil LLJTran - $RCSfile: RingBuffer.java,v $
+ * Copyright (C) 1999-2005 Dmitriy Rogatkin, Suresh Mahalingam.  All rights reserved.
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *  THIS SOFTWARE IS PROVIDED BY THE AUTHOR AND CONTRIBUTORS ``AS IS'' AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ *  IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ *  ARE DISCLAIMED. IN NO EVENT SHALL THE AUTHOR OR CONTRIBUTORS BE LIABLE FOR
+ *  ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *  $Id$
+ *
+ */
+package android.mediautil.generic.directio;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Circular byte buffer used by the directio classes. Bytes are added at the
+ * tail and removed from the head. The buffer grows only when more bytes are
+ * added than it has room for.
+ */
+class RingBuffer {
+	private byte[] buf;
+	// Index in buf of the first byte
+	private int head;
+	private int count;
+
+	RingBuffer(int capacity) {
+		buf = new byte[capacity];
+	}
+
+	int count() {
+		return count;
+	}
+
+	int capacity() {
+		return buf.length;
+	}
+
+	int free() {
+		return buf.length - count;
+	}
+
+	void clear() {
+		head = count = 0;
+	}
+
+	/**
+	 * Makes sure that there is room for n more bytes, growing the buffer if
+	 * required.
+	 */
+	void ensureFree(int n) {
+		if (n > free()) {
+			int newLen = buf.length * 2;
+			if (newLen < count + n)
+				newLen = count + n;
+			byte newBuf[] = new byte[newLen];
+			copyOut(0, newBuf, 0, count);
+			buf = newBuf;
+			head = 0;
+		}
+	}
+
+	/** Adds len bytes at the tail growing the buffer if required. */
+	void write(byte[] b, int off, int len) {
+		ensureFree(len);
+		int tail = (head + count) % buf.length;
+		int n = Math.min(len, buf.length - tail);
+		System.arraycopy(b, off, buf, tail, n);
+		System.arraycopy(b, off + n, buf, 0, len - n);
+		count += len;
+	}
+
+	/**
+	 * Reads from is into the free space at the tail without growing the
+	 * buffer. Returns the result of is.read.
+	 */
+	int readFrom(InputStream is, int len) throws IOException {
+		int tail = (head + count) % buf.length;
+		int end = tail < head ? head : buf.length;
+		if (len > end - tail)
+			len = end - tail;
+		int n = is.read(buf, tail, len);
+		if (n > 0)
+			count += n;
+		return n;
+	}
+
+	/**
+	 * Copies len bytes starting pos bytes after the head to b without
+	 * removing them.
+	 */
+	void copyOut(int pos, byte[] b, int off, int len) {
+		int start = (head + pos) % buf.length;
+		int n = Math.min(len, buf.length - start);
+		System.arraycopy(buf, start, b, off, n);
+		System.arraycopy(buf, 0, b, off + n, len - n);
+	}
+
+	/** Removes upto len bytes from the head into b. */
+	int read(byte[] b, int off, int len) {
+		if (len > count)
+			len = count;
+		copyOut(0, b, off, len);
+		skip(len);
+		return len;
+	}
+
+	/** Removes n bytes from the head. */
+	void skip(int n) {
+		head = (head + n) % buf.length;
+		count -= n;
+		if (count == 0)
+			head = 0;
+	}
+}
@@ -0,0 +1,306 @@
+/* MediaUtil LLJTran - $RCSfile: SplitInputStream.java,v $
+ * Copyright (C) 1999-2005 Dmitriy Rogatkin, Suresh Mahalingam.  All rights reserved.
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *  THIS SOFTWARE IS PROVIDED BY THE AUTHOR AND CONTRIBUTORS ``AS IS'' AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ *  IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ *  ARE DISCLAIMED. IN NO EVENT SHALL THE AUTHOR OR CONTRIBUTORS BE LIABLE FOR
+ *  ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *  $Id$
+ *
+ */
+package android.mediautil.generic.directio;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Splits an InputStream so that one or more IterativeReaders can read it
+ * while it is being read. The SplitInputStream itself is read like any other
+ * InputStream by the main reader. Each SubStream added using
+ * {@link #addSubStream(int)} sees the same bytes as the main reader and is
+ * read by an IterativeReader attached to it using
+ * {@link #attachSubReader(IterativeReader, InputStream)}. As the main reader
+ * reads ahead the IterativeReader's nextRead is called to keep up with it.
+ * <p>
+ * 
+ * The bytes read from the underlying stream are kept in a ring buffer till
+ * all readers have read them. The main reader can be upto bufSize bytes ahead
+ * of a SubStream before its IterativeReader is made to read. A SubStream
+ * reading ahead of the main reader reads directly from the underlying stream
+ * and the buffer grows to hold those bytes for the main reader. A read on a
+ * SubStream returns all the bytes asked for unless the end of input is
+ * reached, since readers like LLJTran take a short read of a marker to be
+ * the end of input.
+ * <p>
+ * 
+ * Here is an example which copies an image to storage while reading it into
+ * an LLJTran Object:
+ * 
+ * <pre>
+ * SplitInputStream sis = new SplitInputStream(uploadStream);
+ * InputStream subIs = sis.addSubStream(8192);
+ * LLJTran llj = new LLJTran(subIs);
+ * llj.initRead(LLJTran.READ_ALL, true, false);
+ * sis.attachSubReader(llj, subIs);
+ * int len;
+ * while ((len = sis.read(buf)) &gt; 0)
+ * 	storage.write(buf, 0, len);
+ * sis.close();
+ * </pre>
+ * 
+ * An IOException thrown by a SubStream's IterativeReader is passed on to
+ * the main reader. The IterativeReader is not called after that. Readers like
+ * LLJTran which can store the error and return STOP allow the main reader to
+ * continue unhindered.
+ */
+public class SplitInputStream extends InputStream {
+	// Bytes read from the underlying stream at a time
+	private static final int CHUNK_SIZE = 8192;
+	// Number of nextRead calls in a row without reading after which the
+	// reader is taken to be not reading
+	static final int MAX_IDLE_CALLS = 8;
+
+	private InputStream is;
+	// Bytes from base till top of the input are in ring
+	private RingBuffer ring;
+	private long base, top;
+	private long mainPos;
+	private boolean eof, closed;
+	private SubStream subStreams[] = new SubStream[0];
+
+	/**
+	 * Constructor.
+	 * 
+	 * @param is
+	 *            Underlying InputStream to split
+	 */
+	public SplitInputStream(InputStream is) {
+		this.is = is;
+		ring = new RingBuffer(CHUNK_SIZE * 2);
+	}
+
+	/**
+	 * Adds a SubStream. The SubStream starts at the current position of the
+	 * main reader.
+	 * 
+	 * @param bufSize
+	 *            Number of bytes by which the main reader can be ahead of the
+	 *            SubStream before the IterativeReader attached to it is made
+	 *            to read.
+	 * @return The SubStream. This implements {@link ByteCounter}
+	 */
+	public InputStream addSubStream(int bufSize) {
+		if (bufSize < 1)
+			throw new IllegalArgumentException("Invalid bufSize: " + bufSize);
+		SubStream subStream = new SubStream(bufSize);
+		subStream.pos = mainPos;
+		SubStream newSubStreams[] = new SubStream[subStreams.length + 1];
+		System.arraycopy(subStreams, 0, newSubStreams, 0, subStreams.length);
+		newSubStreams[subStreams.length] = subStream;
+		subStreams = newSubStreams;
+		ring.ensureFree(bufSize);
+		return subStream;
+	}
+
+	/**
+	 * Attaches the IterativeReader reading a SubStream. A SubStream without
+	 * an IterativeReader does not hold up the buffer.
+	 * 
+	 * @param reader
+	 *            IterativeReader which reads subStream
+	 * @param subStream
+	 *            SubStream returned by addSubStream
+	 */
+	public void attachSubReader(IterativeReader reader, InputStream subStream) {
+		for (int i = 0; i < subStreams.length; i++)
+			if (subStreams[i] == subStream) {
+				subStreams[i].reader = reader;
+				subStreams[i].active = true;
+				return;
+			}
+		throw new IllegalArgumentException(
+				"subStream was not added to this SplitInputStream");
+	}
+
+	// Reads the next chunk of the underlying stream into ring. Returns false
+	// at the end of input.
+	private boolean fill() throws IOException {
+		if (eof)
+			return false;
+		release();
+		ring.ensureFree(CHUNK_SIZE);
+		int n;
+		do
+			n = ring.readFrom(is, CHUNK_SIZE);
+		while (n == 0);
+		if (n < 0) {
+			eof = true;
+			return false;
+		}
+		top += n;
+		return true;
+	}
+
+	// Reads bytes at pos of the input which is not beyond top. If full is set
+	// the underlying stream is read till len bytes are available or its end
+	// is reached.
+	private int readAt(long pos, byte[] b, int off, int len, boolean full)
+			throws IOException {
+		if (pos < base)
+			throw new IOException(
+					"SubStream without an IterativeReader fell behind");
+		if (len <= 0)
+			return 0;
+		if (pos == top && !fill())
+			return -1;
+		while (full && top - pos < len && fill())
+			;
+		if (pos < base)
+			throw new IOException(
+					"SubStream without an IterativeReader fell behind");
+		if (len > top - pos)
+			len = (int) (top - pos);
+		ring.copyOut((int) (pos - base), b, off, len);
+		return len;
+	}
+
+	// Removes bytes read by all the readers from the buffer
+	private void release() {
+		long newBase = closed ? top : mainPos;
+		for (int i = 0; i < subStreams.length; i++)
+			if (subStreams[i].active && subStreams[i].pos < newBase)
+				newBase = subStreams[i].pos;
+		ring.skip((int) (newBase - base));
+		base = newBase;
+	}
+
+	// Makes the IterativeReaders keep up with the main reader. If finish is
+	// set they are made to read till they return STOP or stop reading at the
+	// end of input.
+	private void driveSubReaders(boolean finish) throws IOException {
+		for (int i = 0; i < subStreams.length; i++) {
+			SubStream subStream = subStreams[i];
+			int idleCalls = 0;
+			while (subStream.active
+					&& (finish || mainPos - subStream.pos >= subStream.bufSize)) {
+				long prevPos = subStream.pos;
+				int numBytes = finish ? Integer.MAX_VALUE
+						: (int) (mainPos - prevPos);
+				int status;
+				try {
+					status = subStream.reader.nextRead(numBytes);
+				} catch (IOException e) {
+					subStream.active = false;
+					throw e;
+				}
+				if (status == IterativeReader.STOP)
+					subStream.active = false;
+				else if (subStream.pos != prevPos)
+					idleCalls = 0;
+				else if (++idleCalls == MAX_IDLE_CALLS) {
+					// Reader is not reading. Let the buffer grow unless
+					// there is nothing more to read.
+					if (finish)
+						subStream.active = false;
+					break;
+				}
+			}
+		}
+		release();
+	}
+
+	public int read() throws IOException {
+		byte b[] = new byte[1];
+		return read(b, 0, 1) == 1 ? b[0] & 255 : -1;
+	}
+
+	public int read(byte[] b, int off, int len) throws IOException {
+		int n = readAt(mainPos, b, off, len, false);
+		if (n > 0) {
+			mainPos += n;
+			driveSubReaders(false);
+		} else if (n < 0)
+			driveSubReaders(true);
+		return n;
+	}
+
+	public long skip(long n) throws IOException {
+		if (n <= 0 || mainPos == top && !fill())
+			return 0;
+		if (n > top - mainPos)
+			n = top - mainPos;
+		mainPos += n;
+		driveSubReaders(false);
+		return n;
+	}
+
+	public int available() throws IOException {
+		return (int) (top - mainPos) + (eof ? 0 : is.available());
+	}
+
+	/**
+	 * Lets the IterativeReaders read the rest of the input and closes the
+	 * underlying stream.
+	 */
+	public void close() throws IOException {
+		closed = true;
+		try {
+			driveSubReaders(true);
+		} finally {
+			is.close();
+		}
+	}
+
+	private class SubStream extends InputStream implements ByteCounter {
+		int bufSize;
+		long pos;
+		IterativeReader reader;
+		boolean active;
+
+		SubStream(int bufSize) {
+			this.bufSize = bufSize;
+		}
+
+		public int read() throws IOException {
+			byte b[] = new byte[1];
+			return read(b, 0, 1) == 1 ? b[0] & 255 : -1;
+		}
+
+		public int read(byte[] b, int off, int len) throws IOException {
+			int n = readAt(pos, b, off, len, true);
+			if (n > 0)
+				pos += n;
+			return n;
+		}
+
+		public long skip(long n) throws IOException {
+			if (n <= 0 || pos == top && !fill())
+				return 0;
+			if (n > top - pos)
+				n = top - pos;
+			pos += n;
+			return n;
+		}
+
+		public int available() throws IOException {
+			return (int) (top - pos) + (eof ? 0 : is.available());
+		}
+
+		public long getByteCount() {
+			return pos;
+		}
+	}
+}
@@ -0,0 +1,272 @@
+/* MediaUtil LLJTran - $RCSfile: AsyncLLJTran.java,v $
+ * Copyright (C) 1999-2005 Dmitriy Rogatkin, Suresh Mahalingam.  All rights reserved.
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *  THIS SOFTWARE IS PROVIDED BY THE AUTHOR AND CONTRIBUTORS ``AS IS'' AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ *  IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ *  ARE DISCLAIMED. IN NO EVENT SHALL THE AUTHOR OR CONTRIBUTORS BE LIABLE FOR
+ *  ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *	$Id$
+ *
+ */
+package android.mediautil.image.jpeg;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+import android.graphics.Rect;
+import android.mediautil.generic.directio.IterativeReader;
+import android.mediautil.generic.directio.IterativeWriter;
+import android.mediautil.generic.directio.OutStreamToIterativeReader;
+
+/**
+ * Non blocking front end for LLJTran. The image is fed in chunks as it
+ * arrives, say from a non blocking socket, and the output is produced in
+ * chunks passed to a {@link ChunkListener}. No call blocks on io, so one
+ * thread can run any number of AsyncLLJTran Objects side by side.
+ * <p>
+ * 
+ * The chunks fed are buffered and the LLJTran's nextRead is called only on
+ * what has been fed once at least half of the buffer is filled, which leaves
+ * enough for LLJTran to read ahead of what it is asked to read. Once all the
+ * input is fed the image is written out in steps of writeNext which can be
+ * called as and when the output can take more bytes:
+ * 
+ * <pre>
+ * AsyncLLJTran async = new AsyncLLJTran(LLJTran.READ_ALL, true);
+ * // As data arrives
+ * async.feed(chunk);
+ * // At end of input
+ * async.endOfInput();
+ * async.startWrite(LLJTran.ROT_90, LLJTran.OPT_WRITE_ALL, null, 0, listener);
+ * // When the output is ready for more
+ * while (async.writeNext(8192)) ...
+ * </pre>
+ * 
+ * @see OutStreamToIterativeReader
+ */
+public class AsyncLLJTran {
+	/**
+	 * Receives the output of an AsyncLLJTran.
+	 */
+	public interface ChunkListener {
+		/**
+		 * Called with the next chunk of output.
+		 * 
+		 * @param chunk
+		 *            Bytes from position to limit are the output. The chunk
+		 *            is reused after the call returns so its contents must be
+		 *            consumed or copied during the call.
+		 */
+		public void onChunk(ByteBuffer chunk) throws IOException;
+	}
+
+	/**
+	 * Minimum size of the input buffer. LLJTran reads marker segments other
+	 * than the appxs, such as comments, whole and these can be upto 65537
+	 * bytes with the marker. nextRead is called once half of the buffer is
+	 * filled and asked to read half of that, so a segment may start a quarter
+	 * of the way into the buffer and must fit in the rest of the half.
+	 */
+	public static final int MIN_BUF_SIZE = 4 * (2 + 0xffff);
+
+	private LLJTran llj;
+	private OutStreamToIterativeReader input;
+	private IterativeWriter writer;
+	private ChunkOutputStream output;
+	private ChunkListener listener;
+	private boolean readDone, writeDone;
+
+	/**
+	 * Constructor using a buffer of MIN_BUF_SIZE bytes.
+	 * 
+	 * @param readUpto
+	 *            Read upto what as for LLJTran.initRead
+	 * @param keep_appxs
+	 *            Whether to retain the Image Header Information as for
+	 *            LLJTran.initRead
+	 * @exception LLJTranException
+	 *                If there is an error in the readUpto parameter
+	 */
+	public AsyncLLJTran(int readUpto, boolean keep_appxs)
+			throws LLJTranException {
+		this(readUpto, keep_appxs, MIN_BUF_SIZE);
+	}
+
+	/**
+	 * Constructor.
+	 * 
+	 * @param readUpto
+	 *            Read upto what as for LLJTran.initRead
+	 * @param keep_appxs
+	 *            Whether to retain the Image Header Information as for
+	 *            LLJTran.initRead
+	 * @param bufSize
+	 *            Size of the buffer holding the input fed till it is read.
+	 *            Should be at least MIN_BUF_SIZE.
+	 * @exception LLJTranException
+	 *                If there is an error in the readUpto parameter
+	 * @exception IllegalArgumentException
+	 *                If bufSize is less than MIN_BUF_SIZE
+	 */
+	public AsyncLLJTran(int readUpto, boolean keep_appxs, int bufSize)
+			throws LLJTranException {
+		if (bufSize < MIN_BUF_SIZE)
+			throw new IllegalArgumentException("bufSize " + bufSize
+					+ " is less than MIN_BUF_SIZE " + MIN_BUF_SIZE);
+		input = new OutStreamToIterativeReader(bufSize);
+		llj = new LLJTran(input.getInputStream());
+		llj.initRead(readUpto, keep_appxs, true);
+		input.setIterativeReader(new IterativeReader() {
+			public int nextRead(int numBytes) throws IOException {
+				int status = llj.nextRead(numBytes);
+				if (status == STOP)
+					readDone = true;
+				return status;
+			}
+		});
+	}
+
+	/**
+	 * Gets the LLJTran Object reading the image. This can be used to get the
+	 * image info once the input is read or to change the LLJTran options
+	 * before the write.
+	 * 
+	 * @return The LLJTran Object
+	 */
+	public LLJTran getLLJTran() {
+		return llj;
+	}
+
+	/**
+	 * Feeds the next chunk of input. Reading continues as far as the input
+	 * fed so far allows.
+	 * 
+	 * @param chunk
+	 *            Input from position to limit. The position is moved to the
+	 *            limit.
+	 * @exception IOException
+	 *                In case of an error reading the image
+	 */
+	public void feed(ByteBuffer chunk) throws IOException {
+		int len = chunk.remaining();
+		if (chunk.hasArray())
+			input.write(chunk.array(), chunk.arrayOffset() + chunk.position(),
+					len);
+		else {
+			byte buf[] = new byte[Math.min(len, 8192)];
+			for (int n; (n = Math.min(chunk.remaining(), buf.length)) > 0;) {
+				chunk.get(buf, 0, n);
+				input.write(buf, 0, n);
+			}
+		}
+		chunk.position(chunk.limit());
+		input.flush();
+	}
+
+	/**
+	 * Marks the end of input and completes reading the image.
+	 * 
+	 * @exception IOException
+	 *                In case of an error reading the image
+	 */
+	public void endOfInput() throws IOException {
+		input.close();
+		if (!readDone)
+			throw new IOException("Unexpected End Of Input");
+	}
+
+	/**
+	 * Returns whether the image has been read upto what was requested. Any
+	 * further input fed is ignored.
+	 * 
+	 * @return true if the read is complete
+	 */
+	public boolean isReadDone() {
+		return readDone;
+	}
+
+	/**
+	 * Starts writing the image. The parameters are as for LLJTran.initWrite.
+	 * The output is passed to listener as writeNext is called.
+	 * 
+	 * @param listener
+	 *            Listener receiving the output
+	 * @see LLJTran#initWrite(java.io.OutputStream,int,int,Rect,int)
+	 */
+	public void startWrite(int op, int options, Rect bounds,
+			int restart_interval, ChunkListener listener) throws IOException {
+		if (!readDone)
+			throw new IllegalStateException("Image has not been read");
+		this.listener = listener;
+		output = new ChunkOutputStream();
+		writer = llj.initWrite(output, op, options, bounds, restart_interval);
+		writeDone = false;
+	}
+
+	/**
+	 * Writes the next part of the output which is passed to the listener.
+	 * 
+	 * @param numBytes
+	 *            Approximate number of bytes to write
+	 * @return true if there is more to be written, false if the write is
+	 *         complete
+	 * @exception IOException
+	 *                In case of an error writing the image or from the
+	 *                listener
+	 */
+	public boolean writeNext(int numBytes) throws IOException {
+		if (writer == null)
+			throw new IllegalStateException("startWrite not called");
+		if (!writeDone)
+			writeDone = writer.nextWrite(numBytes) == IterativeReader.STOP;
+		output.flushChunk();
+		return !writeDone;
+	}
+
+	// Collects the bytes written during a nextWrite call
+	private class ChunkOutputStream extends OutputStream {
+		private byte buf[] = new byte[8192];
+		private int count;
+
+		public void write(int b) {
+			if (count == buf.length)
+				grow(1);
+			buf[count++] = (byte) b;
+		}
+
+		public void write(byte[] b, int off, int len) {
+			if (count + len > buf.length)
+				grow(len);
+			System.arraycopy(b, off, buf, count, len);
+			count += len;
+		}
+
+		private void grow(int len) {
+			byte newBuf[] = new byte[Math.max(buf.length * 2, count + len)];
+			System.arraycopy(buf, 0, newBuf, 0, count);
+			buf = newBuf;
+		}
+
+		void flushChunk() throws IOException {
+			if (count > 0) {
+				int len = count;
+				count = 0;
+				listener.onChunk(ByteBuffer.wrap(buf, 0, len));
+			}
+		}
+	}
+}
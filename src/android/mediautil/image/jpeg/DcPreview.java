@@ -0,0 +1,171 @@
+/* MediaUtil LLJTran - $RCSfile: DcPreview.java,v $
+ * Copyright (C) 1999-2005 Dmitriy Rogatkin, Suresh Mahalingam.  All rights reserved.
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *  THIS SOFTWARE IS PROVIDED BY THE AUTHOR AND CONTRIBUTORS ``AS IS'' AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ *  IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ *  ARE DISCLAIMED. IN NO EVENT SHALL THE AUTHOR OR CONTRIBUTORS BE LIABLE FOR
+ *  ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *	$Id$
+ *
+ * Some ideas and algorithms were borrowed from:
+ * Thomas G. Lane, and James R. Weeks
+ */
+package android.mediautil.image.jpeg;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import android.graphics.Bitmap;
+import android.graphics.Rect;
+import android.mediautil.generic.Log;
+
+/**
+ * AdvancedImage implementation which creates icons and thumbnails of jpeg
+ * images from the DC coefficients of the image. The DC coefficient of each
+ * 8x8 block is the mean of the block, so a 1/8 scale image is available
+ * without an inverse DCT. Only the DC coefficients are kept while reading, so
+ * this is much faster than a full decode and works with huge images.
+ * 
+ * @see LLJTran#getPreviewPixels()
+ */
+public class DcPreview implements AdvancedImage {
+	private static final String TAG = "DcPreview";
+
+	/**
+	 * Default maximum width and height of icons created by createIcon
+	 */
+	public static final int DEFAULT_ICON_SIZE = 128;
+
+	/**
+	 * Default quality of the jpeg written by saveThumbnailImage
+	 */
+	public static final int DEFAULT_QUALITY = 85;
+
+	private int iconSize;
+	private int quality;
+
+	public DcPreview() {
+		this(DEFAULT_ICON_SIZE, DEFAULT_QUALITY);
+	}
+
+	/**
+	 * @param iconSize
+	 *            Maximum width and height of icons created by createIcon
+	 * @param quality
+	 *            Quality (0-100) of the jpeg written by saveThumbnailImage
+	 */
+	public DcPreview(int iconSize, int quality) {
+		this.iconSize = iconSize;
+		this.quality = quality;
+	}
+
+	/**
+	 * Checks if the header of the jpeg file can be read.
+	 */
+	public boolean isValid(String filename) {
+		LLJTran llj = new LLJTran(new File(filename));
+		try {
+			llj.read(LLJTran.READ_HEADER, false);
+			return true;
+		} catch (LLJTranException e) {
+			return false;
+		} finally {
+			llj.freeMemory();
+		}
+	}
+
+	/**
+	 * Creates an icon of the image fitting in a square of iconSize pixels.
+	 */
+	public Bitmap createIcon(String filename) {
+		return createThumbnailIcon(filename, new Rect(0, 0, iconSize,
+				iconSize));
+	}
+
+	/**
+	 * Creates a thumbnail of the image.
+	 * 
+	 * @param filename
+	 *            Jpeg file
+	 * @param size
+	 *            The thumbnail is scaled down keeping the aspect ratio to fit
+	 *            the width and height of size. If null or if the 1/8 scale
+	 *            preview already fits it is returned unscaled.
+	 * @return The thumbnail or null if the image could not be read
+	 */
+	public Bitmap createThumbnailIcon(String filename, Rect size) {
+		LLJTran llj = new LLJTran(new File(filename));
+		llj.setDcOnly(true);
+		Bitmap preview;
+		try {
+			llj.read(LLJTran.READ_ALL, false);
+			preview = Bitmap.createBitmap(llj.getPreviewPixels(),
+					llj.getPreviewWidth(), llj.getPreviewHeight(),
+					Bitmap.Config.ARGB_8888);
+		} catch (LLJTranException e) {
+			if (Log.debugLevel >= Log.LEVEL_WARNING)
+				android.util.Log.w(TAG, "Warning: Can't read " + filename + ": "
+						+ e.getMessage());
+			return null;
+		} finally {
+			llj.freeMemory();
+		}
+
+		if (size == null)
+			return preview;
+		int width = preview.getWidth();
+		int height = preview.getHeight();
+		if (width <= size.width() && height <= size.height())
+			return preview;
+		// Fit keeping aspect ratio
+		if (width * size.height() > height * size.width()) {
+			height = Math.max(1, height * size.width() / width);
+			width = size.width();
+		} else {
+			width = Math.max(1, width * size.height() / height);
+			height = size.height();
+		}
+		Bitmap retVal = Bitmap.createScaledBitmap(preview, width, height, true);
+		if (retVal != preview)
+			preview.recycle();
+		return retVal;
+	}
+
+	/**
+	 * Writes a thumbnail of the image as a jpeg.
+	 * 
+	 * @param filename
+	 *            Jpeg file
+	 * @param os
+	 *            Output Stream for the thumbnail. This is not closed.
+	 * @param size
+	 *            Maximum size of the thumbnail as in createThumbnailIcon
+	 * @return true on success, false if the image could not be read or the
+	 *         thumbnail could not be written.
+	 */
+	public boolean saveThumbnailImage(String filename, OutputStream os,
+			Rect size) throws IOException {
+		Bitmap thumbnail = createThumbnailIcon(filename, size);
+		if (thumbnail == null)
+			return false;
+		try {
+			return thumbnail.compress(Bitmap.CompressFormat.JPEG, quality, os);
+		} finally {
+			thumbnail.recycle();
+		}
+	}
+}
@@ -0,0 +1,209 @@
+/* MediaUtil LLJTran - $RCSfile: DctStore.java,v $
+ * Copyright (C) 1999-2005 Dmitriy Rogatkin, Suresh Mahalingam.  All rights reserved.
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *  THIS SOFTWARE IS PROVIDED BY THE AUTHOR AND CONTRIBUTORS ``AS IS'' AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ *  IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ *  ARE DISCLAIMED. IN NO EVENT SHALL THE AUTHOR OR CONTRIBUTORS BE LIABLE FOR
+ *  ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *	$Id$
+ *
+ * Some ideas and algorithms were borrowed from:
+ * Thomas G. Lane, and James R. Weeks
+ */
+package android.mediautil.image.jpeg;
+
+import java.io.IOException;
+
+/**
+ * Storage for the DCT coefficients of an image. The blocks of each MCU row are
+ * packed one after another, each non zero coefficient taking one int holding
+ * the coefficient value in the upper bits and its zigzag index in the lower 6
+ * bits, along with the end offset of each block in the row. This avoids
+ * allocating separate arrays for every 8x8 block. Subclasses decide where the
+ * packed rows are kept.
+ * <p>
+ * 
+ * Blocks are added in the order they are encoded, that is MCU by MCU in
+ * raster order and within an MCU in the order of the components in the scan.
+ * A row can be accessed once all its blocks have been added.
+ */
+abstract class DctStore {
+	protected static final int INDEX_BITS = 6;
+	protected static final int INDEX_MASK = (1 << INDEX_BITS) - 1;
+
+	protected int widthMCU, heightMCU, blocksPerMCU, blocksPerRow;
+
+	// Row being added
+	private int curRow, curBlock, curLen;
+	private int[] curCoefs, curBlockEnds;
+
+	protected DctStore(int widthMCU, int heightMCU, int blocksPerMCU) {
+		this.widthMCU = widthMCU;
+		this.heightMCU = heightMCU;
+		this.blocksPerMCU = blocksPerMCU;
+		blocksPerRow = widthMCU * blocksPerMCU;
+	}
+
+	int getWidthMCU() {
+		return widthMCU;
+	}
+
+	int getHeightMCU() {
+		return heightMCU;
+	}
+
+	int getBlocksPerMCU() {
+		return blocksPerMCU;
+	}
+
+	/**
+	 * Adds the next block.
+	 * 
+	 * @param values
+	 *            Non zero coefficient values. The first one is the DC value
+	 *            which may be zero.
+	 * @param indices
+	 *            Zigzag indices of the coefficients
+	 * @param len
+	 *            Number of coefficients
+	 */
+	void addBlock(int[] values, int[] indices, int len) throws IOException {
+		int[] cur = startBlock(len);
+		int pos = curLen;
+		for (int i = 0; i < len; i++)
+			cur[pos++] = (values[i] << INDEX_BITS) | indices[i];
+		endBlock(pos);
+	}
+
+	/**
+	 * Adds all the blocks of another DctStore with the same number of blocks
+	 * per MCU. All rows of src must be complete.
+	 */
+	void addBlocks(DctStore src) throws IOException {
+		int[][] dct = new int[2][LLJTran.DCTSIZE2];
+		for (int iy = 0; iy < src.heightMCU; iy++)
+			for (int ix = 0; ix < src.widthMCU; ix++)
+				for (int b = 0; b < src.blocksPerMCU; b++)
+					addBlock(dct[0], dct[1], src.getBlock(ix, iy, b, dct));
+	}
+
+	private int[] startBlock(int len) {
+		if (curRow >= heightMCU)
+			throw new IllegalStateException("All blocks have been added");
+		if (curCoefs == null) {
+			curCoefs = new int[blocksPerRow * 8 + LLJTran.DCTSIZE2];
+			curBlockEnds = new int[blocksPerRow];
+		} else if (curLen + len > curCoefs.length) {
+			int newCoefs[] = new int[curCoefs.length * 2 + len];
+			System.arraycopy(curCoefs, 0, newCoefs, 0, curLen);
+			curCoefs = newCoefs;
+		}
+		return curCoefs;
+	}
+
+	private void endBlock(int end) throws IOException {
+		curLen = end;
+		curBlockEnds[curBlock++] = end;
+		if (curBlock == blocksPerRow) {
+			putRow(curRow, curCoefs, curLen, curBlockEnds);
+			curRow++;
+			curBlock = 0;
+			curLen = 0;
+			if (curRow < heightMCU)
+				curBlockEnds = new int[blocksPerRow];
+			else {
+				curCoefs = null;
+				curBlockEnds = null;
+			}
+		}
+	}
+
+	/**
+	 * Called when all blocks of a row have been added.
+	 * 
+	 * @param iy
+	 *            The row
+	 * @param coefs
+	 *            Packed coefficients of the row. This array is reused for the
+	 *            following rows.
+	 * @param len
+	 *            Number of packed coefficients
+	 * @param blockEnds
+	 *            End offset in coefs of each block of the row. This array is
+	 *            not reused and may be retained.
+	 */
+	protected abstract void putRow(int iy, int[] coefs, int len,
+			int[] blockEnds) throws IOException;
+
+	/**
+	 * Returns true if all blocks have been added.
+	 */
+	boolean isComplete() {
+		return curRow >= heightMCU;
+	}
+
+	/**
+	 * Returns true if all blocks of the row have been added and the row has
+	 * not been freed.
+	 */
+	abstract boolean hasRow(int iy);
+
+	/**
+	 * Frees the memory used by a row which is no longer required.
+	 */
+	abstract void freeRow(int iy);
+
+	/**
+	 * Gets a block.
+	 * 
+	 * @param ix
+	 *            X position of the MCU
+	 * @param iy
+	 *            Y position of the MCU
+	 * @param block
+	 *            Block within the MCU
+	 * @param dct
+	 *            Array of size [2][64] into which the coefficient values and
+	 *            zigzag indices are unpacked
+	 * @return Number of coefficients in the block
+	 */
+	abstract int getBlock(int ix, int iy, int block, int[][] dct);
+
+	/**
+	 * Unpacks block b of a packed row into dct and returns the number of
+	 * coefficients in the block.
+	 */
+	protected static int unpackBlock(int[] rowCoefs, int[] blockEnds, int b,
+			int[][] dct) {
+		int start = b == 0 ? 0 : blockEnds[b - 1];
+		int len = blockEnds[b] - start;
+		int[] values = dct[0];
+		int[] indices = dct[1];
+		for (int i = 0; i < len; i++) {
+			int c = rowCoefs[start + i];
+			values[i] = c >> INDEX_BITS;
+			indices[i] = c & INDEX_MASK;
+		}
+		return len;
+	}
+
+	/**
+	 * Releases any resources held by the store. The store cannot be used
+	 * after this.
+	 */
+	void close() {
+	}
+}
@@ -27,6 +27,16 @@ package android.mediautil.image.jpeg;
 
 import java.io.Serializable;
 
+import android.mediautil.generic.Rational;
+
+/**
+ * Value of an Exif tag. The values of numeric tags read from an image are
+ * held in primitive arrays, a byte[] for the BYTE, SBYTE and UNDEFINED types
+ * and an int[] for the others with RATIONAL and SRATIONAL values packed as
+ * numerator, denominator pairs. They are accessed through getInt,
+ * getRational and asIntArray without creating any objects. getValues and
+ * getValue box the values for compatibility.
+ */
 public class Entry implements Serializable {
 
 	/**
@@ -51,6 +61,36 @@ public class Entry implements Serializable {
 		this.value = value;
 	}
 
+	/**
+	 * Creates an Entry of the BYTE, SBYTE or UNDEFINED type holding the
+	 * values in the byte array. The array is not copied.
+	 * 
+	 * @param type
+	 *            Type of the Entry
+	 * @param values
+	 *            Values of the Entry
+	 */
+	public Entry(int type, byte[] values) {
+		this.type = type;
+		bytes = values;
+	}
+
+	/**
+	 * Creates an Entry of a numeric type other than BYTE, SBYTE or UNDEFINED
+	 * holding the values in the int array. For the RATIONAL and SRATIONAL
+	 * types the array contains numerator, denominator pairs. The array is not
+	 * copied.
+	 * 
+	 * @param type
+	 *            Type of the Entry
+	 * @param values
+	 *            Values of the Entry
+	 */
+	public Entry(int type, int[] values) {
+		this.type = type;
+		ints = values;
+	}
+
 	public int getType() {
 		return type;
 	}
@@ -59,31 +99,161 @@ public class Entry implements Serializable {
 		if (str != null)
 			return str;
 		StringBuffer buff = new StringBuffer();
-		for (int i = 0; i < value.length; i++)
-			buff.append(
-					(type != Exif.UNDEFINED) ? value[i] : Integer
-							.toHexString(((Integer) value[i]).intValue()))
-					.append(' ');// .append('|');
+		if (value != null)
+			for (int i = 0; i < value.length; i++)
+				buff.append(
+						(type != Exif.UNDEFINED) ? value[i] : Integer
+								.toHexString(((Integer) value[i]).intValue()))
+						.append(' ');// .append('|');
+		else {
+			int count = getCount();
+			for (int i = 0; i < count; i++) {
+				if (isRational())
+					buff.append(ints[2 * i]).append('/').append(ints[2 * i + 1]);
+				else if (type == Exif.UNDEFINED)
+					buff.append(Integer.toHexString(getInt(i)));
+				else
+					buff.append(getInt(i));
+				buff.append(' ');
+			}
+		}
 		return buff.toString();
 
 	}
 
+	/**
+	 * Gets the number of values in the Entry.
+	 * 
+	 * @return Number of values. 1 for an ASCII Entry
+	 */
+	public int getCount() {
+		if (bytes != null)
+			return bytes.length;
+		if (ints != null)
+			return isRational() ? ints.length / 2 : ints.length;
+		if (value != null)
+			return value.length;
+		return str != null ? 1 : 0;
+	}
+
+	/**
+	 * Gets a value as an int. For the RATIONAL and SRATIONAL types this is the
+	 * numerator divided by the denominator.
+	 * 
+	 * @param index
+	 *            Index of the value
+	 * @return The value
+	 */
+	public int getInt(int index) {
+		if (bytes != null)
+			return type == Exif.SBYTE ? bytes[index] : bytes[index] & 0xff;
+		if (ints != null) {
+			if (!isRational())
+				return ints[index];
+			int den = ints[2 * index + 1];
+			return den == 0 ? 0 : ints[2 * index] / den;
+		}
+		Object v = value[index];
+		if (v instanceof Rational) {
+			Rational r = (Rational) v;
+			return r.getDen() == 0 ? 0 : r.getNum() / r.getDen();
+		}
+		return ((Integer) v).intValue();
+	}
+
+	/**
+	 * Gets a value as a Rational. Values of the integer types have a
+	 * denominator of 1.
+	 * 
+	 * @param index
+	 *            Index of the value
+	 * @return The value
+	 */
+	public Rational getRational(int index) {
+		if (ints != null && isRational())
+			return new Rational(ints[2 * index], ints[2 * index + 1]);
+		if (value != null && value[index] instanceof Rational)
+			return (Rational) value[index];
+		return new Rational(getInt(index), 1);
+	}
+
+	/**
+	 * Gets a copy of the values as an int array. For the RATIONAL and
+	 * SRATIONAL types the array contains numerator, denominator pairs.
+	 * 
+	 * @return The values
+	 */
+	public int[] asIntArray() {
+		if (ints != null) {
+			int[] result = new int[ints.length];
+			System.arraycopy(ints, 0, result, 0, ints.length);
+			return result;
+		}
+		int count = getCount();
+		boolean rational = isRational();
+		int[] result = new int[rational ? 2 * count : count];
+		for (int i = 0; i < count; i++)
+			if (rational) {
+				Rational r = getRational(i);
+				result[2 * i] = r.getNum();
+				result[2 * i + 1] = r.getDen();
+			} else
+				result[i] = getInt(i);
+		return result;
+	}
+
+	/**
+	 * Gets the values as Objects. Numeric values held in a primitive array
+	 * are boxed into Integers or Rationals and held in the returned array from
+	 * then on so that changes made to the array are reflected in the Entry.
+	 * 
+	 * @return The values
+	 */
 	public Object[] getValues() {
+		if (value == null && (bytes != null || ints != null)) {
+			Object[] boxed = new Object[getCount()];
+			for (int i = 0; i < boxed.length; i++)
+				boxed[i] = getValue(i);
+			value = boxed;
+			bytes = null;
+			ints = null;
+		}
 		return value;
 	}
 
 	public Object getValue(int index) {
 		if (value != null)
 			return value[index];
+		else if (bytes != null || ints != null)
+			return isRational() ? getRational(index) : Integer
+					.valueOf(getInt(index));
 		else if (str != null)
 			return str;
 		return null;
 	}
 
 	public void setValue(int index, Object newValue) {
-		if (newValue instanceof String)
+		if (newValue instanceof String) {
 			str = (String) newValue;
-		else if (value != null && index < value.length)
+			return;
+		}
+		if (index < getCount()) {
+			if (bytes != null && newValue instanceof Integer) {
+				bytes[index] = (byte) ((Integer) newValue).intValue();
+				return;
+			}
+			if (ints != null && !isRational() && newValue instanceof Integer) {
+				ints[index] = ((Integer) newValue).intValue();
+				return;
+			}
+			if (ints != null && isRational() && newValue instanceof Rational) {
+				ints[2 * index] = ((Rational) newValue).getNum();
+				ints[2 * index + 1] = ((Rational) newValue).getDen();
+				return;
+			}
+		}
+		getValues();
+		if (value != null && index < value.length)
 			value[index] = newValue;
 		else {
 			Object[] tempHolder = new Object[index + 1];
@@ -94,7 +264,22 @@ public class Entry implements Serializable {
 		}
 	}
 
+	// The primitive arrays for Exif.writeIfd. null if the values are boxed
+	byte[] getByteArray() {
+		return bytes;
+	}
+
+	int[] getIntArray() {
+		return ints;
+	}
+
+	private boolean isRational() {
+		return type == Exif.RATIONAL || type == Exif.SRATIONAL;
+	}
+
 	private int type;
 	private String str;
 	private Object[] value;
+	private byte[] bytes;
+	private int[] ints;
 }
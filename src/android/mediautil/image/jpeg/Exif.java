@@ -41,8 +41,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
-import java.util.Iterator;
-import java.util.Map;
+import java.util.Arrays;
 
 import android.mediautil.generic.FileFormatException;
 import android.mediautil.generic.Log;
@@ -616,7 +615,7 @@ public class Exif extends AbstractImageInfo<LLJTran> {
 	 * @return Entry corresponding to the tag
 	 */
 	public Entry getTagValue(int tag, boolean main) {
-		return getTagValue(Integer.valueOf(tag), -1, main);
+		return getTagValue(tag, -1, main);
 	}
 
 	/**
@@ -633,6 +632,31 @@ public class Exif extends AbstractImageInfo<LLJTran> {
 	 * @return Entry corresponding to the tag
 	 */
 	public Entry getTagValue(Integer tag, int subTag, boolean main) {
+		return getTagValue(tag.intValue(), subTag, main);
+	}
+
+	/**
+	 * Gets the Entry corresponding to an Exif tag. When no subTag is given the
+	 * tag is looked up by binary search in an index of all the tags of the
+	 * IFD and its sub IFDs.
+	 * 
+	 * @see #getTagValue(Integer,int,boolean)
+	 */
+	public Entry getTagValue(int tag, int subTag, boolean main) {
+		if (ifdsPending)
+			buildIFDs();
+		if (subTag <= 0) {
+			TagIndex index = getTagIndex(main);
+			int i = index.find(tag);
+			if (i < 0)
+				return null;
+			return lazyIfds != null ? getLazyEntry(index.slots[i])
+					: index.entries[i];
+		}
+		if (lazyIfds != null) {
+			LazyIfd ifd = lazyIfds[main ? 0 : 1];
+			return ifd != null ? getLazyEntry(ifd, tag, subTag) : null;
+		}
 
 		return ifds[main ? 0 : 1] != null ? ifds[main ? 0 : 1].getEntry(tag,
 				subTag) : null;
@@ -653,8 +677,10 @@ public class Exif extends AbstractImageInfo<LLJTran> {
 	 *            Thumbnail related tags are in the Sub IFD.
 	 */
 	public void setTagValue(int tag, int subTag, Entry value, boolean main) {
+		buildIFDs();
 		if (ifds[main ? 0 : 1] != null)
-			ifds[main ? 0 : 1].setEntry(Integer.valueOf(tag), subTag, value);
+			ifds[main ? 0 : 1].setEntry(tag, subTag, value);
+		tagIndex = null;
 	}
 
 	/**
@@ -669,7 +695,7 @@ public class Exif extends AbstractImageInfo<LLJTran> {
 		if (e == null)
 			e = getTagValue(STRIPBYTECOUNTS, false);
 		if (e != null)
-			retVal = ((Integer) e.getValue(0)).intValue();
+			retVal = e.getInt(0);
 		return retVal;
 	}
 
@@ -685,7 +711,7 @@ public class Exif extends AbstractImageInfo<LLJTran> {
 		if (e == null)
 			e = getTagValue(STRIPOFFSETS, false);
 		if (e != null)
-			retVal = ((Integer) e.getValue(0)).intValue() + FIRST_IFD_OFF;
+			retVal = e.getInt(0) + FIRST_IFD_OFF;
 		return retVal;
 	}
 
@@ -701,12 +727,25 @@ public class Exif extends AbstractImageInfo<LLJTran> {
 		if (!(intel || motorola))
 			return;
 		version = s2n(8, 2);
-		processAllIFDs();
+		TagProjection projection = format != null ? format.getTagProjection()
+				: null;
+		if (projection != null) {
+			projectIFDs(projection);
+			// The IFDs are built from data only if they are needed
+			ifdsPending = true;
+			return;
+		}
+		boolean lazy = format != null && format.isLazyImageInfo();
+		if (lazy)
+			indexAllIFDs();
+		else
+			processAllIFDs();
 		String msg = correctThumbnailTags(data, 0);
 		if (msg != null)
 			if (Log.debugLevel >= Log.LEVEL_WARNING)
 				android.util.Log.w(FORMAT, "Warning: Exif Read: " + msg);
-		data = null; // for gc
+		if (lazyIfds == null)
+			data = null; // for gc
 	}
 
 	/**
@@ -804,7 +843,8 @@ public class Exif extends AbstractImageInfo<LLJTran> {
 	 * @param options
 	 *            OPT_XFORM_.. options of LLJTran. LLJTran passes its options
 	 *            directly to this method. This uses the imageInfo related flags
-	 *            {@link LLJTran#OPT_XFORM_THUMBNAIL} and
+	 *            {@link LLJTran#OPT_XFORM_THUMBNAIL},
+	 *            {@link LLJTran#OPT_XFORM_THUMBNAIL_FROM_DC} and
 	 *            {@link LLJTran#OPT_XFORM_ORIENTATION} and makes the necessary
 	 *            changes to imageInfo depending on the transform specified by
 	 *            <b>op</b> before writing.
@@ -826,9 +866,7 @@ public class Exif extends AbstractImageInfo<LLJTran> {
 	public void writeInfo(byte markerData[], OutputStream out, int op,
 			int options, boolean modifyImageInfo, int imageWidth,
 			int imageHeight, String encoding) throws IOException {
-		// TODO: this implementation takes twice memory than needed
-		// it should be rewritten using byte[] and then copying to stream
-		// version returning just byte[] is also very useful
+		buildIFDs();
 		if (ifds == null)
 			throw new IllegalStateException("EXIF data not filled.");
 
@@ -950,32 +988,40 @@ public class Exif extends AbstractImageInfo<LLJTran> {
 			}
 		}
 
-		// TODO: write to out FIRST_IFD_OFF bytes
-		out.write(EXIF_MARK);
-		if (intel) {
-			out.write('I');
-			out.write('I');
-		} else {
-			out.write('M');
-			out.write('M');
-		}
-		out.write(n2s(version, 2));
-
-		int emptySlot = EXIF_MARK.length + 2;
-		// write offset of IFD
-		out.write(n2s(emptySlot, 4));
 		String msg = correctThumbnailTags(markerData, 4);
 		if (msg != null)
 			if (Log.debugLevel >= Log.LEVEL_WARNING)
 				android.util.Log.w(FORMAT, "Warning: Exif Write: " + msg);
-		for (int k = 0; k < 2; k++) {
-			// System.err.println("--->IFD "+k+" offeset "+emptySlot);
-			boolean isLast = false;
-			if (k == 1 || ifds[k + 1] == null)
-				isLast = true;
-			emptySlot = writeIfd(markerData, out, emptySlot, ifds[k], op,
-					options, isLast, encoding);
+		// The size is worked out first so that everything can be written
+		// into one array at its final offset
+		writeStrings = new byte[8][];
+		numWriteStrings = 0;
+		int emptySlot = 8; // Tiff header
+		for (int k = 0; k < 2; k++)
+			emptySlot = sizeIfd(markerData, emptySlot, ifds[k], op, options,
+					encoding);
+		byte result[] = new byte[EXIF_MARK.length + emptySlot];
+		System.arraycopy(EXIF_MARK, 0, result, 0, EXIF_MARK.length);
+		int pos = EXIF_MARK.length;
+		result[pos] = result[pos + 1] = (byte) (intel ? 'I' : 'M');
+		n2s(result, pos + 2, version, 2);
+		emptySlot = 8;
+		// write offset of IFD
+		n2s(result, pos + 4, emptySlot, 4);
+		numWriteStrings = 0;
+		try {
+			for (int k = 0; k < 2; k++) {
+				// System.err.println("--->IFD "+k+" offeset "+emptySlot);
+				boolean isLast = false;
+				if (k == 1 || ifds[k + 1] == null)
+					isLast = true;
+				emptySlot = writeIfd(result, emptySlot, ifds[k], isLast);
+			}
+		} finally {
+			writeStrings = null;
+			thumbnailData = null;
 		}
+		out.write(result);
 
 		for (int i = 0; i < numOrgEntries; ++i) {
 			Entry e = orgEntries[i];
@@ -993,6 +1039,7 @@ public class Exif extends AbstractImageInfo<LLJTran> {
 	 * @return True if the Sub IFD containing Thumbnail is present
 	 */
 	public boolean removeThumbnailTags() {
+		buildIFDs();
 		IFD ifd = ifds[1];
 		if (ifd != null) {
 			ifds[1].removeEntry(JPEGINTERCHANGEFORMAT);
@@ -1001,6 +1048,7 @@ public class Exif extends AbstractImageInfo<LLJTran> {
 			ifds[1].removeEntry(STRIPBYTECOUNTS);
 			ifds[1].removeEntry(PHOTOMETRICINTERPRETATION);
 		}
+		tagIndex = null;
 
 		return true;
 	}
@@ -1012,8 +1060,7 @@ public class Exif extends AbstractImageInfo<LLJTran> {
 		String retVal = null;
 		boolean thumbnailTagsPresent = false;
 		boolean isJpegThumbnail = false;
-		int offsetTagVal = 0;
-		int offset = 0;
+		int thumb[] = new int[2];
 		Entry offsetEnt = getTagValue(JPEGINTERCHANGEFORMAT, false);
 		if (offsetEnt == null)
 			offsetEnt = getTagValue(STRIPOFFSETS, false);
@@ -1021,80 +1068,229 @@ public class Exif extends AbstractImageInfo<LLJTran> {
 			isJpegThumbnail = true;
 		if (offsetEnt != null) {
 			thumbnailTagsPresent = true;
-			offsetTagVal = ((Integer) offsetEnt.getValue(0)).intValue();
-			offset = offsetTagVal + FIRST_IFD_OFF + leading;
+			thumb[0] = offsetEnt.getInt(0);
 		}
 
-		int length = 0;
 		Entry lengthEnt = getTagValue(JPEGINTERCHANGEFORMATLENGTH, false);
 		if (lengthEnt == null)
 			lengthEnt = getTagValue(STRIPBYTECOUNTS, false);
 		else
 			isJpegThumbnail = true;
 		if (lengthEnt != null) {
-			length = ((Integer) lengthEnt.getValue(0)).intValue();
+			thumb[1] = lengthEnt.getInt(0);
 			thumbnailTagsPresent = true;
 		}
-		int orgLen = length;
 
 		if (thumbnailTagsPresent) {
-			int lengthOvershoot = 0, skipCount = 0;
-			StringBuffer warnBuf = new StringBuffer();
-			if (markerData == null)
-				retVal = "Removing Thumbnail: No Marker Supplied";
-			else if (offset < 0 || offset > markerData.length)
-				retVal = "Removing Thumbnail: Invalid Offset: " + offset;
-			else if ((lengthOvershoot = offset + length - markerData.length) > 0) {
-				length -= lengthOvershoot;
-				warnBuf.append("; Thumbnail length ").append(orgLen)
-						.append(" is beyond Exif header. Reducing it to ")
-						.append(length);
+			retVal = checkThumbnail(markerData, leading, isJpegThumbnail,
+					thumb);
+			if (thumb[1] < 0)
+				removeThumbnailTags();
+			else if (retVal != null) {
+				if (lengthEnt != null)
+					lengthEnt.setValue(0, Integer.valueOf(thumb[1]));
+				if (offsetEnt != null)
+					offsetEnt.setValue(0, Integer.valueOf(thumb[0]));
 			}
+		}
 
-			if (retVal == null) {
-				if (isJpegThumbnail) {
-					while (offset < markerData.length - 1
-							&& length > 0
-							&& !(markerData[offset] == M_PRX && markerData[offset + 1] == M_SOI)) {
-						length--;
-						offset++;
-						skipCount++; // skip garbage in begining including
-										// padding FF
-					}
+		return retVal;
+	}
 
-					if (skipCount > 0) {
-						offsetTagVal += skipCount;
-						warnBuf.append("; Skipped ")
-								.append(skipCount)
-								.append(" Garbage bytes at the beginning of Jpeg Thumbnail");
-					}
+	// Checks the Thumbnail at the offset tag value thumb[0] of length
+	// thumb[1]. Sets thumb to the corrected offset tag value and length or
+	// thumb[1] to -1 if the Thumbnail is to be removed. Returns null if okay
+	// or warning message otherwise.
+	private static String checkThumbnail(byte markerData[], int leading,
+			boolean isJpegThumbnail, int thumb[]) {
+		String retVal = null;
+		int offsetTagVal = thumb[0];
+		int offset = offsetTagVal + FIRST_IFD_OFF + leading;
+		int length = thumb[1];
+		int orgLen = length;
+		int lengthOvershoot = 0, skipCount = 0;
+		StringBuffer warnBuf = new StringBuffer();
+		if (markerData == null)
+			retVal = "Removing Thumbnail: No Marker Supplied";
+		else if (offset < 0 || offset > markerData.length)
+			retVal = "Removing Thumbnail: Invalid Offset: " + offset;
+		else if ((lengthOvershoot = offset + length - markerData.length) > 0) {
+			length -= lengthOvershoot;
+			warnBuf.append("; Thumbnail length ").append(orgLen)
+					.append(" is beyond Exif header. Reducing it to ")
+					.append(length);
+		}
+
+		if (retVal == null) {
+			if (isJpegThumbnail) {
+				while (offset < markerData.length - 1
+						&& length > 0
+						&& !(markerData[offset] == M_PRX && markerData[offset + 1] == M_SOI)) {
+					length--;
+					offset++;
+					skipCount++; // skip garbage in begining including
+									// padding FF
 				}
 
-				if (length <= MIN_JPEG_SIZE) {
-					warnBuf.append("; Removing Thumbnail: Invalid length: ")
-							.append(length);
-					retVal = warnBuf.substring(2);
+				if (skipCount > 0) {
+					offsetTagVal += skipCount;
+					warnBuf.append("; Skipped ")
+							.append(skipCount)
+							.append(" Garbage bytes at the beginning of Jpeg Thumbnail");
 				}
 			}
 
-			if (retVal != null)
-				removeThumbnailTags();
-			else if (lengthOvershoot > 0 || skipCount > 0) {
+			if (length <= MIN_JPEG_SIZE) {
+				warnBuf.append("; Removing Thumbnail: Invalid length: ")
+						.append(length);
 				retVal = warnBuf.substring(2);
-				lengthEnt.setValue(0, Integer.valueOf(length));
-				offsetEnt.setValue(0, Integer.valueOf(offsetTagVal));
 			}
-			warnBuf = null;
+		}
+
+		if (retVal != null)
+			thumb[1] = -1;
+		else {
+			if (lengthOvershoot > 0 || skipCount > 0)
+				retVal = warnBuf.substring(2);
+			thumb[0] = offsetTagVal;
+			thumb[1] = length;
 		}
 
 		return retVal;
 	}
 
 	/**
-	 * writes IFD from map and returns length
+	 * Works out the size of an IFD as written by writeIfd. The Thumbnail to be
+	 * written is also prepared here.
+	 * 
+	 * @return emptySlot after the IFD and its values
 	 */
-	protected int writeIfd(byte markerData[], OutputStream out, int emptySlot,
-			IFD ifd, int op, int options, boolean isLast, String encoding)
+	protected int sizeIfd(byte markerData[], int emptySlot, IFD ifd, int op,
+			int options, String encoding) throws IOException {
+		if (ifd == null)
+			return emptySlot;
+		int ne = ifd.getEntryCount()
+				+ (ifd.getIFDs() == null ? 0 : ifd.getIFDs().length);
+		emptySlot += ne * DIR_ENTRY_SIZE + 2 + 4; // num entries + next slot
+		boolean foundJpegThumbnailTag = false;
+		boolean foundBmpThumbnailTag = false;
+		for (int ie = 0; ie < ifd.getEntryCount(); ie++) {
+			int tag = ifd.getEntryTag(ie);
+			if (tag == JPEGINTERCHANGEFORMAT)
+				foundJpegThumbnailTag = true;
+			if (tag == STRIPOFFSETS)
+				foundBmpThumbnailTag = true;
+			if (isThumbnailTag(tag))
+				continue;
+			Entry e = ifd.getEntryAt(ie);
+			if (e == null)
+				continue;
+			int type = e.getType();
+			if (type == ASCII) {
+				byte[] str = e.toString().getBytes(encoding);
+				if (numWriteStrings == writeStrings.length) {
+					byte[][] temp = new byte[numWriteStrings * 2][];
+					System.arraycopy(writeStrings, 0, temp, 0, numWriteStrings);
+					writeStrings = temp;
+				}
+				writeStrings[numWriteStrings++] = str;
+				if (str.length + 1 > 4)
+					emptySlot += str.length + 1;
+			} else {
+				int len = e.getCount() * TYPELENGTH[type - 1];
+				if (len > 4)
+					emptySlot += len;
+			}
+		}
+		if (foundJpegThumbnailTag || foundBmpThumbnailTag) {
+			prepareThumbnail(markerData, op, options, foundJpegThumbnailTag);
+			emptySlot += thumbnailLength;
+		}
+
+		IFD[] ifds = ifd.getIFDs();
+		for (int k = 0; ifds != null && k < ifds.length; k++)
+			emptySlot = sizeIfd(markerData, emptySlot, ifds[k], op, options,
+					encoding);
+		return emptySlot;
+	}
+
+	private static boolean isThumbnailTag(int tag) {
+		return tag == JPEGINTERCHANGEFORMAT
+				|| tag == JPEGINTERCHANGEFORMATLENGTH || tag == STRIPOFFSETS
+				|| tag == STRIPBYTECOUNTS;
+	}
+
+	// Sets thumbnailData, thumbnailOffset and thumbnailLength to the
+	// Thumbnail to be written
+	private void prepareThumbnail(byte markerData[], int op, int options,
+			boolean isJpeg) {
+		if (thumbnailData != null)
+			return;
+		thumbnailData = markerData;
+		thumbnailOffset = getThumbnailOffset() + 4;
+		thumbnailLength = getThumbnailLength();
+		// Not doing any validity checks. Validation and correction should
+		// have been done by calling correctThumbnailTags
+		if (!isJpeg)
+			return;
+		byte dcThumbnail[] = null;
+		if ((options & LLJTran.OPT_XFORM_THUMBNAIL_FROM_DC) != 0
+				&& op != LLJTran.NONE && format != null)
+			dcThumbnail = format.getDcThumbnail();
+		if (dcThumbnail != null) {
+			thumbnailData = dcThumbnail;
+			thumbnailOffset = 0;
+			thumbnailLength = dcThumbnail.length;
+		} else if ((options & LLJTran.OPT_XFORM_THUMBNAIL) != 0
+				&& op != LLJTran.NONE && op != LLJTran.CROP) {
+			try {
+				ByteArrayInputStream tis = new ByteArrayInputStream(
+						markerData, thumbnailOffset, thumbnailLength);
+				LLJTran ljt = new LLJTran(tis);
+				ljt.read(LLJTran.READ_ALL, false);
+				ljt.transform(op, 0);
+				ByteArrayOutputStream tos = new ByteArrayOutputStream(
+						thumbnailLength);
+				ljt.save(tos, 0);
+				thumbnailData = tos.toByteArray();
+				thumbnailOffset = 0;
+				thumbnailLength = thumbnailData.length;
+			} catch (Throwable e) {
+				if (Log.debugLevel >= Log.LEVEL_WARNING) {
+					android.util.Log.w(FORMAT,
+							"Warning: Unable to Transform Thumbnail, will write it unchanged: "
+									+ e.getMessage());
+					e.printStackTrace(System.err);
+				}
+			}
+		}
+	}
+
+	// Output for the MakerNoteHandler to write the count of a MakerNote IFD
+	// into the array being written by writeIfd
+	private static class ArrayOutput extends OutputStream {
+		byte buf[];
+		int pos;
+
+		@Override
+		public void write(int b) {
+			buf[pos++] = (byte) b;
+		}
+
+		@Override
+		public void write(byte b[], int off, int len) {
+			System.arraycopy(b, off, buf, pos, len);
+			pos += len;
+		}
+	}
+
+	/**
+	 * Writes an IFD into the array sized by sizeIfd. The IFD goes at emptySlot
+	 * followed by its values, the Thumbnail and the sub IFDs.
+	 * 
+	 * @return emptySlot after the IFD and its values
+	 */
+	protected int writeIfd(byte buf[], int emptySlot, IFD ifd, boolean isLast)
 			throws IOException {
 		if (ifd == null) {
 			if (Log.debugLevel >= Log.LEVEL_WARNING)
@@ -1103,207 +1299,133 @@ public class Exif extends AbstractImageInfo<LLJTran> {
 								"Warning: Requested to write NULL IFD, nothing written.");
 			return emptySlot;
 		}
-		ByteArrayOutputStream buf = new ByteArrayOutputStream(1 * 1024);
-		int ne = (ifd.getEntries() == null ? 0 : ifd.getEntries().size())
+		final int base = EXIF_MARK.length;
+		int ne = ifd.getEntryCount()
 				+ (ifd.getIFDs() == null ? 0 : ifd.getIFDs().length);
 		// System.err.println("ifd= "+Integer.toHexString(ifd.getTag())+" entries "+ne+" offset 0x"+Integer.toHexString(emptySlot));
-		out.write(n2s(ne, 2)); // num entries
+		int dir = base + emptySlot;
+		n2s(buf, dir, ne, 2); // num entries
+		dir += 2;
+		int nextPos = dir + ne * DIR_ENTRY_SIZE;
 		emptySlot += ne * DIR_ENTRY_SIZE + 2 + 4; // num entries + next slot
-		Iterator<Map.Entry<Integer, Entry>> it = ifd.getEntries().entrySet()
-				.iterator();
 		boolean foundJpegThumbnailTag = false;
 		boolean foundBmpThumbnailTag = false;
-		while (it.hasNext()) {
-			Map.Entry<Integer, Entry> me = it.next();
-			int tag = me.getKey();
-
-			if (tag == MAKERNOTE) // write it
-			{
-				if (makerNoteHandler != null) {
-					makerNoteHandler.save(out, this, ifd);
-					continue;
-				}
-			}
+		for (int ie = 0; ie < ifd.getEntryCount(); ie++) {
+			int tag = ifd.getEntryTag(ie);
 			// Skip Thumbnail Tags to process at end. Processing at end
 			// keeps Thumbnail tags next to Thumbnail data which programs
 			// like jhead prefer
-			if (tag == JPEGINTERCHANGEFORMAT) // skip it
-			{
+			if (tag == JPEGINTERCHANGEFORMAT)
 				foundJpegThumbnailTag = true;
-				continue;
-			}
-			if (tag == JPEGINTERCHANGEFORMATLENGTH) // skip it
-				continue;
-			if (tag == STRIPOFFSETS) // skip it
-			{
+			if (tag == STRIPOFFSETS)
 				foundBmpThumbnailTag = true;
-				continue;
-			}
-			if (tag == STRIPBYTECOUNTS) // skip it
+			if (isThumbnailTag(tag))
 				continue;
 
-			Entry e = (Entry) me.getValue();
+			Entry e = ifd.getEntryAt(ie);
 			if (e == null)
 				continue;
-			// TODO: consider write(e.toByteArray(intel)
-			out.write(n2s(tag, 2));
-			int type;
-			out.write(n2s(type = e.getType(), 2));
-			// System.err.println("write type "+Integer.toString(type,16)+" tag "+Integer.toString(tag,
-			// 16)+
-			// " tag vals "+rogatkin.DataConv.arrayToString(e.getValues(),
-			// ':'));
+			int type = e.getType();
+			n2s(buf, dir, tag, 2);
+			n2s(buf, dir + 2, type, 2);
 			if (type == ASCII) {
-				byte[] str = e.toString().getBytes(encoding);
-				out.write(n2s(str.length + 1, 4));
+				byte[] str = writeStrings[numWriteStrings++];
+				n2s(buf, dir + 4, str.length + 1, 4);
 				if (str.length + 1 > 4) {
-					out.write(n2s(emptySlot, 4));
-					buf.write(str); // buf used
-					buf.write(0);
+					n2s(buf, dir + 8, emptySlot, 4);
+					// The terminating 0 is already there
+					System.arraycopy(str, 0, buf, base + emptySlot, str.length);
 					emptySlot += str.length + 1;
-				} else { // write data
-					out.write(str);
-					if (str.length < 4) // write padding
-						for (int i = 0; i < 4 - str.length; i++)
-							// shouldn't be a stopper
-							out.write(0);
-				}
+				} else
+					System.arraycopy(str, 0, buf, dir + 8, str.length);
 			} else {
-				Object[] vs = e.getValues(); // can vs be null ? or have length
-												// 0
-				out.write(n2s(vs.length, 4));
+				int count = e.getCount();
+				n2s(buf, dir + 4, count, 4);
 				int tlen = TYPELENGTH[type - 1];
-				if (vs.length * tlen > 4) {
-					out.write(n2s(emptySlot, 4));
-					// boolean signed = (type == SBYTE || type >= SSHORT);
+				int vpos = dir + 8;
+				if (count * tlen > 4) {
+					n2s(buf, dir + 8, emptySlot, 4);
+					vpos = base + emptySlot;
+					emptySlot += count * tlen;
+				}
+				byte[] bytes = e.getByteArray();
+				int[] ints = e.getIntArray();
+				boolean rational = (type == RATIONAL || type == SRATIONAL);
+				if (bytes != null)
+					System.arraycopy(bytes, 0, buf, vpos, bytes.length);
+				else if (ints != null) {
+					int vlen = rational ? 4 : tlen;
+					for (int i = 0; i < ints.length; i++, vpos += vlen)
+						n2s(buf, vpos, ints[i], vlen);
+				} else {
+					Object[] vs = e.getValues();
 					for (int i = 0; i < vs.length; i++) {
-						if (type == RATIONAL || type == SRATIONAL) {
-							buf.write(n2s(((Rational) vs[i]).getNum(), 4));
-							buf.write(n2s(((Rational) vs[i]).getDen(), 4));
-							emptySlot += 8;
+						if (rational) {
+							n2s(buf, vpos, ((Rational) vs[i]).getNum(), 4);
+							n2s(buf, vpos + 4, ((Rational) vs[i]).getDen(), 4);
+							vpos += 8;
 						} else {
-							buf.write(n2s(((Integer) vs[i]).intValue(), tlen));
-							emptySlot += tlen;
+							n2s(buf, vpos, ((Integer) vs[i]).intValue(), tlen);
+							vpos += tlen;
 						}
 					}
-				} else {
-					for (int i = 0; i < vs.length; i++)
-						out.write(n2s(((Integer) vs[i]).intValue(), tlen));
-					if (vs.length * tlen < 4)
-						for (int i = 0; i < 4 - vs.length * tlen; i++)
-							// shouldn't be a stopper
-							out.write(0);
 				}
 			}
+			dir += DIR_ENTRY_SIZE;
 		}
 
 		// Write Thumbmnail offset and length if found
-		if (foundJpegThumbnailTag) {
-			int length = getThumbnailLength();
-			int jpeg_offset = getThumbnailOffset() + 4;
-			// Not doing any validity checks. Validation and correction should
-			// have been done by calling correctThumbnailTags
-			try {
-				int l = buf.size();
-				boolean copyThumbnail = true;
-				if ((options & LLJTran.OPT_XFORM_THUMBNAIL) != 0
-						&& op != LLJTran.NONE && op != LLJTran.CROP) {
-					LLJTran ljt = null;
-					try {
-						ByteArrayInputStream tis = new ByteArrayInputStream(
-								markerData, jpeg_offset, length);
-						ljt = new LLJTran(tis);
-						ljt.read(LLJTran.READ_ALL, false);
-						ljt.transform(op, 0);
-						copyThumbnail = false;
-						tis = null;
-					} catch (Throwable e) {
-						if (Log.debugLevel >= Log.LEVEL_WARNING) {
-							android.util.Log.w(FORMAT,
-									"Warning: Unable to Transform Thumbnail, will write it unchanged: "
-											+ e.getMessage());
-							e.printStackTrace(System.err);
-						}
-					}
-
-					// Hope there won't be an exception just now
-					if (!copyThumbnail)
-						ljt.save(buf, 0);
-				}
-
-				if (copyThumbnail)
-					buf.write(markerData, jpeg_offset, length);
-				l = buf.size() - l;
-				Entry ent = getTagValue(JPEGINTERCHANGEFORMATLENGTH, false);
-				if (ent != null)
-					ent.setValue(0, Integer.valueOf(l));
-				out.write(n2s(JPEGINTERCHANGEFORMATLENGTH, 2));
-				out.write(n2s(LONG, 2));
-				out.write(n2s(1, 4));
-				out.write(n2s(l, 4));
-				ent = getTagValue(JPEGINTERCHANGEFORMAT, false);
-				ent.setValue(0, Integer.valueOf(emptySlot));
-				out.write(n2s(JPEGINTERCHANGEFORMAT, 2));
-				out.write(n2s(ent.getType(), 2));
-				out.write(n2s(1, 4));
-				out.write(n2s(emptySlot, 4));
-				emptySlot += l;
-			} catch (Throwable t) {
-				if (Log.debugLevel >= Log.LEVEL_ERROR)
-					t.printStackTrace();
-			}
-		} else if (foundBmpThumbnailTag) {
-			int length = getThumbnailLength();
-			int offset = getThumbnailOffset() + 4;
-			// Not doing any validity checks. Validation and correction should
-			// have been done by calling correctThumbnailTags
-			try {
-				int l = buf.size();
-				buf.write(markerData, offset, length);
-				l = buf.size() - l;
-
-				Entry ent = getTagValue(STRIPBYTECOUNTS, false);
-				if (ent != null)
-					ent.setValue(0, Integer.valueOf(l));
-				out.write(n2s(STRIPBYTECOUNTS, 2));
-				out.write(n2s(LONG, 2));
-				out.write(n2s(1, 4));
-				out.write(n2s(l, 4));
-				ent = getTagValue(STRIPOFFSETS, false);
-				ent.setValue(0, Integer.valueOf(emptySlot));
-				out.write(n2s(STRIPOFFSETS, 2));
-				out.write(n2s(ent.getType(), 2));
-				out.write(n2s(1, 4));
-				out.write(n2s(emptySlot, 4));
-				emptySlot += l;
-			} catch (Throwable t) {
-				if (Log.debugLevel >= Log.LEVEL_ERROR)
-					t.printStackTrace();
+		if (foundJpegThumbnailTag || foundBmpThumbnailTag) {
+			int lengthTag = JPEGINTERCHANGEFORMATLENGTH;
+			int offsetTag = JPEGINTERCHANGEFORMAT;
+			if (!foundJpegThumbnailTag) {
+				lengthTag = STRIPBYTECOUNTS;
+				offsetTag = STRIPOFFSETS;
 			}
+			int l = thumbnailLength;
+			System.arraycopy(thumbnailData, thumbnailOffset, buf, base
+					+ emptySlot, l);
+			Entry ent = getTagValue(lengthTag, false);
+			if (ent != null)
+				ent.setValue(0, Integer.valueOf(l));
+			n2s(buf, dir, lengthTag, 2);
+			n2s(buf, dir + 2, LONG, 2);
+			n2s(buf, dir + 4, 1, 4);
+			n2s(buf, dir + 8, l, 4);
+			dir += DIR_ENTRY_SIZE;
+			ent = getTagValue(offsetTag, false);
+			ent.setValue(0, Integer.valueOf(emptySlot));
+			n2s(buf, dir, offsetTag, 2);
+			n2s(buf, dir + 2, ent.getType(), 2);
+			n2s(buf, dir + 4, 1, 4);
+			n2s(buf, dir + 8, emptySlot, 4);
+			dir += DIR_ENTRY_SIZE;
+			emptySlot += l;
 		}
 
 		// write IFDs
 		IFD[] ifds = ifd.getIFDs();
 		for (int k = 0; ifds != null && k < ifds.length;) {
 			IFD ifd1 = ifds[k];
-			out.write(n2s(ifd1.getTag(), 2));
-			out.write(n2s(ifd1.getType(), 2));
+			n2s(buf, dir, ifd1.getTag(), 2);
+			n2s(buf, dir + 2, ifd1.getType(), 2);
 			if (ifd1.getTag() == MAKERNOTE && makerNoteHandler != null) {
+				ArrayOutput out = new ArrayOutput();
+				out.buf = buf;
+				out.pos = dir + 4;
 				makerNoteHandler.save(out, this, ifd1);
 			} else {
-				out.write(n2s(1, 4));
+				n2s(buf, dir + 4, 1, 4);
 			}
-			out.write(n2s(emptySlot, 4));
+			n2s(buf, dir + 8, emptySlot, 4);
+			dir += DIR_ENTRY_SIZE;
 			k++;
 			// Passing the isLast parameter for below call assumes that there
 			// are no null entries in SubIfds
-			emptySlot = writeIfd(markerData, buf, emptySlot, ifd1, op, options,
-					(k == ifds.length), encoding);
+			emptySlot = writeIfd(buf, emptySlot, ifd1, (k == ifds.length));
 		}
 		// next IFD
-		out.write(n2s(isLast ? 0 : emptySlot, 4));
-		// write data
-		buf.writeTo(out);
+		n2s(buf, nextPos, isLast ? 0 : emptySlot, 4);
 
 		return emptySlot;
 	}
@@ -1319,6 +1441,7 @@ public class Exif extends AbstractImageInfo<LLJTran> {
 	}
 
 	protected void processAllIFDs() {
+		tagIndex = null;
 		int iifd = 0;
 		for (int i = firstIFD(); i > FIRST_IFD_OFF && iifd < 2; i = nextIFD(i)) {
 			ifds[iifd] = new IFD(iifd);
@@ -1329,9 +1452,12 @@ public class Exif extends AbstractImageInfo<LLJTran> {
 			}
 			iifd++;
 		}
+		// Maker note handlers could have looked up tags while loading
+		tagIndex = null;
 	}
 
 	public void storeIFD(int ifdoffset, IFD ifd) throws IFDParsingException {
+		tagIndex = null;
 		int entries = s2n(ifdoffset, 2);
 		checkIFDConsistence(ifd, entries);
 		// System.err.println("Store off " + ifdoffset + " tag " +
@@ -1351,14 +1477,9 @@ public class Exif extends AbstractImageInfo<LLJTran> {
 			// type + " len " + count + " off " + offset);
 			if (type == ASCII) {
 				// Special case: zero-terminated ASCII string
-				try {
-					ifd.addEntry(tag, new Entry(type, new String(data, offset,
-							count - 1, "US-ASCII")));
-				} catch (UnsupportedEncodingException e) {
-					if (Log.debugLevel >= Log.LEVEL_ERROR)
-						android.util.Log
-								.e(FORMAT, "storeIFD: getString() " + e);
-				}
+				Entry e = readString(offset, count);
+				if (e != null)
+					ifd.addEntry(tag, e);
 			} else {
 				if (tag == MAKERNOTE) {
 					makerNoteHandler = MakerNoteHandlerFactory.getHandler(
@@ -1400,33 +1521,533 @@ public class Exif extends AbstractImageInfo<LLJTran> {
 
 	public void storeValue(IFD ifd, int tag, int type, int offset, int count,
 			int typelen) {
-		Object[] values = new Object[count];
+		if (count <= 0)
+			return;
+		Entry values = readEntry(type, offset, count, typelen);
+		// Recent Fujifilm and Toshiba cameras have a little subdirectory
+		// here, pointed to by tag 0xA005. Apparently, it's the
+		// "Interoperability IFD", defined in Exif 2.1.
+		if (isSubIFDTag(tag) && values.getInt(0) > 0) {
+			IFD iifd;
+			try {
+				storeIFD(values.getInt(0) + FIRST_IFD_OFF,
+						iifd = new IFD(tag, type));
+				ifd.addIFD(iifd);
+			} catch (IFDParsingException e) {
+				if (Log.debugLevel >= Log.LEVEL_WARNING)
+					android.util.Log.w(FORMAT, "Warning: " + e.getMessage());
+			}
+		} else
+			// by Kirill
+			ifd.addEntry(tag, values);
+	}
+
+	private static boolean isSubIFDTag(int tag) {
+		return tag == EXIFOFFSET || tag == INTEROPERABILITYOFFSET
+				|| tag == GPSINFO;
+	}
+
+	// Reads the values into the primitive array of an Entry
+	private Entry readEntry(int type, int offset, int count, int typelen) {
+		if (typelen == 1) {
+			byte[] values = new byte[count];
+			System.arraycopy(data, offset, values, 0, count);
+			return new Entry(type, values);
+		}
 		boolean signed = (type == SBYTE || type >= SSHORT);
-		for (int j = 0; j < count; j++) {
-			if (type == RATIONAL || type == SRATIONAL)
-				values[j] = new Rational(s2n(offset, 4, signed), s2n(
-						offset + 4, 4, signed));
-			else
-				// Not a fraction
-				values[j] = Integer.valueOf(s2n(offset, typelen, signed));
-			offset += typelen;
-			// Recent Fujifilm and Toshiba cameras have a little subdirectory
-			// here, pointed to by tag 0xA005. Apparently, it's the
-			// "Interoperability IFD", defined in Exif 2.1.
-			if ((tag == EXIFOFFSET || tag == INTEROPERABILITYOFFSET || tag == GPSINFO)
-					&& j == 0 && ((Integer) values[0]).intValue() > 0) {
-				IFD iifd;
-				try {
-					storeIFD(((Integer) values[0]).intValue() + FIRST_IFD_OFF,
-							iifd = new IFD(tag, type));
-					ifd.addIFD(iifd);
-				} catch (IFDParsingException e) {
-					if (Log.debugLevel >= Log.LEVEL_WARNING)
-						android.util.Log
-								.w(FORMAT, "Warning: " + e.getMessage());
+		int[] values;
+		if (type == RATIONAL || type == SRATIONAL) {
+			values = new int[2 * count];
+			for (int j = 0; j < values.length; j++, offset += 4)
+				values[j] = s2n(offset, 4, signed);
+		} else {
+			values = new int[count];
+			for (int j = 0; j < count; j++, offset += typelen)
+				values[j] = s2n(offset, typelen, signed);
+		}
+		return new Entry(type, values);
+	}
+
+	private Entry readString(int offset, int count) {
+		try {
+			return new Entry(ASCII, new String(data, offset, count - 1,
+					"US-ASCII"));
+		} catch (UnsupportedEncodingException e) {
+			if (Log.debugLevel >= Log.LEVEL_ERROR)
+				android.util.Log.e(FORMAT, "storeIFD: getString() " + e);
+		}
+		return null;
+	}
+
+	// Index of the entries of an IFD for the lazy mode. The entries of the
+	// IFD are start till end in the lazy arrays.
+	private static class LazyIfd {
+		int tag;
+		int start, end;
+		LazyIfd[] children;
+	}
+
+	/**
+	 * Indexes the entries of the IFDs without decoding their values for the
+	 * lazy mode. Values are decoded by getTagValue when first asked for and
+	 * the IFDs are built only when the Exif is modified or written.
+	 * 
+	 * @see LLJTran#setLazyImageInfo(boolean)
+	 */
+	protected void indexAllIFDs() {
+		tagIndex = null;
+		lazyIfds = new LazyIfd[2];
+		lazyTags = new int[64];
+		lazyTypes = new int[64];
+		lazyCounts = new int[64];
+		lazyOffsets = new int[64];
+		lazyCount = 0;
+		int iifd = 0;
+		for (int i = firstIFD(); i > FIRST_IFD_OFF && iifd < 2; i = nextIFD(i)) {
+			lazyIfds[iifd] = indexIFD(i, iifd);
+			iifd++;
+		}
+		lazyEntries = new Entry[lazyCount];
+		// Maker notes are decoded only while building the IFDs
+		if (getTagValue(MAKERNOTE, true) != null
+				&& MakerNoteHandlerFactory.getHandler(getMake(), getModel()) != null)
+			buildIFDs();
+	}
+
+	private LazyIfd indexIFD(int ifdoffset, int tag) {
+		LazyIfd ifd = new LazyIfd();
+		ifd.tag = tag;
+		ifd.start = lazyCount;
+		int entries = s2n(ifdoffset, 2);
+		if (tag == INTEROPERABILITYOFFSET && entries > 5) {
+			if (Log.debugLevel >= Log.LEVEL_WARNING)
+				android.util.Log.w(FORMAT, "Warning: Too many entries ("
+						+ entries + ") for tag " + tag
+						+ ". Should not be more than 5.");
+			return null;
+		}
+		int subIfds[] = null, numSubIfds = 0;
+		for (int i = 0; i < entries; i++) {
+			int entry = ifdoffset + 2 + DIR_ENTRY_SIZE * i;
+			int entryTag = s2n(entry, 2);
+			int type = s2n(entry + 2, 2);
+			if (type < 1 || type > 10)
+				continue; // not handled
+			int count = s2n(entry + 4, 4);
+			int offset = entry + 8;
+			if (count * TYPELENGTH[type - 1] > 4)
+				offset = s2n(offset, 4) + FIRST_IFD_OFF;
+			if (type != ASCII) {
+				if (count <= 0)
+					continue;
+				if (isSubIFDTag(entryTag)
+						&& s2n(offset, TYPELENGTH[type - 1], false) > 0) {
+					if (subIfds == null)
+						subIfds = new int[entries];
+					subIfds[numSubIfds++] = entry;
+					continue;
+				}
+			}
+			if (lazyCount == lazyTags.length) {
+				int newLen = lazyCount * 2;
+				int newTags[] = new int[newLen];
+				int newTypes[] = new int[newLen];
+				int newCounts[] = new int[newLen];
+				int newOffsets[] = new int[newLen];
+				System.arraycopy(lazyTags, 0, newTags, 0, lazyCount);
+				System.arraycopy(lazyTypes, 0, newTypes, 0, lazyCount);
+				System.arraycopy(lazyCounts, 0, newCounts, 0, lazyCount);
+				System.arraycopy(lazyOffsets, 0, newOffsets, 0, lazyCount);
+				lazyTags = newTags;
+				lazyTypes = newTypes;
+				lazyCounts = newCounts;
+				lazyOffsets = newOffsets;
+			}
+			lazyTags[lazyCount] = entryTag;
+			lazyTypes[lazyCount] = type;
+			lazyCounts[lazyCount] = count;
+			lazyOffsets[lazyCount] = offset;
+			lazyCount++;
+		}
+		ifd.end = lazyCount;
+		ifd.children = new LazyIfd[numSubIfds];
+		int numChildren = 0;
+		for (int i = 0; i < numSubIfds; i++) {
+			int entry = subIfds[i];
+			int type = s2n(entry + 2, 2);
+			int offset = entry + 8;
+			if (s2n(entry + 4, 4) * TYPELENGTH[type - 1] > 4)
+				offset = s2n(offset, 4) + FIRST_IFD_OFF;
+			LazyIfd child = indexIFD(s2n(offset, TYPELENGTH[type - 1], false)
+					+ FIRST_IFD_OFF, s2n(entry, 2));
+			if (child != null)
+				ifd.children[numChildren++] = child;
+		}
+		if (numChildren < numSubIfds) {
+			LazyIfd children[] = new LazyIfd[numChildren];
+			System.arraycopy(ifd.children, 0, children, 0, numChildren);
+			ifd.children = children;
+		}
+		return ifd;
+	}
+
+	// Looks up tag the same way as IFD.getEntry decoding the Entry if not
+	// done before
+	private Entry getLazyEntry(LazyIfd ifd, int tag, int subTag) {
+		for (int i = ifd.start; i < ifd.end; i++)
+			if (lazyTags[i] == tag)
+				return getLazyEntry(i);
+		Entry result = null;
+		for (int i = 0; result == null && i < ifd.children.length; i++)
+			if (subTag <= 0 || ifd.children[i].tag == subTag)
+				result = getLazyEntry(ifd.children[i], tag, -1);
+		return result;
+	}
+
+	private Entry getLazyEntry(int i) {
+		if (lazyEntries[i] == null) {
+			int type = lazyTypes[i];
+			lazyEntries[i] = type == ASCII ? readString(lazyOffsets[i],
+					lazyCounts[i]) : readEntry(type, lazyOffsets[i],
+					lazyCounts[i], TYPELENGTH[type - 1]);
+		}
+		return lazyEntries[i];
+	}
+
+	// Flattened index of the tags of an IFD and its sub IFDs sorted by tag.
+	// A tag present in more than one IFD maps to the one found first by
+	// IFD.getEntry
+	private static class TagIndex {
+		int[] tags = new int[32];
+		// Entries for the tags or the slots in the lazy arrays in the lazy
+		// mode
+		Entry[] entries = new Entry[32];
+		int[] slots = new int[32];
+		int count;
+
+		void add(IFD ifd) {
+			for (int i = 0; i < ifd.getEntryCount(); i++)
+				add(ifd.getEntryTag(i), ifd.getEntryAt(i), -1);
+			IFD[] subIfds = ifd.getIFDs();
+			for (int i = 0; subIfds != null && i < subIfds.length; i++)
+				add(subIfds[i]);
+		}
+
+		void add(LazyIfd ifd, int[] lazyTags) {
+			for (int i = ifd.start; i < ifd.end; i++)
+				add(lazyTags[i], null, i);
+			for (int i = 0; i < ifd.children.length; i++)
+				add(ifd.children[i], lazyTags);
+		}
+
+		private void add(int tag, Entry entry, int slot) {
+			if (count == tags.length) {
+				int newTags[] = new int[count * 2];
+				Entry newEntries[] = new Entry[count * 2];
+				int newSlots[] = new int[count * 2];
+				System.arraycopy(tags, 0, newTags, 0, count);
+				System.arraycopy(entries, 0, newEntries, 0, count);
+				System.arraycopy(slots, 0, newSlots, 0, count);
+				tags = newTags;
+				entries = newEntries;
+				slots = newSlots;
+			}
+			tags[count] = tag;
+			entries[count] = entry;
+			slots[count] = slot;
+			count++;
+		}
+
+		// Sorts by tag keeping the first of the duplicates
+		void sort() {
+			long keys[] = new long[count];
+			for (int i = 0; i < count; i++)
+				keys[i] = ((long) tags[i] << 32) | i;
+			Arrays.sort(keys);
+			int newTags[] = new int[count];
+			Entry newEntries[] = new Entry[count];
+			int newSlots[] = new int[count];
+			int n = 0;
+			for (int i = 0; i < count; i++) {
+				int tag = (int) (keys[i] >>> 32), j = (int) keys[i];
+				if (n > 0 && newTags[n - 1] == tag)
+					continue;
+				newTags[n] = tag;
+				newEntries[n] = entries[j];
+				newSlots[n] = slots[j];
+				n++;
+			}
+			tags = newTags;
+			entries = newEntries;
+			slots = newSlots;
+			count = n;
+		}
+
+		int find(int tag) {
+			int low = 0, high = count - 1;
+			while (low <= high) {
+				int mid = (low + high) >>> 1;
+				if (tags[mid] < tag)
+					low = mid + 1;
+				else if (tags[mid] > tag)
+					high = mid - 1;
+				else
+					return mid;
+			}
+			return -1;
+		}
+	}
+
+	private TagIndex getTagIndex(boolean main) {
+		if (tagIndex == null)
+			tagIndex = new TagIndex[2];
+		int k = main ? 0 : 1;
+		if (tagIndex[k] == null) {
+			TagIndex index = new TagIndex();
+			if (lazyIfds != null) {
+				if (lazyIfds[k] != null)
+					index.add(lazyIfds[k], lazyTags);
+			} else if (ifds[k] != null)
+				index.add(ifds[k]);
+			index.sort();
+			tagIndex[k] = index;
+		}
+		return tagIndex[k];
+	}
+
+	/**
+	 * Gets the tags read for the TagProjection set on the LLJTran which read
+	 * this Exif.
+	 * 
+	 * @return The tags read or null if no TagProjection was set
+	 * @see LLJTran#setTagProjection(TagProjection)
+	 */
+	public ProjectedTags getProjectedTags() {
+		return projectedTags;
+	}
+
+	/**
+	 * Reads the tags requested by a projection into projectedTags. Sub IFDs
+	 * not having any of the pending tags are skipped and the walk stops once
+	 * all the tags are found.
+	 */
+	protected void projectIFDs(TagProjection projection) {
+		projectedTags = new ProjectedTags();
+		boolean done[] = new boolean[projection.count];
+		int iifd = 0;
+		for (int i = firstIFD(); i > FIRST_IFD_OFF && iifd < 2; i = nextIFD(i)) {
+			if (isProjectionPending(projection, done, iifd == 0, 0))
+				projectIFD(projection, done, i, iifd == 0, iifd, 0);
+			iifd++;
+		}
+		correctProjectedThumbnail();
+	}
+
+	// Corrects or removes the projected Thumbnail tags in the same way as
+	// correctThumbnailTags does when the IFDs are built
+	private void correctProjectedThumbnail() {
+		boolean projected = false;
+		for (int i = 0; i < projectedTags.getCount() && !projected; i++) {
+			int tag = projectedTags.getTag(i);
+			projected = !projectedTags.isMain(i)
+					&& projectedTags.getSubTag(i) == 0
+					&& (isThumbnailTag(tag) || tag == PHOTOMETRICINTERPRETATION);
+		}
+		int ifdoffset = firstIFD();
+		if (!projected || ifdoffset <= FIRST_IFD_OFF
+				|| (ifdoffset = nextIFD(ifdoffset)) <= FIRST_IFD_OFF)
+			return;
+
+		// Offset and length tags in the order they are looked for
+		int thumbTags[] = { JPEGINTERCHANGEFORMAT, STRIPOFFSETS,
+				JPEGINTERCHANGEFORMATLENGTH, STRIPBYTECOUNTS };
+		int values[] = new int[thumbTags.length];
+		boolean present[] = new boolean[thumbTags.length];
+		int entries = s2n(ifdoffset, 2);
+		for (int i = 0; i < entries; i++) {
+			int entry = ifdoffset + 2 + DIR_ENTRY_SIZE * i;
+			int entryTag = s2n(entry, 2);
+			int type = s2n(entry + 2, 2);
+			int count = s2n(entry + 4, 4);
+			if (type < 1 || type > 10 || type == ASCII || count <= 0)
+				continue;
+			int typelen = TYPELENGTH[type - 1];
+			if (typelen > 4)
+				continue;
+			int offset = entry + 8;
+			if (count * typelen > 4)
+				offset = s2n(offset, 4) + FIRST_IFD_OFF;
+			for (int k = 0; k < thumbTags.length; k++)
+				if (thumbTags[k] == entryTag && !present[k]) {
+					values[k] = s2n(offset, typelen, type == SBYTE
+							|| type >= SSHORT);
+					present[k] = true;
+				}
+		}
+		if (!present[0] && !present[1] && !present[2] && !present[3])
+			return;
+		int offsetTag = present[0] ? JPEGINTERCHANGEFORMAT : STRIPOFFSETS;
+		int lengthTag = present[2] ? JPEGINTERCHANGEFORMATLENGTH
+				: STRIPBYTECOUNTS;
+		int thumb[] = { present[0] ? values[0] : values[1],
+				present[2] ? values[2] : values[3] };
+		String msg = checkThumbnail(data, 0, present[0] || present[2], thumb);
+		if (msg == null)
+			return;
+		for (int i = projectedTags.getCount() - 1; i >= 0; i--) {
+			if (projectedTags.isMain(i) || projectedTags.getSubTag(i) != 0)
+				continue;
+			int tag = projectedTags.getTag(i);
+			if (thumb[1] < 0) {
+				if (isThumbnailTag(tag) || tag == PHOTOMETRICINTERPRETATION)
+					projectedTags.remove(i);
+			} else if (tag == offsetTag)
+				projectedTags.setInt(i, 0, thumb[0]);
+			else if (tag == lengthTag)
+				projectedTags.setInt(i, 0, thumb[1]);
+		}
+	}
+
+	// Checks if any of the requests not done can be in the IFD. branch is
+	// the tag of the sub IFD of the main or Thumbnail IFD the IFD is under or
+	// 0 for the main or Thumbnail IFD itself
+	private static boolean isProjectionPending(TagProjection projection,
+			boolean done[], boolean main, int branch) {
+		for (int r = 0; r < projection.count; r++)
+			if (!done[r]
+					&& projection.mains[r] == main
+					&& (branch == 0 || projection.subTags[r] <= 0 || projection.subTags[r] == branch))
+				return true;
+		return false;
+	}
+
+	private void projectIFD(TagProjection projection, boolean done[],
+			int ifdoffset, boolean main, int tag, int branch) {
+		int entries = s2n(ifdoffset, 2);
+		if (tag == INTEROPERABILITYOFFSET && entries > 5) {
+			if (Log.debugLevel >= Log.LEVEL_WARNING)
+				android.util.Log.w(FORMAT, "Warning: Too many entries ("
+						+ entries + ") for tag " + tag
+						+ ". Should not be more than 5.");
+			return;
+		}
+		int subIfds[] = null, numSubIfds = 0;
+		for (int i = 0; i < entries; i++) {
+			int entry = ifdoffset + 2 + DIR_ENTRY_SIZE * i;
+			int entryTag = s2n(entry, 2);
+			int type = s2n(entry + 2, 2);
+			if (type < 1 || type > 10)
+				continue; // not handled
+			int typelen = TYPELENGTH[type - 1];
+			int count = s2n(entry + 4, 4);
+			int offset = entry + 8;
+			if (count * typelen > 4)
+				offset = s2n(offset, 4) + FIRST_IFD_OFF;
+			if (type != ASCII) {
+				if (count <= 0)
+					continue;
+				int subIfd = isSubIFDTag(entryTag) ? s2n(offset, typelen, false)
+						: 0;
+				if (subIfd > 0) {
+					if (subIfds == null)
+						subIfds = new int[2 * entries];
+					subIfds[numSubIfds++] = subIfd + FIRST_IFD_OFF;
+					subIfds[numSubIfds++] = entryTag;
+					continue;
 				}
-			} else if (j == 0) // by Kirill
-				ifd.addEntry(tag, new Entry(type, values));
+			}
+			boolean found = false;
+			for (int r = 0; r < projection.count; r++) {
+				if (done[r] || projection.mains[r] != main)
+					continue;
+				int reqTag = projection.tags[r], reqSubTag = projection.subTags[r];
+				if (reqTag == entryTag
+						&& (reqSubTag <= 0 || branch == 0 || reqSubTag == branch)) {
+					done[r] = true;
+					found = true;
+				} else if (reqTag == TagProjection.ALL_TAGS
+						&& reqSubTag == branch)
+					found = true;
+			}
+			if (found)
+				projectEntry(entryTag, branch, main, type, offset, count);
+		}
+		for (int i = 0; i < numSubIfds; i += 2) {
+			int offset = subIfds[i], subTag = subIfds[i + 1];
+			int subBranch = branch == 0 ? subTag : branch;
+			if (isProjectionPending(projection, done, main, subBranch))
+				projectIFD(projection, done, offset, main, subTag, subBranch);
+			if (branch == 0) {
+				// Only the first sub IFD with a tag is looked into
+				for (int r = 0; r < projection.count; r++)
+					if (projection.tags[r] == TagProjection.ALL_TAGS
+							&& projection.mains[r] == main
+							&& projection.subTags[r] == subTag)
+						done[r] = true;
+			}
+		}
+	}
+
+	private void projectEntry(int tag, int subTag, boolean main, int type,
+			int offset, int count) {
+		if (type == ASCII) {
+			Entry e = readString(offset, count);
+			projectedTags.add(tag, subTag, main, type, count,
+					e != null ? e.toString() : null);
+			return;
+		}
+		int pos = projectedTags.add(tag, subTag, main, type, count, null);
+		int values[] = projectedTags.values;
+		boolean signed = (type == SBYTE || type >= SSHORT);
+		int vlen = TYPELENGTH[type - 1];
+		if (type == RATIONAL || type == SRATIONAL) {
+			count *= 2;
+			vlen = 4;
+		}
+		for (int j = 0; j < count; j++, offset += vlen)
+			values[pos + j] = s2n(offset, vlen, signed);
+	}
+
+	/**
+	 * Builds the IFDs from the index in the lazy mode. The Entries already
+	 * decoded by getTagValue are retained so that any changes made to them
+	 * are kept.
+	 */
+	protected void buildIFDs() {
+		if (lazyIfds == null && !ifdsPending)
+			return;
+		LazyIfd lazy[] = lazyIfds;
+		boolean projected = ifdsPending;
+		// Entries are looked up from the IFDs being built from here on
+		lazyIfds = null;
+		ifdsPending = false;
+		ifds = new IFD[2];
+		processAllIFDs();
+		for (int i = 0; lazy != null && i < 2; i++)
+			if (lazy[i] != null && ifds[i] != null)
+				retainLazyEntries(lazy[i], ifds[i]);
+		tagIndex = null;
+		if (projected) {
+			// Skipped by readInfo
+			String msg = correctThumbnailTags(data, 0);
+			if (msg != null)
+				if (Log.debugLevel >= Log.LEVEL_WARNING)
+					android.util.Log.w(FORMAT, "Warning: Exif Read: " + msg);
+		}
+		data = null;
+		lazyEntries = null;
+		lazyTags = lazyTypes = lazyCounts = lazyOffsets = null;
+	}
+
+	private void retainLazyEntries(LazyIfd lazy, IFD ifd) {
+		for (int i = lazy.start; i < lazy.end; i++)
+			if (lazyEntries[i] != null)
+				ifd.addEntry(lazyTags[i], lazyEntries[i]);
+		for (int i = 0; i < lazy.children.length; i++) {
+			IFD child = ifd.getIFDs() != null ? ifd.getIFD(lazy.children[i].tag)
+					: null;
+			if (child != null)
+				retainLazyEntries(lazy.children[i], child);
 		}
 	}
 
@@ -1461,6 +2082,24 @@ public class Exif extends AbstractImageInfo<LLJTran> {
 
 	protected IFD[] ifds;
 
+	// Lazy mode index. lazyIfds is null once the IFDs are built
+	private LazyIfd[] lazyIfds;
+	private int[] lazyTags, lazyTypes, lazyCounts, lazyOffsets;
+	private int lazyCount;
+	private Entry[] lazyEntries;
+	// Index of the tags for getTagValue built on the first lookup
+	private TagIndex[] tagIndex;
+	// Set when reading with a TagProjection. The IFDs are then built from
+	// data when needed
+	private ProjectedTags projectedTags;
+	private boolean ifdsPending;
+	// Set by writeInfo for writeIfd. The encoded ASCII values in the order
+	// written and the Thumbnail
+	private byte[][] writeStrings;
+	private int numWriteStrings;
+	private byte[] thumbnailData;
+	private int thumbnailOffset, thumbnailLength;
+
 	// Due to the unusual "constructor calls read()" architecture,
 	// makerNoteHandler cannot be initialized to null here, because that would
 	// overwrite the value set by read()
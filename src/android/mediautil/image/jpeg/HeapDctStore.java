@@ -0,0 +1,62 @@
+/* MediaUtil LLJTran - $RCSfile: HeapDctStore.java,v $
+ * Copyright (C) 1999-2005 Dmitriy Rogatkin, Suresh Mahalingam.  All rights reserved.
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *  THIS SOFTWARE IS PROVIDED BY THE AUTHOR AND CONTRIBUTORS ``AS IS'' AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ *  IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ *  ARE DISCLAIMED. IN NO EVENT SHALL THE AUTHOR OR CONTRIBUTORS BE LIABLE FOR
+ *  ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *	$Id$
+ *
+ * Some ideas and algorithms were borrowed from:
+ * Thomas G. Lane, and James R. Weeks
+ */
+package android.mediautil.image.jpeg;
+
+/**
+ * DctStore keeping each packed row in a pair of int arrays on the heap.
+ */
+class HeapDctStore extends DctStore {
+	private int[][] coefs;
+	private int[][] blockEnds;
+
+	HeapDctStore(int widthMCU, int heightMCU, int blocksPerMCU) {
+		super(widthMCU, heightMCU, blocksPerMCU);
+		coefs = new int[heightMCU][];
+		blockEnds = new int[heightMCU][];
+	}
+
+	protected void putRow(int iy, int[] coefs, int len, int[] blockEnds) {
+		// Keep a copy trimmed to size
+		int rowCoefs[] = new int[len];
+		System.arraycopy(coefs, 0, rowCoefs, 0, len);
+		this.coefs[iy] = rowCoefs;
+		this.blockEnds[iy] = blockEnds;
+	}
+
+	boolean hasRow(int iy) {
+		return coefs[iy] != null;
+	}
+
+	void freeRow(int iy) {
+		coefs[iy] = null;
+		blockEnds[iy] = null;
+	}
+
+	int getBlock(int ix, int iy, int block, int[][] dct) {
+		return unpackBlock(coefs[iy], blockEnds[iy], ix * blocksPerMCU
+				+ block, dct);
+	}
+}
@@ -30,6 +30,10 @@ import java.util.Map;
 import java.util.SortedMap;
 import java.util.TreeMap;
 
+/**
+ * An Image File Directory. The entries are held sorted by tag in an int
+ * array with a parallel Entry array and are looked up by binary search.
+ */
 public class IFD extends Entry {
 	/**
 	 * 
@@ -42,35 +46,63 @@ public class IFD extends Entry {
 	public IFD(int tag, int type) {
 		super(type);
 		this.tag = tag;
-		entries = new TreeMap<Integer, Entry>();
+		tags = new int[8];
+		entries = new Entry[8];
 	}
 	
 	public void addEntry(int tag, Entry entry) {
-		entries.put(tag, entry);
+		int i = indexOf(tag);
+		if (i >= 0) {
+			entries[i] = entry;
+			return;
+		}
+		i = -i - 1;
+		if (numEntries == tags.length) {
+			int newTags[] = new int[numEntries * 2];
+			Entry newEntries[] = new Entry[numEntries * 2];
+			System.arraycopy(tags, 0, newTags, 0, numEntries);
+			System.arraycopy(entries, 0, newEntries, 0, numEntries);
+			tags = newTags;
+			entries = newEntries;
+		}
+		System.arraycopy(tags, i, tags, i + 1, numEntries - i);
+		System.arraycopy(entries, i, entries, i + 1, numEntries - i);
+		tags[i] = tag;
+		entries[i] = entry;
+		numEntries++;
 	}
 	
 	public void removeEntry(int tag) {
-		entries.remove(tag);
+		int i = indexOf(tag);
+		if (i >= 0) {
+			numEntries--;
+			System.arraycopy(tags, i + 1, tags, i, numEntries - i);
+			System.arraycopy(entries, i + 1, entries, i, numEntries - i);
+			entries[numEntries] = null;
+		}
 	}
 
 	public void addIFD(IFD ifd) {
-		IFD[] temp = ifds==null?new IFD[1]:new IFD[ifds.length+1];
-		temp[ifds==null?0:ifds.length] = ifd;
-		if (ifds != null)
-			System.arraycopy(ifds, 0, temp, 0, ifds.length);
-		ifds = temp;
+		if (ifds == null)
+			ifds = new IFD[1];
+		else if (numIfds == ifds.length) {
+			IFD[] temp = new IFD[numIfds * 2];
+			System.arraycopy(ifds, 0, temp, 0, numIfds);
+			ifds = temp;
+		}
+		ifds[numIfds++] = ifd;
 	}
 	
 	public Entry getEntry(int tag, int subTag) {
-		Entry result = entries.get(tag);
+		Entry result = getEntry(tag);
 		if (result != null)
 			return result;
 		if (subTag > 0) {
-			for (int i=0; i<ifds.length; i++)
+			for (int i=0; i<numIfds; i++)
 				if (ifds[i].getTag() == subTag)
 					return ifds[i].getEntry(tag, -1);
 		} else {
-			for (int i=0; ifds != null && i<ifds.length; i++) {
+			for (int i=0; i<numIfds; i++) {
 				result = ifds[i].getEntry(tag, -1);
 				if (result != null)
 					break;
@@ -78,9 +110,21 @@ public class IFD extends Entry {
 		}
 		return result;
 	}
+
+	/**
+	 * Gets an Entry of this IFD without looking into the sub IFDs.
+	 * 
+	 * @param tag
+	 *            Tag of the Entry
+	 * @return The Entry or null if not present
+	 */
+	public Entry getEntry(int tag) {
+		int i = indexOf(tag);
+		return i >= 0 ? entries[i] : null;
+	}
 	
 	public IFD getIFD(int tag) {
-		for (int i=0; i<ifds.length; i++)
+		for (int i=0; i<numIfds; i++)
 			if (ifds[i].getTag() == tag)
 				return ifds[i];
 		return null;
@@ -93,13 +137,14 @@ public class IFD extends Entry {
 	public Entry setEntry(int tag, int subTag, Entry value) {
 		Entry result = null;
 		if (subTag > 0) {
-			for (int i=0; i<ifds.length; i++)
+			for (int i=0; i<numIfds; i++)
 				if (ifds[i].getTag() == subTag)
 					return ifds[i].setEntry(tag, -1, value);
 		} else if (subTag == 0) {
-			result = entries.put(tag, value);
+			result = getEntry(tag);
+			addEntry(tag, value);
 		} else {
-			for (int i=0; i<ifds.length; i++) {
+			for (int i=0; i<numIfds; i++) {
 				result = ifds[i].getEntry(tag, -1);
 				if (result != null) {
 					ifds[i].setEntry(tag, 0, value);
@@ -109,16 +154,79 @@ public class IFD extends Entry {
 		}
 		return result;
 	}
-	
+
+	/**
+	 * Gets the number of entries of this IFD not counting the sub IFDs.
+	 * 
+	 * @return Number of entries
+	 */
+	public int getEntryCount() {
+		return numEntries;
+	}
+
+	/**
+	 * Gets the tag of an entry. The entries are in increasing order of tags.
+	 * 
+	 * @param index
+	 *            Index of the entry from 0 to getEntryCount() - 1
+	 * @return Tag of the entry
+	 */
+	public int getEntryTag(int index) {
+		return tags[index];
+	}
+
+	/**
+	 * Gets an entry by index.
+	 * 
+	 * @param index
+	 *            Index of the entry from 0 to getEntryCount() - 1
+	 * @return The entry
+	 * @see #getEntryTag(int)
+	 */
+	public Entry getEntryAt(int index) {
+		return entries[index];
+	}
+
+	/**
+	 * Gets the entries as a Map. The Map is a copy so changes made to it are
+	 * not reflected in the IFD.
+	 * 
+	 * @return Map of the entries by tag
+	 */
 	public Map<Integer, Entry> getEntries() {
-		return entries;
+		SortedMap<Integer, Entry> result = new TreeMap<Integer, Entry>();
+		for (int i = 0; i < numEntries; i++)
+			result.put(tags[i], entries[i]);
+		return result;
 	}
 	
 	public IFD[] getIFDs() {
+		if (ifds != null && ifds.length != numIfds) {
+			IFD[] temp = new IFD[numIfds];
+			System.arraycopy(ifds, 0, temp, 0, numIfds);
+			ifds = temp;
+		}
 		return ifds;
 	}
 
-	protected SortedMap<Integer, Entry> entries;
+	private int indexOf(int tag) {
+		int low = 0, high = numEntries - 1;
+		while (low <= high) {
+			int mid = (low + high) >>> 1;
+			if (tags[mid] < tag)
+				low = mid + 1;
+			else if (tags[mid] > tag)
+				high = mid - 1;
+			else
+				return mid;
+		}
+		return -(low + 1);
+	}
+
+	protected int[] tags;
+	protected Entry[] entries;
+	protected int numEntries;
 	protected IFD[] ifds;
+	protected int numIfds;
 	protected int tag;
 }
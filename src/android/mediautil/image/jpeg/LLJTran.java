@@ -31,14 +31,21 @@ import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.PushbackInputStream;
+import java.io.RandomAccessFile;
 import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import android.graphics.Rect;
 import android.mediautil.generic.BasicIo;
+import android.mediautil.generic.ByteBufferInputStream;
 import android.mediautil.generic.FileFormatException;
 import android.mediautil.generic.Log;
 import android.mediautil.generic.ProgressCallback;
@@ -70,6 +77,10 @@ class IterativeReadVars {
 	public int[][] DCT;
 	public int next_restart_num;
 	public int ix, iy;
+	// Image data read so far for the parallel decode
+	public byte[] scan;
+	public int scanLen, numStarts;
+	public int[] starts;
 }
 
 class IterativeWriteVars {
@@ -104,7 +115,7 @@ class IterativeWriteVars {
 
 	// initWriteDCT vars
 	public boolean transformDct;
-	public int[][][][][] new_dct_coefs;
+	public DctStore new_dct_coefs;
 
 	public double currentProgress, callbackProgress, progressPerMcu;
 	public int[] last_dc;
@@ -116,16 +127,20 @@ class IterativeWriteVars {
 	public boolean handleYEdge;
 	public int new_ix, new_iy;
 	public boolean pullDownMode;
+	// Set if the restart intervals are to be encoded in parallel
+	public boolean parallelWrite;
 
 	// For unused method writeJpeg
 	public boolean restoreVars;
 
-	// if transformDct true it indicates if full Dct array needs to be allocated
-	// or if the rows of old dct array can be reused.
+	// if transformDct true it indicates if the rows of the old dct
+	// coefficients can be freed as soon as they are used.
 	public boolean reuseDctRows = true;
 
 	public void freeMemory() {
 		huffTables = null;
+		if (new_dct_coefs != null)
+			new_dct_coefs.close();
 		new_dct_coefs = null;
 		last_dc = null;
 	}
@@ -202,6 +217,17 @@ public class LLJTran extends BasicJpegIo implements IterativeReader,
 	protected static final int DCTSIZE2 = 64;
 	protected static final int DCTSIZE = 8;
 	protected static final int BYTE_SIZE = 8;
+	// Number of bits resolved in one table probe by HuffDecoder
+	private static final int HUFF_LOOKAHEAD = 9;
+	// Size of HuffDecoder's bit buffer and the maximum number of bits that can
+	// be requested from it in one call
+	private static final int BIT_BUFF_SIZE = 64;
+	private static final int BIT_BUFF_MAX_REQUEST = 31;
+	// Size of chunks in which HuffDecoder reads its input
+	private static final int DECODER_CHUNK_SIZE = 4096;
+	// Estimate of the average heap used by the coefficients of a block for
+	// deciding whether they fit in the dct heap budget
+	private static final int ESTIMATED_BLOCK_BYTES = 64;
 
 	/**
 	 * Identifies that no part of the Image has been read successfully. Not a
@@ -314,6 +340,17 @@ public class LLJTran extends BasicJpegIo implements IterativeReader,
 	 * the image after transformation.
 	 */
 	public final static int OPT_XFORM_ORIENTATION = 0x10;
+	/**
+	 * Flag to specify that the Jpeg Thumbnail in the Image header information
+	 * (Exif) should be replaced by a new Thumbnail of about 160x120 created
+	 * from the DC coefficients of the transformed image. This is faster than
+	 * transforming the existing Thumbnail using OPT_XFORM_THUMBNAIL, works
+	 * for any Thumbnail and also for CROP. It takes precedence over
+	 * OPT_XFORM_THUMBNAIL and requires OPT_XFORM_APPX. An existing Jpeg
+	 * Thumbnail is required. Not supported by streamTransform since the
+	 * coefficients are not available before writing.
+	 */
+	public final static int OPT_XFORM_THUMBNAIL_FROM_DC = 0x20;
 	/**
 	 * Flag to specify that the App markers should be written when saving the
 	 * image
@@ -411,7 +448,7 @@ public class LLJTran extends BasicJpegIo implements IterativeReader,
 			63, 63, 63, 63, 63, 63, 63, 63 };
 
 	// Borrowed from jcparam.c in libjpeg 6b
-	private static final byte stdHuffTables[] = {
+	static final byte stdHuffTables[] = {
 			0, // Code to indicate DC Table 0(Luminance). Below are entries
 				// #Symbols of lengths 1-16
 			0,
@@ -702,6 +739,19 @@ public class LLJTran extends BasicJpegIo implements IterativeReader,
 		writeProgressCallback = null;
 	}
 
+	/**
+	 * Constructor.
+	 * 
+	 * @param buffer
+	 *            Source to read the image from its current position. The
+	 *            position of buffer is not changed. Image data in a buffer
+	 *            backed by an array is decoded directly from the array and
+	 *            skipping input is a seek within the buffer.
+	 */
+	public LLJTran(ByteBuffer buffer) {
+		this(new ByteBufferInputStream(buffer));
+	}
+
 	/**
 	 * Resets the input for loading the image. This method is mainly for loading
 	 * the image after reading upto READ_INFO and closing the input. false can
@@ -728,6 +778,8 @@ public class LLJTran extends BasicJpegIo implements IterativeReader,
 		} else
 			file = null;
 		closeInternalInputStream();
+		// A previous input stream is left open for the caller to close
+		currentStream = null;
 		this.inStream = inStream;
 		readUpto = READ_NONE;
 		unprocessed_marker = 0;
@@ -752,6 +804,7 @@ public class LLJTran extends BasicJpegIo implements IterativeReader,
 			throw new RuntimeException(
 					"Restting Input not allowed if current input read beyond READ_INFO");
 		closeInternalInputStream();
+		currentStream = null;
 		this.file = file;
 		inStream = null;
 		readUpto = READ_NONE;
@@ -884,11 +937,14 @@ public class LLJTran extends BasicJpegIo implements IterativeReader,
 						return inStream;
 					else
 						valid = false;
+				} else if (mapInput) {
+					return new ByteBufferInputStream(ByteBufferInputStream
+							.map(file));
 				} else {
 					return new BufferedInputStream(new FileInputStream(file));
 				}
 			}
-		} catch (FileNotFoundException e) {
+		} catch (IOException e) {
 			valid = false;
 		}
 		return null;
@@ -978,6 +1034,453 @@ public class LLJTran extends BasicJpegIo implements IterativeReader,
 		return writeProgressCallback;
 	}
 
+	/**
+	 * Sets the number of threads to use for decoding the image data when
+	 * reading the image. This is effective only for images with restart
+	 * markers whose restart intervals can be decoded independently. In this
+	 * case the image data is held in memory as it is read by the nextRead
+	 * calls and is decoded in the nextRead call which reads the last of it.
+	 * The default is 1 which decodes the image data in the calling thread as
+	 * it is read.
+	 * 
+	 * @param numThreads
+	 *            Number of threads including the calling thread
+	 */
+	public void setReadThreads(int numThreads) {
+		if (numThreads < 1)
+			throw new IllegalArgumentException("Invalid number of threads: "
+					+ numThreads);
+		readThreads = numThreads;
+	}
+
+	/**
+	 * Gets the number of threads used for decoding the image data.
+	 * 
+	 * @return Number of threads used for decoding the image data
+	 * @see #setReadThreads(int)
+	 */
+	public int getReadThreads() {
+		return readThreads;
+	}
+
+	/**
+	 * Sets the number of threads to use for encoding the image data when
+	 * writing the image. This is effective only when a restart interval is
+	 * passed for writing since the restart intervals can be encoded
+	 * independently. Groups of restart intervals are encoded in parallel and
+	 * written out in order, so the output is the same as with one thread. It
+	 * is not used in pullDownMode or while gathering the statistics for
+	 * OPT_WRITE_OPTIMIZE_HUFF. The default is 1 which encodes the image data
+	 * in the calling thread.
+	 * 
+	 * @param numThreads
+	 *            Number of threads including the calling thread
+	 */
+	public void setWriteThreads(int numThreads) {
+		if (numThreads < 1)
+			throw new IllegalArgumentException("Invalid number of threads: "
+					+ numThreads);
+		writeThreads = numThreads;
+	}
+
+	/**
+	 * Gets the number of threads used for encoding the image data.
+	 * 
+	 * @return Number of threads used for encoding the image data
+	 * @see #setWriteThreads(int)
+	 */
+	public int getWriteThreads() {
+		return writeThreads;
+	}
+
+	/**
+	 * Sets the heap budget for the DCT coefficients of the image. If the
+	 * coefficients of an image being read or transformed are estimated to
+	 * need more than this, they are kept in a memory mapped temporary file
+	 * instead. The estimate assumes about 64 bytes per 8x8 block. The default
+	 * is half the maximum heap size. Takes effect for the next read or
+	 * transform.
+	 * 
+	 * @param budget
+	 *            Heap budget in bytes. Pass 0 to always use a temporary file
+	 *            and Long.MAX_VALUE to never use one.
+	 * @see #setTempDirectory(File)
+	 */
+	public void setDctHeapBudget(long budget) {
+		dctHeapBudget = budget;
+	}
+
+	/**
+	 * Gets the heap budget for the DCT coefficients of the image.
+	 * 
+	 * @return Heap budget in bytes
+	 * @see #setDctHeapBudget(long)
+	 */
+	public long getDctHeapBudget() {
+		return dctHeapBudget;
+	}
+
+	/**
+	 * Sets the directory in which temporary files holding DCT coefficients
+	 * which do not fit in the heap budget are created.
+	 * 
+	 * @param dir
+	 *            The directory or null for the default temporary directory
+	 * @see #setDctHeapBudget(long)
+	 */
+	public void setTempDirectory(File dir) {
+		tempDirectory = dir;
+	}
+
+	/**
+	 * Gets the directory in which temporary files are created.
+	 * 
+	 * @return The directory or null if the default temporary directory is used
+	 */
+	public File getTempDirectory() {
+		return tempDirectory;
+	}
+
+	/**
+	 * Sets if only the DC coefficients are to be kept while reading the
+	 * image. The AC coefficients still have to be decoded but are not stored
+	 * which makes the read faster and needs much less memory. This is useful
+	 * if only a preview of the image is required. The image cannot be
+	 * transformed or saved if read this way. Takes effect for the next read.
+	 *
+	 * @param dcOnly
+	 *            true to keep only the DC coefficients
+	 * @see #getPreviewPixels()
+	 */
+	public void setDcOnly(boolean dcOnly) {
+		this.dcOnly = dcOnly;
+	}
+
+	/**
+	 * Gets if only the DC coefficients are kept while reading.
+	 *
+	 * @return true if only the DC coefficients are kept
+	 * @see #setDcOnly(boolean)
+	 */
+	public boolean isDcOnly() {
+		return dcOnly;
+	}
+
+	/**
+	 * Sets if the frequencies of the Huffman symbols are to be counted while
+	 * reading the image. Saving the image with OPT_WRITE_OPTIMIZE_HUFF then
+	 * does not need an extra pass over the coefficients to count them. This
+	 * applies only to saving the image without transformation (NONE) and
+	 * without restart markers and is not done if the image is read using
+	 * more than one thread, using a crop hint or only for the DC
+	 * coefficients. Takes effect for the next read.
+	 * 
+	 * @param optimizeHuff
+	 *            true to count the frequencies while reading
+	 * @see #OPT_WRITE_OPTIMIZE_HUFF
+	 */
+	public void setOptimizeHuffOnRead(boolean optimizeHuff) {
+		optimizeHuffOnRead = optimizeHuff;
+	}
+
+	/**
+	 * Gets if the frequencies of the Huffman symbols are counted while
+	 * reading.
+	 * 
+	 * @return true if the frequencies are counted while reading
+	 * @see #setOptimizeHuffOnRead(boolean)
+	 */
+	public boolean isOptimizeHuffOnRead() {
+		return optimizeHuffOnRead;
+	}
+
+	/**
+	 * Sets whether a File input is to be memory mapped instead of being read
+	 * through a FileInputStream. The markers in the header are then skipped
+	 * by seeking within the mapped file. The default is false since the
+	 * mapping takes up address space till it is garbage collected.
+	 * 
+	 * @param mapInput
+	 *            true to map File inputs into memory
+	 */
+	public void setMapInput(boolean mapInput) {
+		this.mapInput = mapInput;
+	}
+
+	/**
+	 * Gets whether File inputs are memory mapped.
+	 * 
+	 * @return true if File inputs are memory mapped
+	 * @see #setMapInput(boolean)
+	 */
+	public boolean isMapInput() {
+		return mapInput;
+	}
+
+	/**
+	 * Sets whether the Exif ImageInfo is to be read lazily. The IFDs are then
+	 * only indexed while reading and a tag value is decoded when it is first
+	 * asked for through getTagValue. The full IFDs are built only when the
+	 * Exif is modified or written. This saves time and garbage when only a
+	 * few tags of many images are looked up. The default is false.
+	 * 
+	 * @param lazyImageInfo
+	 *            true to read the Exif lazily
+	 */
+	public void setLazyImageInfo(boolean lazyImageInfo) {
+		this.lazyImageInfo = lazyImageInfo;
+	}
+
+	/**
+	 * Gets whether the Exif ImageInfo is read lazily.
+	 * 
+	 * @return true if the Exif is read lazily
+	 * @see #setLazyImageInfo(boolean)
+	 */
+	public boolean isLazyImageInfo() {
+		return lazyImageInfo;
+	}
+
+	/**
+	 * Sets the Exif tags to be read when reading the ImageInfo. Only these
+	 * tags are then read into the ProjectedTags of the Exif and the full IFDs
+	 * are built only if the Exif is accessed through getTagValue or is
+	 * written. The default is null to read all the tags.
+	 * 
+	 * @param tagProjection
+	 *            Tags to be read or null for all
+	 * @see Exif#getProjectedTags()
+	 */
+	public void setTagProjection(TagProjection tagProjection) {
+		this.tagProjection = tagProjection;
+	}
+
+	/**
+	 * Gets the Exif tags to be read when reading the ImageInfo.
+	 * 
+	 * @return The tags to be read or null for all
+	 * @see #setTagProjection(TagProjection)
+	 */
+	public TagProjection getTagProjection() {
+		return tagProjection;
+	}
+
+	/**
+	 * Gets the width of the preview image which is 1/8 of the image width
+	 * rounded up.
+	 *
+	 * @return Width of the preview image in pixels
+	 * @see #getPreviewPixels()
+	 */
+	public int getPreviewWidth() {
+		return (frm_x + DCTSIZE - 1) / DCTSIZE;
+	}
+
+	/**
+	 * Gets the height of the preview image which is 1/8 of the image height
+	 * rounded up.
+	 *
+	 * @return Height of the preview image in pixels
+	 * @see #getPreviewPixels()
+	 */
+	public int getPreviewHeight() {
+		return (frm_y + DCTSIZE - 1) / DCTSIZE;
+	}
+
+	/**
+	 * Gets a 1/8 scale preview of the image. Each pixel of the preview is the
+	 * mean of an 8x8 block of the image which is available from the DC
+	 * coefficient of the block, so no inverse DCT is required. The image must
+	 * have been fully read, which can be done keeping only the DC coefficients
+	 * using {@link #setDcOnly(boolean)}.
+	 *
+	 * @return Pixels of the preview as ARGB values row by row
+	 * @see #getPreviewWidth()
+	 * @see #getPreviewHeight()
+	 */
+	public int[] getPreviewPixels() {
+		int width = getPreviewWidth();
+		int pixels[] = new int[width * getPreviewHeight()];
+		getPreviewPixels(pixels, 0, width);
+		return pixels;
+	}
+
+	/**
+	 * Gets a 1/8 scale preview of the image into an array. The components are
+	 * converted from YCbCr to RGB for a 3 component image. For other images
+	 * the first component is used as a grayscale image.
+	 *
+	 * @param pixels
+	 *            Array into which the pixels are written as ARGB values
+	 * @param offset
+	 *            Offset in pixels for the first pixel of the preview
+	 * @param stride
+	 *            Number of entries in pixels between rows, atleast
+	 *            getPreviewWidth()
+	 * @see #getPreviewPixels()
+	 */
+	public void getPreviewPixels(int[] pixels, int offset, int stride) {
+		getPreviewPixels(0, 0, getPreviewWidth(), getPreviewHeight(), pixels,
+				offset, stride);
+	}
+
+	// Gets the width x height area of the preview at x0, y0
+	private void getPreviewPixels(int x0, int y0, int width, int height,
+			int[] pixels, int offset, int stride) {
+		if (readUpto < READ_ALL || dct_coefs == null)
+			throw new RuntimeException(
+					"Preview cannot be created since No Jpeg has been successfully Read");
+		int numComps = components_in_scan == 3 ? 3 : 1;
+		// Scale to get the block mean from the DC value and the first block
+		// of each component in an MCU
+		int dcScale[] = new int[numComps];
+		int blockOffset[] = new int[numComps];
+		for (int c = 0, off = 0; c < numComps; c++) {
+			dcScale[c] = q_table[getQTableIndexForComponent(c)][0];
+			blockOffset[c] = off;
+			off += H[c] * V[c];
+		}
+		int dct[][] = new int[2][DCTSIZE2];
+		int comp[] = new int[numComps];
+		for (int py = 0; py < height; py++) {
+			int pos = offset + py * stride;
+			for (int px = 0; px < width; px++) {
+				for (int c = 0; c < numComps; c++) {
+					// Block of component c covering the pixel
+					int bx = (x0 + px) * H[c] / maxHi;
+					int by = (y0 + py) * V[c] / maxVi;
+					dct_coefs.getBlock(bx / H[c], by / V[c], blockOffset[c]
+							+ (by % V[c]) * H[c] + bx % H[c], dct);
+					comp[c] = ((dct[0][0] * dcScale[c] + 4) >> 3) + 128;
+				}
+				int r, g, b;
+				if (numComps == 3) {
+					int y = comp[0];
+					int cb = comp[1] - 128;
+					int cr = comp[2] - 128;
+					r = y + ((91881 * cr + 32768) >> 16);
+					g = y + ((-22554 * cb - 46802 * cr + 32768) >> 16);
+					b = y + ((116130 * cb + 32768) >> 16);
+				} else
+					r = g = b = comp[0];
+				r = r < 0 ? 0 : r > 255 ? 255 : r;
+				g = g < 0 ? 0 : g > 255 ? 255 : g;
+				b = b < 0 ? 0 : b > 255 ? 255 : b;
+				pixels[pos++] = 0xff000000 | (r << 16) | (g << 8) | b;
+			}
+		}
+	}
+
+	// Creates the Thumbnail for OPT_XFORM_THUMBNAIL_FROM_DC by applying op to
+	// the preview and scaling it down. Must be called after the image
+	// parameters are adjusted for op and before they are transposed. The
+	// preview is flipped like the coefficients at block level including the
+	// handling of the partial MCUs at the edges. On failure dcThumbnail is
+	// left null so that the existing Thumbnail is used.
+	private void createDcThumbnail(int op, int options) {
+		dcThumbnail = null;
+		try {
+			int x0 = 0, y0 = 0;
+			// Size of the preview including the padding of partial MCUs
+			int w = widthMCU * maxHi;
+			int h = heightMCU * maxVi;
+			if (op == CROP) {
+				x0 = cropBounds.left / DCTSIZE;
+				y0 = cropBounds.top / DCTSIZE;
+				w = getPreviewWidth();
+				h = getPreviewHeight();
+			}
+			int src[] = new int[w * h];
+			getPreviewPixels(x0, y0, w, h, src, 0, w);
+
+			boolean transposed = op == TRANSPOSE || op == TRANSVERSE
+					|| op == ROT_90 || op == ROT_270;
+			boolean flipX = op == FLIP_H || op == ROT_180 || op == ROT_270
+					|| op == TRANSVERSE;
+			boolean flipY = op == FLIP_V || op == ROT_180 || op == ROT_90
+					|| op == TRANSVERSE;
+			// Number of preview pixels which are flipped. The partial MCUs are
+			// left unchanged with OPT_XFORM_ADJUST_EDGES.
+			boolean edgeOption = (options & OPT_XFORM_ADJUST_EDGES) != 0;
+			int flipW = edgeOption && partialXMCU ? (widthMCU - 1) * maxHi : w;
+			int flipH = edgeOption && partialYMCU ? (heightMCU - 1) * maxVi
+					: h;
+			int pw = getPreviewWidth();
+			int ph = getPreviewHeight();
+			int dw = transposed ? ph : pw;
+			int dh = transposed ? pw : ph;
+
+			// Source x or y for each column and row of the transformed preview
+			int colSrc[] = new int[dw];
+			for (int dx = 0; dx < dw; dx++)
+				colSrc[dx] = transposed ? flip(dx, flipY, flipH) : flip(dx,
+						flipX, flipW);
+			int rowSrc[] = new int[dh];
+			for (int dy = 0; dy < dh; dy++)
+				rowSrc[dy] = transposed ? flip(dy, flipX, flipW) : flip(dy,
+						flipY, flipH);
+
+			int maxW = dw >= dh ? DC_THUMBNAIL_WIDTH : DC_THUMBNAIL_HEIGHT;
+			int maxH = dw >= dh ? DC_THUMBNAIL_HEIGHT : DC_THUMBNAIL_WIDTH;
+			int tw = dw, th = dh;
+			if (tw > maxW || th > maxH) {
+				if (tw * maxH > th * maxW) {
+					th = Math.max(1, (th * maxW + tw / 2) / tw);
+					tw = maxW;
+				} else {
+					tw = Math.max(1, (tw * maxH + th / 2) / th);
+					th = maxH;
+				}
+			}
+
+			// Average the transformed preview pixels covered by each pixel
+			int thumb[] = new int[tw * th];
+			for (int ty = 0; ty < th; ty++) {
+				int ys = ty * dh / th;
+				int ye = Math.max(ys + 1, (ty + 1) * dh / th);
+				for (int tx = 0; tx < tw; tx++) {
+					int xs = tx * dw / tw;
+					int xe = Math.max(xs + 1, (tx + 1) * dw / tw);
+					int r = 0, g = 0, b = 0;
+					for (int dy = ys; dy < ye; dy++)
+						for (int dx = xs; dx < xe; dx++) {
+							int p = transposed ? src[colSrc[dx] * w + rowSrc[dy]]
+									: src[rowSrc[dy] * w + colSrc[dx]];
+							r += (p >> 16) & 255;
+							g += (p >> 8) & 255;
+							b += p & 255;
+						}
+					int n = (ye - ys) * (xe - xs);
+					thumb[ty * tw + tx] = 0xff000000
+							| ((r + n / 2) / n << 16)
+							| ((g + n / 2) / n << 8) | (b + n / 2) / n;
+				}
+			}
+			dcThumbnail = ThumbnailEncoder.encode(thumb, tw, th,
+					DC_THUMBNAIL_QUALITY);
+		} catch (Exception e) {
+			if (Log.debugLevel >= Log.LEVEL_WARNING)
+				android.util.Log.w(TAG,
+						"Warning: Unable to create Thumbnail from DC coefficients: "
+								+ e.getMessage());
+		}
+	}
+
+	/**
+	 * Gets the Thumbnail created for OPT_XFORM_THUMBNAIL_FROM_DC while the
+	 * Image Header Info is being transformed.
+	 * 
+	 * @return The Jpeg Thumbnail or null if not available
+	 */
+	byte[] getDcThumbnail() {
+		return dcThumbnail;
+	}
+
+	// Position of pos after flipping the first len positions if flip is set
+	private static int flip(int pos, boolean flip, int len) {
+		return flip && pos < len ? len - 1 - pos : pos;
+	}
+
 	/**
 	 * Internal method which transforms the Image Header Info (Like Exif) and
 	 * updates the Appxs array. This method essentially calls writeInfo on the
@@ -1073,6 +1576,32 @@ public class LLJTran extends BasicJpegIo implements IterativeReader,
 				: bounds.height();
 	}
 
+	// Checks if the coefficients required for op are available in case only
+	// the DC coefficients or only part of the image was read using a crop
+	// hint. cropBounds should be validated before for CROP.
+	private void checkCoefficientsRead(int op) {
+		if (dcOnlyRead)
+			throw new RuntimeException(
+					"Transform cannot be performed since only the DC coefficients have been Read");
+		if (dct_coefs instanceof WindowDctStore) {
+			boolean available;
+			if (op == CROP) {
+				int xBoundary = getMCUWidth();
+				int yBoundary = getMCUHeight();
+				available = ((WindowDctStore) dct_coefs).contains(
+						cropBounds.left / xBoundary, cropBounds.top
+								/ yBoundary, (cropBounds.width() + xBoundary - 1)
+								/ xBoundary, (cropBounds.height() + yBoundary - 1)
+								/ yBoundary);
+			} else
+				available = ((WindowDctStore) dct_coefs).contains(0, 0,
+						widthMCU, heightMCU);
+			if (!available)
+				throw new IllegalArgumentException(
+						"Transform needs parts of the image outside the crop hint used for reading");
+		}
+	}
+
 	/**
 	 * Checks if the current image is suitable for a perfect transform.
 	 * 
@@ -1181,15 +1710,22 @@ public class LLJTran extends BasicJpegIo implements IterativeReader,
 			throw new RuntimeException(
 					"Transform cannot be performed since No Jpeg has been successfully Read");
 		if ((options & OPT_XFORM_APPX) == 0)
-			options &= ~OPT_XFORM_THUMBNAIL;
-		if ((options & OPT_XFORM_THUMBNAIL) != 0 && !appxs_read)
+			options &= ~(OPT_XFORM_THUMBNAIL | OPT_XFORM_THUMBNAIL_FROM_DC);
+		if ((options & (OPT_XFORM_THUMBNAIL | OPT_XFORM_THUMBNAIL_FROM_DC)) != 0
+				&& !appxs_read)
 			if (Log.debugLevel >= Log.LEVEL_WARNING)
 				android.util.Log
 						.w(TAG,
 								"Warning: Thumbnail transformation cannot be performed since keep_appxs was passed as false while reading");
 		if (op == CROP)
 			validateCropBounds(bounds);
+		checkCoefficientsRead(op);
+		// The coefficients are changed by the transform
+		readHuffGen = null;
 		adjustImageParameters(op, options);
+		if ((options & OPT_XFORM_THUMBNAIL_FROM_DC) != 0 && op != NONE
+				&& appxs != null && appHdrIndex >= 0)
+			createDcThumbnail(op, options);
 		switch (op) {
 		case TRANSPOSE:
 		case TRANSVERSE:
@@ -1208,6 +1744,7 @@ public class LLJTran extends BasicJpegIo implements IterativeReader,
 		try {
 			if ((options & OPT_XFORM_APPX) != 0)
 				transformAppHeader(op, options, true);
+			dcThumbnail = null;
 			writeDCT(null, op, options, 0, true);
 		} catch (IOException e) {
 			if (Log.debugLevel >= Log.LEVEL_ERROR) {
@@ -1329,6 +1866,203 @@ public class LLJTran extends BasicJpegIo implements IterativeReader,
 		transform(outStream, op, options, bounds, restart_interval, null);
 	}
 
+	/**
+	 * Writes out several crops of the image decoding the image only once. Each
+	 * crop is written like {@link #transform(OutputStream,int,int,Rect,int)}
+	 * with op CROP. If the image has not been read upto READ_ALL it is read
+	 * first with a crop hint covering all the crops so that only the required
+	 * part of the image is decoded. The image itself is not changed.
+	 *
+	 * @param bounds
+	 *            Crop bounds for each crop. These are handled as in transform
+	 * @param outStreams
+	 *            Output Stream to which each crop should be written. This must
+	 *            have the same number of elements as bounds
+	 * @param options
+	 *            Options specifies how to manage exif or other header content
+	 *            including embedded thumbnail transformation and also the
+	 *            header information to write. Please pass a bitwise OR (|) of
+	 *            the required set of OPT_XFORM_.. and OPT_WRITE_.. flags.
+	 * @param restart_interval
+	 *            Specifies to write a restart marker every restart_interval MCU
+	 *            block. No restart markers are written if this parameter is
+	 *            passed as 0
+	 * @exception IOException
+	 *                If there is an error in reading or writing the image.
+	 * @see #read(int,boolean,Rect)
+	 */
+	public void crop(Rect[] bounds, OutputStream[] outStreams, int options,
+			int restart_interval) throws IOException {
+		if (bounds.length != outStreams.length)
+			throw new IllegalArgumentException("Got " + bounds.length
+					+ " crop boundaries for " + outStreams.length
+					+ " Output Streams");
+		if (bounds.length == 0)
+			return;
+		if (readUpto < READ_ALL) {
+			Rect cropHint = new Rect(bounds[0]);
+			for (int i = 1; i < bounds.length; i++) {
+				cropHint.left = Math.min(cropHint.left, bounds[i].left);
+				cropHint.top = Math.min(cropHint.top, bounds[i].top);
+				cropHint.right = Math.max(cropHint.right, bounds[i].right);
+				cropHint.bottom = Math.max(cropHint.bottom, bounds[i].bottom);
+			}
+			boolean keep_appxs = readUpto >= READ_INFO ? appxs_read
+					: (options & OPT_WRITE_APPXS) != 0;
+			try {
+				read(READ_ALL, keep_appxs, cropHint);
+			} catch (LLJTranException e) {
+				throw new IOException(e.getMessage());
+			}
+		}
+		for (int i = 0; i < bounds.length; i++)
+			transform(outStreams[i], CROP, options, bounds[i],
+					restart_interval);
+	}
+
+	/**
+	 * Reads the rest of the image and writes it out transformed without
+	 * holding the whole image in memory. Each MCU row is transformed and
+	 * written out as soon as it is decoded and is then discarded, so the
+	 * memory required is that of one MCU row irrespective of the size of the
+	 * image. This is possible only for operations where each output row
+	 * depends only on one input row, so op must be NONE, FLIP_H or CROP.
+	 * <p>
+	 *
+	 * The image should not have been read upto READ_ALL. It may have been
+	 * read upto READ_INFO or READ_HEADER to examine or change the Image Header
+	 * Information (Exif) before the call. Since the coefficients are not
+	 * retained the LLJTran Object cannot be used to further process the image
+	 * after the call, similar to the pullDownMode of initWrite. If the image
+	 * has already been read upto READ_ALL this is the same as transform.
+	 * <p>
+	 *
+	 * The standard Huffman tables are always used for writing since
+	 * OPT_WRITE_OPTIMIZE_HUFF requires a pass over all the coefficients
+	 * before writing. If readThreads is more than 1 all the coefficients of
+	 * images with restart markers are decoded before the rows are written.
+	 *
+	 * @param outStream
+	 *            Output Stream to which the jpeg image should be written
+	 * @param op
+	 *            Specifies the transformation. One of NONE, FLIP_H or CROP
+	 * @param options
+	 *            Options specifies how to manage exif or other header content
+	 *            including embedded thumbnail transformation and also the
+	 *            header information to write. Please pass a bitwise OR (|) of
+	 *            the required set of OPT_XFORM_.. and OPT_WRITE_.. flags.
+	 * @param bounds
+	 *            Crop bounds. This must be passed if op is CROP, ignored
+	 *            otherwise. The x and y values of bounds must be within the
+	 *            image and are adjusted to the closest MCU boundary. The width
+	 *            and height must be positive, but are automatically limited to
+	 *            imageWidth-bounds.x and imageHieght-bounds.y respectively. The
+	 *            bounds Object passed is unchanged.
+	 * @param restart_interval
+	 *            Specifies to write a restart marker every restart_interval MCU
+	 *            block. No restart markers are written if this parameter is
+	 *            passed as 0
+	 * @exception IOException
+	 *                If there is an error in reading or writing the image.
+	 * @see #setReadThreads(int)
+	 */
+	public void streamTransform(OutputStream outStream, int op, int options,
+			Rect bounds, int restart_interval) throws IOException {
+		if (op != NONE && op != FLIP_H && op != CROP)
+			throw new IllegalArgumentException(
+					"Streaming transform not possible for op: " + op);
+		if (op == CROP && bounds == null)
+			throw new IllegalArgumentException("Crop boundaries are null.");
+		if (readUpto >= READ_ALL) {
+			transform(outStream, op, options, bounds, restart_interval);
+			return;
+		}
+		if ((options & OPT_WRITE_OPTIMIZE_HUFF) != 0) {
+			if (Log.debugLevel >= Log.LEVEL_WARNING)
+				android.util.Log
+						.w(TAG,
+								"Warning:streamTransform: Huffman tables cannot be optimized while streaming");
+			options &= ~OPT_WRITE_OPTIMIZE_HUFF;
+		}
+		boolean writeAppxs = ((options & OPT_WRITE_APPXS) != 0);
+		if (op == NONE || !writeAppxs)
+			options &= ~OPT_XFORM_APPX;
+		if ((options & OPT_XFORM_APPX) == 0)
+			options &= ~OPT_XFORM_THUMBNAIL;
+		// The coefficients are not available before writing the appxs
+		options &= ~OPT_XFORM_THUMBNAIL_FROM_DC;
+
+		// Read upto the start of the scan. The decoder is initialized with the
+		// tables of the image and retains them while the tables for writing
+		// are generated.
+		boolean keep_appxs = readUpto >= READ_INFO ? appxs_read : writeAppxs;
+		streamingRead = true;
+		try {
+			initRead(READ_ALL, keep_appxs, true);
+			while (!(dct_coefs instanceof StreamingDctStore)
+					&& nextRead(1) == IterativeReader.CONTINUE)
+				;
+		} catch (LLJTranException e) {
+			throw new IOException(e.getMessage());
+		} finally {
+			streamingRead = false;
+		}
+		if (!(dct_coefs instanceof StreamingDctStore)) {
+			String msg = getErrorMsg();
+			freeMemory();
+			throw new IOException(msg != null ? msg
+					: "Streaming transform not possible for this image");
+		}
+		StreamingDctStore store = (StreamingDctStore) dct_coefs;
+
+		try {
+			prevHuffOption = -1;
+			iWriteVars.maxWriteRequest = 0;
+			iWriteVars.minWriteRequest = 100000000;
+			iWriteVars.restoreVars = false;
+			iWriteVars.saveAppxs = null;
+			if (op == CROP)
+				validateCropBounds(bounds);
+			int svX = frm_x;
+			int svY = frm_y;
+			int svWidthMCU = widthMCU;
+			int svHeightMCU = heightMCU;
+			adjustImageParameters(op, options);
+			if ((options & OPT_XFORM_APPX) != 0 && appxs != null
+					&& appHdrIndex >= 0)
+				transformAppHeader(op, options, false);
+			// The header read so far is valid though the read is not complete
+			boolean svValid = valid;
+			valid = true;
+			initWriteJpeg(outStream, op, null, options, null,
+					restart_interval, false);
+			while (iWriteVars.state != IterativeWriteVars.WRITE_START)
+				nextWrite(1);
+			writeMarkerSOF0(outStream);
+			writeMarkerSOS(outStream);
+			valid = svValid;
+			store.initWrite(outStream, op, options, restart_interval);
+
+			// The decoder works with the dimensions of the input image
+			frm_x = svX;
+			frm_y = svY;
+			widthMCU = svWidthMCU;
+			heightMCU = svHeightMCU;
+
+			while (nextRead(10000000) == IterativeReader.CONTINUE)
+				;
+			encoder.flush();
+			writeMarkerEOI(outStream);
+		} finally {
+			iWriteVars.freeMemory();
+			iWriteVars.state = IterativeWriteVars.WRITE_COMPLETE;
+			freeMemory();
+		}
+		if (Log.debugLevel >= Log.LEVEL_INFO)
+			android.util.Log.i(TAG, "0x" + Integer.toHexString(writecounter)
+					+ "(" + writecounter + ") byte(s) Written Successfully");
+	}
+
 	/**
 	 * This method is to be used for the Iterative version of the transform and
 	 * save methods. The main use of this method is to get an IterativeWriter
@@ -1484,7 +2218,7 @@ public class LLJTran extends BasicJpegIo implements IterativeReader,
 		if (op == NONE || !writeAppxs)
 			options &= ~OPT_XFORM_APPX;
 		if ((options & OPT_XFORM_APPX) == 0)
-			options &= ~OPT_XFORM_THUMBNAIL;
+			options &= ~(OPT_XFORM_THUMBNAIL | OPT_XFORM_THUMBNAIL_FROM_DC);
 		if (readUpto < READ_ALL)
 			throw new RuntimeException(
 					"Transform cannot be performed since No Jpeg has been successfully Read");
@@ -1493,8 +2227,9 @@ public class LLJTran extends BasicJpegIo implements IterativeReader,
 				validateCropBounds(bounds);
 			else
 				new IllegalArgumentException("Crop boundaries are null.)");
+		checkCoefficientsRead(op);
 		if (!appxs_read) {
-			if ((options & OPT_XFORM_THUMBNAIL) != 0)
+			if ((options & (OPT_XFORM_THUMBNAIL | OPT_XFORM_THUMBNAIL_FROM_DC)) != 0)
 				if (Log.debugLevel >= Log.LEVEL_WARNING)
 					android.util.Log
 							.w(TAG,
@@ -1511,6 +2246,9 @@ public class LLJTran extends BasicJpegIo implements IterativeReader,
 			iWriteVars.svWidthMCU = widthMCU;
 			iWriteVars.svHeightMCU = heightMCU;
 			adjustImageParameters(op, options);
+			if ((options & OPT_XFORM_THUMBNAIL_FROM_DC) != 0 && appxs != null
+					&& appHdrIndex >= 0)
+				createDcThumbnail(op, options);
 			switch (op) {
 			case TRANSPOSE:
 			case TRANSVERSE:
@@ -1530,6 +2268,7 @@ public class LLJTran extends BasicJpegIo implements IterativeReader,
 				iWriteVars.saveAppxs = appxs[appHdrIndex];
 				transformAppHeader(op, options, false);
 			}
+			dcThumbnail = null;
 		}
 		return initWriteJpeg(outStream, op, null, options, custom_appx,
 				restart_interval, pullDownMode);
@@ -1635,6 +2374,7 @@ public class LLJTran extends BasicJpegIo implements IterativeReader,
 		dc_huffval = new int[0][0];
 		enc_dc_matrix = new int[0][][];
 		dc_huffbits = new int[0][0];
+		dc_lookup = new int[0][0];
 		dc_ix = new int[0];
 
 		ac_valoffset = new int[0][0];
@@ -1642,6 +2382,7 @@ public class LLJTran extends BasicJpegIo implements IterativeReader,
 		ac_huffval = new int[0][0];
 		enc_ac_matrix = new int[0][][];
 		ac_huffbits = new int[0][0];
+		ac_lookup = new int[0][0];
 		ac_ix = new int[0];
 		readDHT(null, data.length);
 		retVal = data;
@@ -1874,13 +2615,6 @@ public class LLJTran extends BasicJpegIo implements IterativeReader,
 		byte optimizeHuff = (byte) ((options & OPT_WRITE_OPTIMIZE_HUFF) == 0 ? 0
 				: 1);
 		byte huffTables[] = null;
-		iWriteVars.os = os;
-		iWriteVars.op = op;
-		iWriteVars.comment = comment;
-		iWriteVars.options = options;
-		iWriteVars.custom_appx = custom_appx;
-		iWriteVars.restart_interval = restart_interval;
-		iWriteVars.pullDownMode = pullDownMode;
 		if (canBeProcessed) {
 			if (prevHuffOption != optimizeHuff) {
 				prevHuffOption = optimizeHuff;
@@ -1898,7 +2632,7 @@ public class LLJTran extends BasicJpegIo implements IterativeReader,
 					// rotate90DCT called by writeDCT also honour gatheringStats
 					// variable and do not actually modify the DCT array.
 					try {
-						writeDCT(null, op, options, 0, false);
+						gatherHuffStats(op, options, restart_interval);
 					} catch (IOException e) {
 						if (Log.debugLevel >= Log.LEVEL_ERROR) {
 							android.util.Log.e(
@@ -1919,6 +2653,14 @@ public class LLJTran extends BasicJpegIo implements IterativeReader,
 					lHuffGen.freeMemory();
 			}
 		}
+		// Set after gathering the statistics which uses iWriteVars
+		iWriteVars.os = os;
+		iWriteVars.op = op;
+		iWriteVars.comment = comment;
+		iWriteVars.options = options;
+		iWriteVars.custom_appx = custom_appx;
+		iWriteVars.restart_interval = restart_interval;
+		iWriteVars.pullDownMode = pullDownMode;
 		iWriteVars.huffTables = huffTables;
 		iWriteVars.state = IterativeWriteVars.WRITE_BEGIN;
 		return this;
@@ -2035,12 +2777,16 @@ public class LLJTran extends BasicJpegIo implements IterativeReader,
 	 * and also closes any open Internal Input Stream.
 	 */
 	public void freeMemory() {
+		if (dct_coefs != null)
+			dct_coefs.close();
 		dct_coefs = null;
+		readHuffGen = null;
 		dc_valoffset = null;
 		dc_maxcode = null;
 		dc_huffval = null;
 		enc_dc_matrix = null;
 		dc_huffbits = null;
+		dc_lookup = null;
 		dc_ix = null;
 
 		ac_valoffset = null;
@@ -2048,6 +2794,7 @@ public class LLJTran extends BasicJpegIo implements IterativeReader,
 		ac_huffval = null;
 		enc_ac_matrix = null;
 		ac_huffbits = null;
+		ac_lookup = null;
 		ac_ix = null;
 		q_table = null;
 		q_ix = null;
@@ -2067,6 +2814,7 @@ public class LLJTran extends BasicJpegIo implements IterativeReader,
 		dc_huffval = new int[0][0];
 		enc_dc_matrix = new int[0][][];
 		dc_huffbits = new int[0][0];
+		dc_lookup = new int[0][0];
 		dc_ix = new int[0];
 
 		ac_valoffset = new int[0][0];
@@ -2074,6 +2822,7 @@ public class LLJTran extends BasicJpegIo implements IterativeReader,
 		ac_huffval = new int[0][0];
 		enc_ac_matrix = new int[0][][];
 		ac_huffbits = new int[0][0];
+		ac_lookup = new int[0][0];
 		ac_ix = new int[0];
 		q_table = new int[0][0];
 		q_ix = new int[0];
@@ -2341,10 +3090,51 @@ public class LLJTran extends BasicJpegIo implements IterativeReader,
 	}
 
 	/**
-	 * Returns upto what stage the image has been read.
-	 * 
-	 * @return One of the READ_.. flags including READ_NONE if nothing has been
-	 *         read successfully.
+	 * Reads the Image from the File or InputStream specified in the
+	 * Constructor keeping only the part of the image required for cropping to
+	 * cropHint. Entropy decoding stops after the last MCU row of cropHint and
+	 * the coefficients of the MCUs to the left and right of cropHint are not
+	 * stored. This saves time and memory if only a small crop is required
+	 * from a large image.
+	 * <p>
+	 *
+	 * After this only transforms with op CROP and bounds within cropHint can
+	 * be performed. Other transforms result in an IllegalArgumentException.
+	 * Once a CROP transform is performed on the image itself using
+	 * {@link #transform(int,int,Rect)} this restriction no longer applies.
+	 *
+	 * @param readUpto
+	 *            The section upto which to read. cropHint is used only if
+	 *            this is READ_ALL
+	 * @param keep_appxs
+	 *            Specifies if Image Information Header (Exif) is to be
+	 *            retained. This should be passed as true if it is later
+	 *            required to be written out. Note that if this is passed as
+	 *            false existing Image Information Header is unchanged.
+	 * @param cropHint
+	 *            The region of the image which will be cropped. null to read
+	 *            the whole image. The region read is extended to MCU
+	 *            boundaries and by one MCU to the right and bottom to allow
+	 *            for the adjustment of the crop bounds to MCU boundaries.
+	 * @exception LLJTranException
+	 *                If a fatal error is encountered.
+	 * @see #transform(OutputStream,int,int,Rect)
+	 */
+	public void read(int readUpto, boolean keep_appxs, Rect cropHint)
+			throws LLJTranException {
+		readCropHint = cropHint;
+		try {
+			read(readUpto, keep_appxs);
+		} finally {
+			readCropHint = null;
+		}
+	}
+
+	/**
+	 * Returns upto what stage the image has been read.
+	 * 
+	 * @return One of the READ_.. flags including READ_NONE if nothing has been
+	 *         read successfully.
 	 */
 	public int getReadUpto() {
 		return readUpto;
@@ -2407,13 +3197,27 @@ public class LLJTran extends BasicJpegIo implements IterativeReader,
 				if (stage == IterativeReadVars.READING_DCT_STAGE)
 					if (readNextDCT(remaining))
 						continue;
-					else
+					else {
 						stage = IterativeReadVars.IMAGE_READ_STAGE;
+						// The decoder may have replaced the input stream
+						is = iReadVars.is;
+						if (iReadVars.iy < heightMCU) {
+							// Decoding stopped after the last row required
+							// for readCropHint. Ignore the rest of the input.
+							valid = true;
+							stage = IterativeReadVars.DONE_STAGE;
+							break markers;
+						}
+					}
 
 				if (stage == IterativeReadVars.READING_APPX_STAGE)
 					if (readNextAppx(remaining))
 						continue;
 					else {
+						if (iReadVars.appxPos < iReadVars.appxLen) {
+							msg = "Unexpected End Of Input";
+							break markers;
+						}
 						stage = IterativeReadVars.READING_STAGE;
 						if (keep_appxs) {
 							// In LLJTran ImageInfo is loaded only if
@@ -2809,6 +3613,10 @@ public class LLJTran extends BasicJpegIo implements IterativeReader,
 						* components_in_frame, this);
 			if (valid) {
 				if ((sections & BODY_SECTION) == 0 && canBeProcessed) {
+					// An error after the info is for the next read. This one
+					// is done.
+					if (msg != null)
+						stage = IterativeReadVars.DONE_STAGE;
 					unprocessedError = msg;
 					msg = null;
 				} else if (Log.debugLevel >= Log.LEVEL_INFO)
@@ -3090,6 +3898,195 @@ public class LLJTran extends BasicJpegIo implements IterativeReader,
 			throw new LLJTranException(msg);
 	}
 
+	/**
+	 * Same as xferInfo(InputStream,OutputStream,int,int) except that the
+	 * image is transferred between channels. The marker sections upto and
+	 * including SOS are read into memory and processed as for the InputStream
+	 * version. The rest of the image is then transferred directly from in to
+	 * out using FileChannel.transferTo without passing it through the heap.
+	 * Unlike the InputStream version the internal input stream cannot be used
+	 * as input.
+	 * 
+	 * @param in
+	 *            Image input. The image is read from the current position of
+	 *            in which is not changed.
+	 * @param out
+	 *            Output to write the image to.
+	 * @param appxsOption
+	 *            One of RETAIN, REPLACE or REMOVE as for xferInfo
+	 * @param commentOption
+	 *            One of RETAIN, REPLACE or REMOVE as for xferInfo
+	 * @see #xferInfo(InputStream,OutputStream,int,int)
+	 */
+	public void xferInfo(FileChannel in, WritableByteChannel out,
+			int appxsOption, int commentOption) throws LLJTranException {
+		String msg = null;
+		long start = 0, headerLen = 0, size = 0;
+		byte header[] = null;
+		try {
+			start = in.position();
+			MarkerIndex index = MarkerIndex.build(in, false);
+			int sos = index.find(M_SOS & 255);
+			if (sos < 0)
+				msg = "All Jpeg Markers not Encountered. A likely error";
+			else {
+				headerLen = index.getOffset(sos) + index.getLength(sos);
+				size = index.getSize();
+				ByteBuffer bb = ByteBuffer.allocate((int) headerLen);
+				while (bb.hasRemaining()
+						&& in.read(bb, start + bb.position()) > 0)
+					;
+				header = bb.array();
+			}
+		} catch (IOException e) {
+			msg = "Unexpected Error encountered during Read";
+			if (Log.debugLevel >= Log.LEVEL_ERROR)
+				e.printStackTrace();
+		}
+
+		if (msg != null)
+			throw new LLJTranException(msg);
+
+		ByteArrayOutputStream buf = new ByteArrayOutputStream(header.length);
+		xferInfo(new ByteArrayInputStream(header), buf, appxsOption,
+				commentOption);
+
+		try {
+			ByteBuffer bb = ByteBuffer.wrap(buf.toByteArray());
+			while (bb.hasRemaining())
+				out.write(bb);
+			long len;
+			for (long pos = start + headerLen, end = start + size; pos < end;
+					pos += len)
+				if ((len = in.transferTo(pos, end - pos, out)) <= 0) {
+					msg = "Unexpected End Of Input";
+					break;
+				}
+		} catch (IOException e) {
+			msg = "Unexpected Error encountered during Write";
+			if (Log.debugLevel >= Log.LEVEL_ERROR)
+				e.printStackTrace();
+		}
+
+		if (msg != null)
+			throw new LLJTranException(msg);
+	}
+
+	/**
+	 * Writes the Image Header Information (Exif) of the LLJTran Object into an
+	 * image file without copying the rest of the file. This is like calling
+	 * xferInfo with the file as input, REPLACE for appxsOption and RETAIN for
+	 * commentOption and replacing the file with the output.
+	 * <p>
+	 * 
+	 * The image is read upto READ_INFO, the imageInfo changed and refreshAppx
+	 * called as for xferInfo. If the Image Header Information appx is not
+	 * larger than the matching appx in the file it overwrites that appx in
+	 * place and is padded with zeroes to the length of the existing appx. Only
+	 * the bytes of the appx are written to the file in this case. Otherwise
+	 * the image is copied to a temporary file in the same directory using
+	 * the FileChannel version of xferInfo which then replaces file.
+	 * <p>
+	 * 
+	 * Any internal input stream is closed first as by
+	 * {@link #closeInternalInputStream()} so that file can be written.
+	 * 
+	 * @param file
+	 *            Image file to update. This would normally be the file the
+	 *            image was read from.
+	 * @return true if the file was updated in place, false if it was copied
+	 * @see #xferInfo(InputStream,OutputStream,int,int)
+	 * @see #refreshAppx()
+	 */
+	public boolean updateInfo(File file) throws LLJTranException {
+		String msg = null;
+		boolean inPlace = false;
+		if (appxs == null || appHdrIndex < 0)
+			throw new LLJTranException("No Image Header Information to update");
+		closeInternalInputStream();
+		try {
+			RandomAccessFile raf = new RandomAccessFile(file, "rw");
+			try {
+				inPlace = writeAppxInPlace(raf.getChannel(), appxs[appHdrIndex]);
+			} finally {
+				raf.close();
+			}
+		} catch (IOException e) {
+			msg = "Unexpected Error encountered during Update";
+			if (Log.debugLevel >= Log.LEVEL_ERROR)
+				e.printStackTrace();
+		}
+
+		if (msg == null && !inPlace) {
+			File tmpFile = null;
+			try {
+				tmpFile = File.createTempFile("lljtran", ".tmp", file
+						.getAbsoluteFile().getParentFile());
+				FileInputStream is = new FileInputStream(file);
+				FileOutputStream os = new FileOutputStream(tmpFile);
+				try {
+					xferInfo(is.getChannel(), os.getChannel(), REPLACE, RETAIN);
+				} finally {
+					os.close();
+					is.close();
+				}
+				if (!tmpFile.renameTo(file)
+						&& !(file.delete() && tmpFile.renameTo(file)))
+					msg = "Unable to replace " + file + " with " + tmpFile;
+				else
+					tmpFile = null;
+			} catch (IOException e) {
+				msg = "Unexpected Error encountered during Update";
+				if (Log.debugLevel >= Log.LEVEL_ERROR)
+					e.printStackTrace();
+			} finally {
+				if (tmpFile != null)
+					tmpFile.delete();
+			}
+		}
+
+		if (msg != null)
+			throw new LLJTranException(msg);
+		return inPlace;
+	}
+
+	// Overwrites the appx in channel having the marker code and identifier of
+	// appx if appx fits in it. Returns false if it does not.
+	private static boolean writeAppxInPlace(FileChannel channel, byte[] appx)
+			throws IOException {
+		MarkerIndex index = MarkerIndex.build(channel, false);
+		// Compare upto 6 bytes of identifier like "Exif\0\0" following the
+		// length
+		int idLen = Math.min(appx.length - 4, 6);
+		ByteBuffer id = ByteBuffer.allocate(idLen);
+		for (int i = index.find(appx[1] & 255); i >= 0; i = index.find(
+				appx[1] & 255, i + 1)) {
+			int oldLen = index.getLength(i);
+			if (oldLen < 4 + idLen)
+				continue;
+			id.clear();
+			while (id.hasRemaining()
+					&& channel.read(id, index.getOffset(i) + 4 + id.position()) > 0)
+				;
+			int k = 0;
+			while (k < idLen && id.get(k) == appx[4 + k])
+				k++;
+			if (k < idLen)
+				continue;
+			if (appx.length > oldLen)
+				return false;
+			byte[] newAppx = new byte[oldLen];
+			System.arraycopy(appx, 0, newAppx, 0, appx.length);
+			bn2s(newAppx, 2, oldLen - 2, 2);
+			ByteBuffer bb = ByteBuffer.wrap(newAppx);
+			while (bb.hasRemaining())
+				channel.write(bb, index.getOffset(i) + bb.position());
+			channel.force(false);
+			return true;
+		}
+		return false;
+	}
+
 	/**
 	 * Closes the internal Input Stream in case LLJTran was constructed with a
 	 * File. Note that This does not close the InputStream if passed in the
@@ -3575,7 +4572,7 @@ public class LLJTran extends BasicJpegIo implements IterativeReader,
 		readcounter += readLen;
 
 		if (readLen < len)
-			retVal = false; // Unexpected EOF will error out later
+			retVal = false; // Unexpected EOF, appxPos is short of appxLen
 
 		return retVal;
 	}
@@ -4003,6 +5000,9 @@ public class LLJTran extends BasicJpegIo implements IterativeReader,
 				wt2d = new int[tabnum + 1][];
 				System.arraycopy(dc_huffbits, 0, wt2d, 0, tabnum);
 				dc_huffbits = wt2d;
+				wt2d = new int[tabnum + 1][];
+				System.arraycopy(dc_lookup, 0, wt2d, 0, tabnum);
+				dc_lookup = wt2d;
 				wt3d = new int[tabnum + 1][][];
 				System.arraycopy(enc_dc_matrix, 0, wt3d, 0, tabnum);
 				enc_dc_matrix = wt3d;
@@ -4025,6 +5025,9 @@ public class LLJTran extends BasicJpegIo implements IterativeReader,
 				wt2d = new int[tabnum + 1][];
 				System.arraycopy(ac_huffbits, 0, wt2d, 0, tabnum);
 				ac_huffbits = wt2d;
+				wt2d = new int[tabnum + 1][];
+				System.arraycopy(ac_lookup, 0, wt2d, 0, tabnum);
+				ac_lookup = wt2d;
 				wt3d = new int[tabnum + 1][][];
 				System.arraycopy(enc_ac_matrix, 0, wt3d, 0, tabnum);
 				enc_ac_matrix = wt3d;
@@ -4086,6 +5089,18 @@ public class LLJTran extends BasicJpegIo implements IterativeReader,
 				enc_matrix[huffval[l]][0] = huffcode[l];
 				enc_matrix[huffval[l]][1] = huffsize[l];
 			}
+			// Lookahead table indexed by the next HUFF_LOOKAHEAD bits of input.
+			// Each entry holds (code length << 8) | symbol for codes of length
+			// upto HUFF_LOOKAHEAD and 0 for longer codes which are decoded
+			// bit by bit.
+			int[] lookup = new int[1 << HUFF_LOOKAHEAD];
+			for (p = 0; p < numsymbols && huffsize[p] <= HUFF_LOOKAHEAD; p++) {
+				int shift = HUFF_LOOKAHEAD - huffsize[p];
+				int entry = (huffsize[p] << 8) | huffval[p];
+				int first = huffcode[p] << shift;
+				for (int k = (1 << shift) - 1; k >= 0; k--)
+					lookup[first + k] = entry;
+			}
 
 			if (!is_ac) {
 				dc_valoffset[tabnum] = valoffset;
@@ -4093,12 +5108,14 @@ public class LLJTran extends BasicJpegIo implements IterativeReader,
 				dc_huffval[tabnum] = huffval;
 				enc_dc_matrix[tabnum] = enc_matrix;
 				dc_huffbits[tabnum] = huffbits;
+				dc_lookup[tabnum] = lookup;
 			} else {
 				ac_valoffset[tabnum] = valoffset;
 				ac_maxcode[tabnum] = maxcode;
 				ac_huffval[tabnum] = huffval;
 				enc_ac_matrix[tabnum] = enc_matrix;
 				ac_huffbits[tabnum] = huffbits;
+				ac_lookup[tabnum] = lookup;
 			}
 			base += (numsymbols + 17);
 		} while (base < result);
@@ -4109,6 +5126,25 @@ public class LLJTran extends BasicJpegIo implements IterativeReader,
 
 	private HuffDecoder decoder;
 
+	// Creates the store for dct coefficients, on the heap if its estimated
+	// size is within dctHeapBudget and in a memory mapped temporary file
+	// otherwise.
+	private DctStore newDctStore(int widthMCU, int heightMCU) {
+		long blocks = (long) widthMCU * heightMCU * mcusize;
+		if (blocks * ESTIMATED_BLOCK_BYTES > dctHeapBudget) {
+			try {
+				return new MappedDctStore(widthMCU, heightMCU, mcusize,
+						tempDirectory);
+			} catch (IOException e) {
+				if (Log.debugLevel >= Log.LEVEL_WARNING)
+					android.util.Log.w(TAG,
+							"Warning: Unable to create temporary file for dct coefficients, using heap: "
+									+ e.getMessage());
+			}
+		}
+		return new HeapDctStore(widthMCU, heightMCU, mcusize);
+	}
+
 	private void initReadDCT() throws IOException {
 		iReadVars.currentProgress = 0.01;
 		iReadVars.callbackProgress = 0;
@@ -4121,7 +5157,37 @@ public class LLJTran extends BasicJpegIo implements IterativeReader,
 				android.util.Log.e(TAG, "Not sequential image, Ss=" + _Ss
 						+ " Se=" + _Se + " Ah=" + _Ah + " Al=" + _Al);
 		decoder = new HuffDecoder(iReadVars.is);
-		dct_coefs = new int[heightMCU][][][][];
+		if (dct_coefs != null)
+			dct_coefs.close();
+		dcOnlyRead = dcOnly && !streamingRead;
+		readHuffGen = null;
+		readStats = null;
+		if (optimizeHuffOnRead && !dcOnlyRead && !streamingRead
+				&& readCropHint == null && _Ss == 0) {
+			HuffGenerator stats = new HuffGenerator();
+			stats.init();
+			readStats = new HuffEncoder(stats);
+			readStatsLastDc = new int[components_in_scan];
+		}
+		if (streamingRead)
+			dct_coefs = new StreamingDctStore(widthMCU, heightMCU, mcusize);
+		else if (readCropHint != null) {
+			int xBoundary = getMCUWidth();
+			int yBoundary = getMCUHeight();
+			int left = Math.max(readCropHint.left, 0) / xBoundary;
+			int top = Math.max(readCropHint.top, 0) / yBoundary;
+			int right = Math.min((readCropHint.right + xBoundary - 1)
+					/ xBoundary + 1, widthMCU);
+			int bottom = Math.min((readCropHint.bottom + yBoundary - 1)
+					/ yBoundary + 1, heightMCU);
+			if (left >= right || top >= bottom)
+				throw new IOException("Crop hint " + readCropHint
+						+ " is outside the image (" + getLocationName() + ")");
+			dct_coefs = new WindowDctStore(widthMCU, heightMCU, mcusize,
+					left, top, right, bottom, newDctStore(right - left, bottom
+							- top));
+		} else
+			dct_coefs = newDctStore(widthMCU, heightMCU);
 		iReadVars.progressPerMcu = (0.99 / heightMCU) / widthMCU;
 		if (readProgressCallback != null
 				&& iReadVars.currentProgress - iReadVars.callbackProgress > readProgressCallback
@@ -4132,13 +5198,24 @@ public class LLJTran extends BasicJpegIo implements IterativeReader,
 		}
 		iReadVars.ix = 0;
 		iReadVars.iy = 0;
+		iReadVars.scan = null;
+		iReadVars.starts = null;
 	}
 
 	private boolean readNextDCT(int numBytes) throws IOException {
-		InputStream is = iReadVars.is;
+		// Only the MCUs within window are stored and decoding stops after its
+		// last row
+		WindowDctStore window = dct_coefs instanceof WindowDctStore ? (WindowDctStore) dct_coefs
+				: null;
+		int lastRow = window != null ? window.getBottom() : heightMCU;
+		if (readThreads > 1 && restart_interval != 0 && window == null
+				&& iReadVars.iy == 0 && iReadVars.ix == 0) {
+			readStats = null;
+			if (!readParallelDCT(numBytes))
+				return true;
+		}
 		int ix = iReadVars.ix;
 		int iy = iReadVars.iy;
-		int curcoef;
 		int markCounter = readcounter;
 		int[] last_dc = iReadVars.last_dc;
 		int[][] DCT = iReadVars.DCT;
@@ -4148,56 +5225,19 @@ public class LLJTran extends BasicJpegIo implements IterativeReader,
 		double callbackProgress = iReadVars.callbackProgress;
 
 		boolean retVal = true;
-		enough: for (; iy < heightMCU; iy++) {
-			if (dct_coefs[iy] == null)
-				dct_coefs[iy] = new int[widthMCU][mcusize][][];
+		enough: for (; iy < lastRow; iy++) {
 			for (; ix < widthMCU; ix++) {
 				if (readcounter - markCounter >= numBytes)
 					break enough;
 				// start decode MCU
-				int mcuc = 0;
 				try {
-					for (int c = 0; c < components_in_scan; c++) {
-						for (int b = 0; b < V[c] * H[c]; b++) {
-							decoder.setTables(false, dc_table[c]);
-							last_dc[c] = decoder.extend(decoder.decode(1))
-									+ last_dc[c];
-							curcoef = 0;
-							DCT[0][curcoef] = last_dc[c];
-							DCT[1][curcoef++] = 0;
-							// decode ACs
-							decoder.setTables(true, ac_table[c]);
-							int ac, v;
-							for (int ci = 1; ci < DCTSIZE2; ci++) {
-								ac = decoder.decode(1);
-								v = (ac >> 4);
-								ac &= 15;
-								if (ac != 0) {
-									ci += v;
-									if (ci > DCTSIZE2 - 1) {
-										if (Log.debugLevel >= Log.LEVEL_ERROR)
-											android.util.Log.e(TAG,
-													"Error: Invalid AC index "
-															+ ci);
-										ci = DCTSIZE2 - 1;
-									}
-									ac = decoder.extend(ac);
-									DCT[0][curcoef] = ac;
-									DCT[1][curcoef++] = ci;
-								} else {
-									if (v != 15)
-										break;
-									ci += v;
-								}
-							}
-							dct_coefs[iy][ix][mcuc] = new int[2][curcoef];
-							System.arraycopy(DCT[0], 0,
-									dct_coefs[iy][ix][mcuc][0], 0, curcoef);
-							System.arraycopy(DCT[1], 0,
-									dct_coefs[iy][ix][mcuc][1], 0, curcoef);
-							mcuc++;
-						}
-					}
+					if (window != null && !window.contains(ix, iy)) {
+						decodeMCUDc(decoder, last_dc, DCT, null);
+						window.skipMCU();
+					} else if (dcOnlyRead)
+						decodeMCUDc(decoder, last_dc, DCT, dct_coefs);
+					else
+						decodeMCU(decoder, last_dc, DCT, dct_coefs);
 					restarts_to_go--;
 					if (restart_interval != 0 && restarts_to_go == 0) {
 						// We expect a restart marker. Let us see if we find it
@@ -4206,13 +5246,12 @@ public class LLJTran extends BasicJpegIo implements IterativeReader,
 						// First check unprocessed_marker in case restart
 						// marker was encountered before decoding of DCT
 						// block
-						int markercode = unprocessed_marker;
-						unprocessed_marker = 0;
+						int markercode = decoder.marker;
+						decoder.marker = 0;
 						if (markercode == 0) {
 							// If no restart marker encountered while decoding
 							// try to read a restart marker
-							markercode = is.read();
-							readcounter++;
+							markercode = decoder.readRaw();
 							if (markercode != 0xff)
 								throw new IOException(
 										"0x"
@@ -4225,10 +5264,9 @@ public class LLJTran extends BasicJpegIo implements IterativeReader,
 												+ ")");
 
 							// Skip 0xff filling
-							do {
-								markercode = is.read();
-								readcounter++;
-							} while (markercode == 0xff);
+							do
+								markercode = decoder.readRaw();
+							while (markercode == 0xff);
 						}
 						if (markercode == ((M_RST0 & 255) + next_restart_num))
 							next_restart_num = (next_restart_num + 1) & 7;
@@ -4237,7 +5275,7 @@ public class LLJTran extends BasicJpegIo implements IterativeReader,
 								// Forgive missing restart marker at the end.
 								// Pass it on as an unprocessed_marker to be
 								// processed by the main loop
-								unprocessed_marker = markercode;
+								decoder.marker = markercode;
 							else
 								throw new IOException(
 										"Restart markers are messed up at "
@@ -4252,9 +5290,15 @@ public class LLJTran extends BasicJpegIo implements IterativeReader,
 						for (int k = 0; k < last_dc.length; k++)
 							last_dc[k] = 0;
 						decoder.restart();
-					} else if (unprocessed_marker != 0)
+					} else if (decoder.marker != 0
+							&& decoder.bit_buff_len == 0
+							&& (iy != heightMCU - 1 || ix != widthMCU - 1))
+						// The decoder looks ahead upto HUFF_LOOKAHEAD bits so
+						// a marker may be seen while there are still unused
+						// bits in bit_buff or after the last MCU. Complain only
+						// if the MCU data has really run into a marker.
 						throw new IOException("Unexpected Restart marker 0x"
-								+ Integer.toHexString(unprocessed_marker)
+								+ Integer.toHexString(decoder.marker)
 								+ " with restart_interval=" + restart_interval
 								+ " and restarts_to_go=" + restarts_to_go
 								+ " at " + Integer.toHexString(readcounter)
@@ -4282,17 +5326,324 @@ public class LLJTran extends BasicJpegIo implements IterativeReader,
 		iReadVars.currentProgress = currentProgress;
 		iReadVars.callbackProgress = callbackProgress;
 
-		if (iy >= heightMCU) {
+		if (iy >= lastRow) {
 			retVal = false;
 			// Cleanup
 			iReadVars.last_dc = null;
 			iReadVars.DCT = null;
+			// Pass on the marker ending the scan if seen by the decoder and
+			// give back to the stream any input read beyond the scan
+			if (iy >= heightMCU) {
+				unprocessed_marker = decoder.marker;
+				if (readStats != null)
+					readHuffGen = readStats.stats;
+			}
+			readStats = null;
+			readStatsLastDc = null;
+			iReadVars.is = decoder.release();
 			decoder = null;
 		}
 
 		return retVal;
 	}
 
+	// Reads upto about numBytes of the image data splitting it at the restart
+	// markers. Once all of the image data is read the restart intervals are
+	// decoded in parallel. Returns false if more of the image data is to be
+	// read.
+	private boolean readParallelDCT(int numBytes) throws IOException {
+		int totalMCUs = widthMCU * heightMCU;
+		final int numIntervals = (totalMCUs + restart_interval - 1)
+				/ restart_interval;
+		// The scan is used in place if the input is already in memory
+		boolean inPlace = decoder.inBuffer != null;
+		if (iReadVars.starts == null) {
+			// starts[i] is the offset of the data of restart interval i in
+			// scan
+			iReadVars.starts = new int[numIntervals + 1];
+			iReadVars.numStarts = 1;
+			iReadVars.scan = inPlace ? decoder.buf
+					: new byte[DECODER_CHUNK_SIZE];
+			iReadVars.scanLen = inPlace ? decoder.pos : 0;
+			iReadVars.starts[0] = iReadVars.scanLen;
+		}
+		final int starts[] = iReadVars.starts;
+		int numStarts = iReadVars.numStarts;
+		int next_restart_num = iReadVars.next_restart_num;
+		byte scan[] = iReadVars.scan;
+		int len = iReadVars.scanLen;
+		int markCounter = readcounter;
+		int markercode = 0;
+		boolean scanRead = false;
+		while (readcounter - markCounter < numBytes) {
+			markercode = decoder.readRaw();
+			if (markercode == 0xff) {
+				// Skip 0xff filling
+				do
+					markercode = decoder.readRaw();
+				while (markercode == 0xff);
+				if (markercode == -1)
+					break;
+				// Retain the 0xff stuffing and markers which are handled by
+				// the decoder of the interval
+				if (inPlace)
+					len = decoder.pos;
+				else {
+					if (len + 2 > scan.length) {
+						byte newScan[] = new byte[scan.length * 2];
+						System.arraycopy(scan, 0, newScan, 0, len);
+						scan = newScan;
+					}
+					scan[len++] = M_PRX;
+					scan[len++] = (byte) markercode;
+				}
+				if (markercode == 0)
+					continue;
+				if ((markercode & 0xf8) != (M_RST0 & 255)) {
+					decoder.marker = markercode;
+					scanRead = true;
+					break;
+				}
+				// A restart marker after the last interval is ignored
+				if (markercode != (M_RST0 & 255) + next_restart_num
+						|| numStarts > numIntervals)
+					throw new IOException("Restart markers are messed up at "
+							+ readcounter + "(0x"
+							+ Integer.toHexString(readcounter) + ") ("
+							+ getLocationName() + ")");
+				next_restart_num = (next_restart_num + 1) & 7;
+				if (numStarts < numIntervals)
+					starts[numStarts] = len;
+				numStarts++;
+			} else if (markercode == -1)
+				break;
+			else {
+				if (inPlace) {
+					len = decoder.pos;
+					continue;
+				}
+				if (len == scan.length) {
+					byte newScan[] = new byte[scan.length * 2];
+					System.arraycopy(scan, 0, newScan, 0, len);
+					scan = newScan;
+				}
+				scan[len++] = (byte) markercode;
+			}
+		}
+		if (markercode == -1)
+			throw new IOException("End of file reached at " + readcounter
+					+ " (" + getLocationName() + ")");
+		if (!scanRead) {
+			iReadVars.scan = scan;
+			iReadVars.scanLen = len;
+			iReadVars.numStarts = numStarts;
+			iReadVars.next_restart_num = next_restart_num;
+			return false;
+		}
+		iReadVars.scan = null;
+		iReadVars.starts = null;
+		if (numStarts < numIntervals)
+			throw new IOException("Restart markers are messed up, found "
+					+ (numStarts - 1) + " instead of " + (numIntervals - 1)
+					+ " (" + getLocationName() + ")");
+		starts[numIntervals] = len;
+
+		final byte[] scanData = scan;
+		// Decoded intervals waiting for the ones before them to be added to
+		// dct_coefs. An interval is decoded only if it is within window of
+		// the next one to be added so that only a few of them are held.
+		final DctStore intervals[] = new DctStore[numIntervals];
+		final int window = 2 * readThreads;
+		final int added[] = new int[1];
+		final Object lock = intervals;
+		final AtomicInteger nextInterval = new AtomicInteger();
+		final Throwable error[] = new Throwable[1];
+		Runnable worker = new Runnable() {
+			public void run() {
+				int[] last_dc = new int[components_in_scan];
+				int[][] DCT = new int[2][DCTSIZE2];
+				int i;
+				while ((i = nextInterval.getAndIncrement()) < numIntervals) {
+					Throwable err = null;
+					try {
+						synchronized (lock) {
+							while (error[0] == null && i >= added[0] + window)
+								lock.wait();
+							if (error[0] != null)
+								break;
+						}
+						DctStore store = decodeInterval(i, scanData,
+								starts[i], starts[i + 1] - starts[i], last_dc,
+								DCT);
+						synchronized (lock) {
+							// Add the intervals which are next in order
+							intervals[i] = store;
+							while (error[0] == null && added[0] < numIntervals
+									&& intervals[added[0]] != null) {
+								dct_coefs.addBlocks(intervals[added[0]]);
+								intervals[added[0]++] = null;
+							}
+							lock.notifyAll();
+						}
+					} catch (IOException e) {
+						err = e;
+					} catch (InterruptedException e) {
+						err = new IOException("Interrupted while decoding");
+					} catch (RuntimeException e) {
+						// Reported as a read error keeping the cause
+						err = new IOException(e.toString());
+						err.initCause(e);
+					} catch (Error e) {
+						err = e;
+					}
+					if (err != null) {
+						// Stops the threads waiting for this interval
+						synchronized (lock) {
+							if (error[0] == null)
+								error[0] = err;
+							lock.notifyAll();
+						}
+						break;
+					}
+				}
+			}
+		};
+		Thread threads[] = new Thread[Math.min(readThreads, numIntervals) - 1];
+		for (int i = 0; i < threads.length; i++) {
+			threads[i] = new Thread(worker, "LLJTran Decoder " + (i + 1));
+			threads[i].start();
+		}
+		worker.run();
+		for (int i = 0; i < threads.length; i++)
+			try {
+				threads[i].join();
+			} catch (InterruptedException e) {
+				error[0] = new IOException("Interrupted while decoding");
+			}
+		if (error[0] instanceof IOException)
+			throw (IOException) error[0];
+		if (error[0] != null)
+			throw (Error) error[0];
+
+		iReadVars.ix = 0;
+		iReadVars.iy = heightMCU;
+		iReadVars.currentProgress += iReadVars.progressPerMcu * totalMCUs;
+		if (readProgressCallback != null) {
+			iReadVars.callbackProgress = iReadVars.currentProgress;
+			readProgressCallback.progressHandler(iReadVars.callbackProgress,
+					(int) Math.round(iReadVars.callbackProgress * 100));
+		}
+		return true;
+	}
+
+	// Decodes restart interval i whose data including the marker ending it is
+	// in len bytes of scan starting at offset.
+	private DctStore decodeInterval(int i, byte[] scan, int offset, int len,
+			int[] last_dc, int[][] DCT) throws IOException {
+		HuffDecoder decoder = new HuffDecoder(scan, offset, len);
+		for (int k = 0; k < last_dc.length; k++)
+			last_dc[k] = 0;
+		int mcu = i * restart_interval;
+		int end = Math.min(mcu + restart_interval, widthMCU * heightMCU);
+		DctStore retVal = new HeapDctStore(end - mcu, 1, mcusize);
+		try {
+			for (; mcu < end; mcu++) {
+				if (dcOnlyRead)
+					decodeMCUDc(decoder, last_dc, DCT, retVal);
+				else
+					decodeMCU(decoder, last_dc, DCT, retVal);
+				if (decoder.marker != 0 && decoder.bit_buff_len == 0
+						&& mcu != end - 1)
+					throw new IOException("Unexpected Restart marker 0x"
+							+ Integer.toHexString(decoder.marker)
+							+ " in restart interval " + i + " at MCU " + mcu
+							+ " (" + getLocationName() + ")");
+			}
+		} catch (RestartException re) {
+			if (Log.debugLevel >= Log.LEVEL_INFO)
+				android.util.Log.i(TAG, "Restart exception ");
+		}
+		return retVal;
+	}
+
+	// Decodes the next MCU from decoder into store
+	private void decodeMCU(HuffDecoder decoder, int[] last_dc, int[][] DCT,
+			DctStore store) throws IOException, RestartException {
+		int curcoef;
+		for (int c = 0; c < components_in_scan; c++) {
+			if (readStats != null)
+				readStats.setTables(ac_table[c], dc_table[c]);
+			for (int b = 0; b < V[c] * H[c]; b++) {
+				decoder.setTables(false, dc_table[c]);
+				last_dc[c] = decoder.extend(decoder.decode(1)) + last_dc[c];
+				curcoef = 0;
+				DCT[0][curcoef] = last_dc[c];
+				DCT[1][curcoef++] = 0;
+				// decode ACs
+				decoder.setTables(true, ac_table[c]);
+				int ac, v;
+				for (int ci = 1; ci < DCTSIZE2; ci++) {
+					ac = decoder.decode(1);
+					v = (ac >> 4);
+					ac &= 15;
+					if (ac != 0) {
+						ci += v;
+						if (ci > DCTSIZE2 - 1) {
+							if (Log.debugLevel >= Log.LEVEL_ERROR)
+								android.util.Log.e(TAG, "Error: Invalid AC index "
+										+ ci);
+							ci = DCTSIZE2 - 1;
+						}
+						ac = decoder.extend(ac);
+						DCT[0][curcoef] = ac;
+						DCT[1][curcoef++] = ci;
+					} else {
+						if (v != 15)
+							break;
+						ci += v;
+					}
+				}
+				store.addBlock(DCT[0], DCT[1], curcoef);
+				if (readStats != null)
+					readStatsLastDc[c] = readStats.encode(DCT,
+							readStatsLastDc[c], curcoef);
+			}
+		}
+	}
+
+	// Decodes the next MCU from decoder adding only the DC coefficient of
+	// each block to store. If store is null nothing is stored and only the DC
+	// prediction is tracked.
+	private void decodeMCUDc(HuffDecoder decoder, int[] last_dc, int[][] DCT,
+			DctStore store) throws IOException, RestartException {
+		for (int c = 0; c < components_in_scan; c++) {
+			for (int b = 0; b < V[c] * H[c]; b++) {
+				decoder.setTables(false, dc_table[c]);
+				last_dc[c] = decoder.extend(decoder.decode(1)) + last_dc[c];
+				if (store != null) {
+					DCT[0][0] = last_dc[c];
+					DCT[1][0] = 0;
+					store.addBlock(DCT[0], DCT[1], 1);
+				}
+				decoder.setTables(true, ac_table[c]);
+				int ac, v;
+				for (int ci = 1; ci < DCTSIZE2; ci++) {
+					ac = decoder.decode(1);
+					v = (ac >> 4);
+					ac &= 15;
+					if (ac != 0) {
+						ci += v;
+						decoder.getBits(ac);
+					} else {
+						if (v != 15)
+							break;
+						ci += v;
+					}
+				}
+			}
+		}
+	}
+
 	/**
 	 * Internal method to Read DCT coefficients
 	 */
@@ -4362,9 +5713,8 @@ public class LLJTran extends BasicJpegIo implements IterativeReader,
 		boolean handleXEdge = false;
 		boolean handleYEdge = false;
 
-		// if transformDct true it indicates if full Dct array needs to be
-		// allocated
-		// or if the rows of old dct array can be reused.
+		// if transformDct true it indicates if the rows of the old dct
+		// coefficients can be freed as soon as they are used.
 		boolean reuseDctRows = true;
 
 		if (edgeOption) {
@@ -4372,15 +5722,15 @@ public class LLJTran extends BasicJpegIo implements IterativeReader,
 			handleYEdge = partialYMCU;
 		}
 
-		if (widthMCU != dct_coefs[0].length || op == TRANSPOSE || op == ROT_90
-				|| op == ROT_270 || op == TRANSVERSE)
+		if (op == TRANSPOSE || op == ROT_90 || op == ROT_270
+				|| op == TRANSVERSE)
 			reuseDctRows = false;
 
 		iWriteVars.handleXEdge = handleXEdge;
 		iWriteVars.handleYEdge = handleYEdge;
 
-		iWriteVars.progressPerMcu = (0.99 / dct_coefs.length)
-				/ dct_coefs[0].length;
+		iWriteVars.progressPerMcu = (0.99 / dct_coefs.getHeightMCU())
+				/ dct_coefs.getWidthMCU();
 		if (!transformDct
 				&& writeProgressCallback != null
 				&& iWriteVars.currentProgress - iWriteVars.callbackProgress > writeProgressCallback
@@ -4390,28 +5740,20 @@ public class LLJTran extends BasicJpegIo implements IterativeReader,
 					(int) Math.round(iWriteVars.callbackProgress * 100));
 		}
 
-		// Whenever we copy reordered coefs from another array we will use that
-		// array as the next temp_mcu array to avoid doing a new everytime,
-		// saving trouble for the garbage collector
-		if (transformDct) {
-			if (reuseDctRows) {
-				iWriteVars.new_dct_coefs = new int[heightMCU][][][][];
-				// Allocate space for new_dct_row
-				if (heightMCU > 0)
-					iWriteVars.new_dct_coefs[0] = new int[widthMCU][][][];
-			} else
-				iWriteVars.new_dct_coefs = new int[heightMCU][widthMCU][][][];
-
-			// Allocate space for first new_mcu
-			if (heightMCU > 0 && widthMCU > 0)
-				iWriteVars.new_dct_coefs[0][0] = new int[mcusize][][];
-		} else {
+		// The transformed coefficients are added to a new DctStore in the
+		// order they would have been written out
+		if (transformDct)
+			iWriteVars.new_dct_coefs = newDctStore(widthMCU, heightMCU);
+		else {
 			reuseDctRows = false;
 			iWriteVars.last_dc = new int[components_in_scan];
-			encoder = new HuffEncoder(os);
+			encoder = gatheringStats ? new HuffEncoder(huffGen)
+					: new HuffEncoder(os);
 		}
 
-		retainDct = !transformDct;
+		// Blocks are unpacked from dct_coefs into a temporary array which the
+		// transforms can modify
+		retainDct = false;
 
 		int xCropOffsetMCU = 0;
 		int yCropOffsetMCU = 0;
@@ -4427,36 +5769,36 @@ public class LLJTran extends BasicJpegIo implements IterativeReader,
 		iWriteVars.yCropOffsetMCU = yCropOffsetMCU;
 		iWriteVars.new_ix = 0;
 		iWriteVars.new_iy = 0;
+		iWriteVars.parallelWrite = writeThreads > 1 && !transformDct
+				&& restart_interval != 0 && _Ss == 0 && !gatheringStats
+				&& !iWriteVars.pullDownMode;
 	}
 
 	// class variables partialXMCU and partialYMCU should be set to indicate
 	// partial X & Y blocks without transpose
 	private boolean writeNextDCT(int numBytes) throws IOException {
 		boolean retVal = true;
-		int op = iWriteVars.op;
 		boolean transformDct = iWriteVars.transformDct;
 
-		int[][][][][] new_dct_coefs = iWriteVars.new_dct_coefs;
-		int[][][] new_mcu = null;
-		int[][][] next_mcu;
+		DctStore new_dct_coefs = iWriteVars.new_dct_coefs;
+		int[][] dct = new int[2][DCTSIZE2];
 
 		int[] last_dc = iWriteVars.last_dc;
-		int off;
-
-		boolean handleXEdge = iWriteVars.handleXEdge;
-		boolean handleYEdge = iWriteVars.handleYEdge;
 
-		// if transformDct true it indicates if full Dct array needs to be
-		// allocated
-		// or if the rows of old dct array can be reused.
+		// if transformDct true it indicates if the rows of the old dct
+		// coefficients can be freed as soon as they are used.
 		boolean reuseDctRows = iWriteVars.reuseDctRows;
 		int dctOp;
-		int xCropOffsetMCU = iWriteVars.xCropOffsetMCU;
-		int yCropOffsetMCU = iWriteVars.yCropOffsetMCU;
-		int new_off, ix, iy = 0;
+		int iy = 0;
+		int pos[] = new int[2];
+
+		if (iWriteVars.parallelWrite)
+			writeParallelDCT(numBytes);
+		// The encoder state is only valid for the sequential loop once the
+		// parallel write has fallen back at the start of an interval
+		boolean sequential = !iWriteVars.parallelWrite;
 		int new_ix = iWriteVars.new_ix;
 		int new_iy = iWriteVars.new_iy;
-		int[][][][] new_dct_row = null;
 		int markCounter = writecounter;
 
 		int restart_interval = iWriteVars.restart_interval;
@@ -4466,290 +5808,658 @@ public class LLJTran extends BasicJpegIo implements IterativeReader,
 		double progressPerMcu = iWriteVars.progressPerMcu;
 		boolean pullDownMode = iWriteVars.pullDownMode;
 
-		if (transformDct && new_iy < heightMCU) {
-			new_dct_row = new_dct_coefs[new_iy];
-			if (new_ix < widthMCU)
-				new_mcu = new_dct_coefs[new_iy][new_ix];
-		}
-		enough: for (; new_iy < heightMCU; new_iy++) {
-			if (reuseDctRows)
-				new_dct_coefs[new_iy] = new_dct_row;
+		enough: for (; sequential && new_iy < heightMCU; new_iy++) {
 			for (; new_ix < widthMCU; new_ix++) {
-				if (transformDct)
-					new_dct_coefs[new_iy][new_ix] = new_mcu;
-
 				if (writecounter - markCounter >= numBytes)
 					break enough;
-				off = 0;
-				new_off = 0;
-				dctOp = op;
-				switch (op) {
-				case TRANSPOSE:
-					ix = new_iy;
-					iy = new_ix;
-					break;
-				case ROT_90:
-					ix = new_iy;
-					iy = widthMCU - 1 - new_ix;
-					if (handleYEdge) {
-						if (iy > 0)
-							iy--;
-						else {
-							iy = widthMCU - 1;
-							dctOp = TRANSPOSE;
-						}
-					}
-					break;
-				case ROT_270:
-					ix = heightMCU - 1 - new_iy;
-					iy = new_ix;
-					if (handleXEdge) {
-						if (ix > 0)
-							ix--;
-						else {
-							ix = heightMCU - 1;
-							dctOp = TRANSPOSE;
-						}
-					}
-					break;
-				case TRANSVERSE:
-					ix = heightMCU - 1 - new_iy;
-					iy = widthMCU - 1 - new_ix;
-					if (handleXEdge) {
-						if (ix > 0)
-							ix--;
-						else {
-							ix = heightMCU - 1;
-							dctOp = ROT_90;
-						}
-					}
-					if (handleYEdge) {
-						if (iy > 0)
-							iy--;
-						else {
-							iy = widthMCU - 1;
-							dctOp = dctOp == TRANSVERSE ? ROT_270 : TRANSPOSE;
-						}
-					}
-					break;
-				case FLIP_H:
-					ix = widthMCU - 1 - new_ix;
-					iy = new_iy;
-					if (handleXEdge) {
-						if (ix > 0)
-							ix--;
-						else {
-							ix = widthMCU - 1;
-							dctOp = NONE;
-						}
-					}
-					break;
-				case FLIP_V:
-					ix = new_ix;
-					iy = heightMCU - 1 - new_iy;
-					if (handleYEdge) {
-						if (iy > 0)
-							iy--;
-						else {
-							iy = heightMCU - 1;
-							dctOp = NONE;
+				dctOp = mapWriteMCU(new_ix, new_iy, pos);
+				iy = pos[1];
+				try {
+					writeMCU(pos[0], iy, dctOp, dct, last_dc, new_dct_coefs,
+							encoder, tmp_dct[0]);
+
+					if (!transformDct) {
+						if (restart_interval != 0 && --restarts_to_go == 0) {
+							restarts_to_go = restart_interval;
+							if (_Ss == 0) {
+								for (int k = 0; k < last_dc.length; k++)
+									last_dc[k] = 0;
+							}
+							encoder.restart();
 						}
-					}
-					break;
-				case ROT_180:
-					ix = widthMCU - 1 - new_ix;
-					iy = heightMCU - 1 - new_iy;
-					if (handleXEdge) {
-						if (ix > 0)
-							ix--;
-						else {
-							ix = widthMCU - 1;
-							dctOp = FLIP_V;
+
+						currentProgress += progressPerMcu;
+						if (writeProgressCallback != null
+								&& currentProgress - callbackProgress > writeProgressCallback
+										.getCallbackInterval()) {
+							callbackProgress = currentProgress;
+							writeProgressCallback.progressHandler(
+									callbackProgress,
+									(int) Math.round(callbackProgress * 100));
 						}
 					}
-					if (handleYEdge) {
-						if (iy > 0)
-							iy--;
+				} catch (RestartException re) {
+					// re.printStackTrace();
+					restarts_to_go = 0;
+				}
+			}
+			new_ix = 0;
+			if (pullDownMode || reuseDctRows)
+				dct_coefs.freeRow(iy);
+		}
+
+		iWriteVars.new_ix = new_ix;
+		iWriteVars.new_iy = new_iy;
+		iWriteVars.restarts_to_go = restarts_to_go;
+		iWriteVars.currentProgress = currentProgress;
+		iWriteVars.callbackProgress = callbackProgress;
+
+		if (new_iy >= heightMCU) {
+			retVal = false;
+			if (transformDct) {
+				dct_coefs.close();
+				dct_coefs = new_dct_coefs;
+				iWriteVars.new_dct_coefs = null;
+			} else
+				encoder.flush();
+			// Cleanup
+			encoder = null;
+		}
+
+		return retVal;
+	}
+
+	// Transforms a block of the MCU at ix, iy of dct_coefs using dctOp and
+	// writes it out or adds it to new_dct_coefs if not null. dct is a
+	// temporary array into which the block is unpacked.
+	// Gathers into huffGen the frequencies of the Huffman symbols of the image
+	// data written for op. The frequencies counted while reading are used if
+	// they apply, else the MCU rows are split into bands whose frequencies
+	// are counted in parallel if writeThreads is more than 1.
+	private void gatherHuffStats(int op, int options, int restart_interval)
+			throws IOException {
+		if (readHuffGen != null && op == NONE && restart_interval == 0) {
+			huffGen.add(readHuffGen);
+			return;
+		}
+		iWriteVars.pullDownMode = false;
+		initWriteDCT(null, op, options, restart_interval, false);
+		if (writeThreads > 1 && _Ss == 0 && heightMCU > 1) {
+			if (gatherParallelHuffStats(restart_interval)) {
+				encoder = null;
+				return;
+			}
+			huffGen.init();
+		}
+		do
+			; while (writeNextDCT(10000000));
+	}
+
+	// Counts the frequencies for gatherHuffStats over bands of MCU rows in
+	// parallel. Each band starts with the DC values of the MCU before it
+	// which is encoded without counting. Returns false if an MCU could not
+	// be encoded.
+	private boolean gatherParallelHuffStats(final int restart_interval)
+			throws IOException {
+		final int numBands = Math.min(heightMCU, writeThreads * 4);
+		final AtomicInteger nextBand = new AtomicInteger();
+		final Throwable error[] = new Throwable[1];
+		final boolean failed[] = new boolean[1];
+		HuffGenerator threadStats[] = new HuffGenerator[Math.min(writeThreads,
+				numBands)];
+		Thread threads[] = new Thread[threadStats.length - 1];
+		Runnable worker = null;
+		for (int t = 0; t < threadStats.length; t++) {
+			final HuffGenerator stats = new HuffGenerator();
+			stats.init();
+			threadStats[t] = stats;
+			worker = new Runnable() {
+				public void run() {
+					HuffEncoder encoder = new HuffEncoder(stats);
+					HuffGenerator discard = new HuffGenerator();
+					discard.init();
+					HuffEncoder dcEncoder = new HuffEncoder(discard);
+					int[] last_dc = new int[components_in_scan];
+					int[][] dct = new int[2][DCTSIZE2];
+					int[] tmpCoef = new int[DCTSIZE2];
+					int pos[] = new int[2];
+					int band;
+					while (error[0] == null && !failed[0]
+							&& (band = nextBand.getAndIncrement()) < numBands) {
+						int mcu = (int) ((long) band * heightMCU / numBands)
+								* widthMCU;
+						int end = (int) ((long) (band + 1) * heightMCU / numBands)
+								* widthMCU;
+						try {
+							for (int k = 0; k < last_dc.length; k++)
+								last_dc[k] = 0;
+							if (mcu > 0
+									&& (restart_interval == 0 || mcu
+											% restart_interval != 0)) {
+								int dctOp = mapWriteMCU((mcu - 1) % widthMCU,
+										(mcu - 1) / widthMCU, pos);
+								writeMCU(pos[0], pos[1], dctOp, dct, last_dc,
+										null, dcEncoder, tmpCoef);
+							}
+							for (; mcu < end; mcu++) {
+								if (restart_interval != 0
+										&& mcu % restart_interval == 0)
+									for (int k = 0; k < last_dc.length; k++)
+										last_dc[k] = 0;
+								int dctOp = mapWriteMCU(mcu % widthMCU, mcu
+										/ widthMCU, pos);
+								writeMCU(pos[0], pos[1], dctOp, dct, last_dc,
+										null, encoder, tmpCoef);
+							}
+						} catch (RestartException e) {
+							failed[0] = true;
+						} catch (Throwable e) {
+							error[0] = e;
+						}
+					}
+				}
+			};
+			if (t < threads.length)
+				threads[t] = new Thread(worker, "LLJTran Encoder " + (t + 1));
+		}
+		for (int i = 0; i < threads.length; i++)
+			threads[i].start();
+		worker.run();
+		for (int i = 0; i < threads.length; i++)
+			try {
+				threads[i].join();
+			} catch (InterruptedException e) {
+				error[0] = new IOException("Interrupted while encoding");
+			}
+		if (error[0] instanceof IOException)
+			throw (IOException) error[0];
+		if (error[0] instanceof RuntimeException)
+			throw (RuntimeException) error[0];
+		if (error[0] != null)
+			throw (Error) error[0];
+		if (failed[0])
+			return false;
+		for (int t = 0; t < threadStats.length; t++)
+			huffGen.add(threadStats[t]);
+		return true;
+	}
+
+	// Encodes the restart intervals from the current position in batches
+	// using writeThreads threads and writes them out in order followed by
+	// their restart markers, until numBytes are written. If an interval cannot
+	// be encoded parallelWrite is cleared so that writeNextDCT continues
+	// sequentially from the start of the interval.
+	private void writeParallelDCT(int numBytes) throws IOException {
+		int restart_interval = iWriteVars.restart_interval;
+		final int totalMCUs = widthMCU * heightMCU;
+		final int numIntervals = (totalMCUs + restart_interval - 1)
+				/ restart_interval;
+		OutputStream os = iWriteVars.os;
+		int markCounter = writecounter;
+		int interval = (iWriteVars.new_iy * widthMCU + iWriteVars.new_ix)
+				/ restart_interval;
+		// Atleast about 4096 MCUs are encoded by each thread for a batch
+		int batchSize = writeThreads
+				* Math.max(4, (4095 + restart_interval) / restart_interval);
+		while (interval < numIntervals && writecounter - markCounter < numBytes) {
+			final int first = interval;
+			final int end = Math.min(numIntervals, interval + batchSize);
+			final byte segments[][] = new byte[end - first][];
+			final AtomicInteger nextInterval = new AtomicInteger(first);
+			final Throwable error[] = new Throwable[1];
+			Runnable worker = new Runnable() {
+				public void run() {
+					ByteArrayOutputStream bo = new ByteArrayOutputStream();
+					HuffEncoder encoder = new HuffEncoder(bo, false);
+					int[] last_dc = new int[components_in_scan];
+					int[][] dct = new int[2][DCTSIZE2];
+					int[] tmpCoef = new int[DCTSIZE2];
+					int pos[] = new int[2];
+					int i;
+					while (error[0] == null
+							&& (i = nextInterval.getAndIncrement()) < end) {
+						try {
+							segments[i - first] = encodeInterval(i, encoder,
+									bo, last_dc, dct, tmpCoef, pos);
+						} catch (Throwable e) {
+							error[0] = e;
+						}
+					}
+				}
+			};
+			Thread threads[] = new Thread[Math.min(writeThreads, end - first) - 1];
+			for (int i = 0; i < threads.length; i++) {
+				threads[i] = new Thread(worker, "LLJTran Encoder " + (i + 1));
+				threads[i].start();
+			}
+			worker.run();
+			for (int i = 0; i < threads.length; i++)
+				try {
+					threads[i].join();
+				} catch (InterruptedException e) {
+					error[0] = new IOException("Interrupted while encoding");
+				}
+			if (error[0] instanceof IOException)
+				throw (IOException) error[0];
+			if (error[0] instanceof RuntimeException)
+				throw (RuntimeException) error[0];
+			if (error[0] != null)
+				throw (Error) error[0];
+
+			for (; interval < end; interval++) {
+				byte segment[] = segments[interval - first];
+				if (segment == null) {
+					// Continue sequentially from the start of the interval
+					iWriteVars.parallelWrite = false;
+					break;
+				}
+				os.write(segment);
+				writecounter += segment.length;
+				// Like encoder.restart a marker follows every full interval
+				if ((interval + 1) * restart_interval <= totalMCUs) {
+					os.write(M_PRX);
+					os.write((M_RST0 & 255) + (interval & 7));
+					writecounter += 2;
+				}
+			}
+
+			int mcu = Math.min(interval * restart_interval, totalMCUs);
+			iWriteVars.currentProgress += iWriteVars.progressPerMcu
+					* (mcu - iWriteVars.new_iy * widthMCU - iWriteVars.new_ix);
+			iWriteVars.new_iy = mcu / widthMCU;
+			iWriteVars.new_ix = mcu % widthMCU;
+			if (writeProgressCallback != null
+					&& iWriteVars.currentProgress - iWriteVars.callbackProgress > writeProgressCallback
+							.getCallbackInterval()) {
+				iWriteVars.callbackProgress = iWriteVars.currentProgress;
+				writeProgressCallback.progressHandler(
+						iWriteVars.callbackProgress,
+						(int) Math.round(iWriteVars.callbackProgress * 100));
+			}
+			if (!iWriteVars.parallelWrite) {
+				iWriteVars.restarts_to_go = restart_interval;
+				for (int k = 0; k < iWriteVars.last_dc.length; k++)
+					iWriteVars.last_dc[k] = 0;
+				encoder.next_restart_num = interval & 7;
+				break;
+			}
+		}
+	}
+
+	// Encodes restart interval i of the image being written using encoder
+	// which writes to bo. Returns the encoded data or null if the interval
+	// could not be encoded.
+	private byte[] encodeInterval(int i, HuffEncoder encoder,
+			ByteArrayOutputStream bo, int[] last_dc, int[][] dct,
+			int[] tmpCoef, int[] pos) throws IOException {
+		for (int k = 0; k < last_dc.length; k++)
+			last_dc[k] = 0;
+		int mcu = i * iWriteVars.restart_interval;
+		int end = Math.min(mcu + iWriteVars.restart_interval, widthMCU
+				* heightMCU);
+		byte retVal[] = null;
+		try {
+			for (; mcu < end; mcu++) {
+				int dctOp = mapWriteMCU(mcu % widthMCU, mcu / widthMCU, pos);
+				writeMCU(pos[0], pos[1], dctOp, dct, last_dc, null, encoder,
+						tmpCoef);
+			}
+			encoder.flush();
+			retVal = bo.toByteArray();
+		} catch (RestartException re) {
+			encoder.flush();
+		}
+		bo.reset();
+		return retVal;
+	}
+
+	// Gets the position in dct_coefs of the MCU at new_ix, new_iy of the
+	// image being written into pos as ix, iy and returns the transform to be
+	// applied to its blocks.
+	private int mapWriteMCU(int new_ix, int new_iy, int[] pos) {
+		int op = iWriteVars.op;
+		boolean handleXEdge = iWriteVars.handleXEdge;
+		boolean handleYEdge = iWriteVars.handleYEdge;
+		int xCropOffsetMCU = iWriteVars.xCropOffsetMCU;
+		int yCropOffsetMCU = iWriteVars.yCropOffsetMCU;
+		int ix, iy;
+		int dctOp = op;
+		switch (op) {
+		case TRANSPOSE:
+			ix = new_iy;
+			iy = new_ix;
+			break;
+		case ROT_90:
+			ix = new_iy;
+			iy = widthMCU - 1 - new_ix;
+			if (handleYEdge) {
+				if (iy > 0)
+					iy--;
+				else {
+					iy = widthMCU - 1;
+					dctOp = TRANSPOSE;
+				}
+			}
+			break;
+		case ROT_270:
+			ix = heightMCU - 1 - new_iy;
+			iy = new_ix;
+			if (handleXEdge) {
+				if (ix > 0)
+					ix--;
+				else {
+					ix = heightMCU - 1;
+					dctOp = TRANSPOSE;
+				}
+			}
+			break;
+		case TRANSVERSE:
+			ix = heightMCU - 1 - new_iy;
+			iy = widthMCU - 1 - new_ix;
+			if (handleXEdge) {
+				if (ix > 0)
+					ix--;
+				else {
+					ix = heightMCU - 1;
+					dctOp = ROT_90;
+				}
+			}
+			if (handleYEdge) {
+				if (iy > 0)
+					iy--;
+				else {
+					iy = widthMCU - 1;
+					dctOp = dctOp == TRANSVERSE ? ROT_270 : TRANSPOSE;
+				}
+			}
+			break;
+		case FLIP_H:
+			ix = widthMCU - 1 - new_ix;
+			iy = new_iy;
+			if (handleXEdge) {
+				if (ix > 0)
+					ix--;
+				else {
+					ix = widthMCU - 1;
+					dctOp = NONE;
+				}
+			}
+			break;
+		case FLIP_V:
+			ix = new_ix;
+			iy = heightMCU - 1 - new_iy;
+			if (handleYEdge) {
+				if (iy > 0)
+					iy--;
+				else {
+					iy = heightMCU - 1;
+					dctOp = NONE;
+				}
+			}
+			break;
+		case ROT_180:
+			ix = widthMCU - 1 - new_ix;
+			iy = heightMCU - 1 - new_iy;
+			if (handleXEdge) {
+				if (ix > 0)
+					ix--;
+				else {
+					ix = widthMCU - 1;
+					dctOp = FLIP_V;
+				}
+			}
+			if (handleYEdge) {
+				if (iy > 0)
+					iy--;
+				else {
+					iy = heightMCU - 1;
+					dctOp = dctOp == ROT_180 ? FLIP_H : NONE;
+				}
+			}
+			break;
+		case CROP:
+			ix = new_ix + xCropOffsetMCU;
+			iy = new_iy + yCropOffsetMCU;
+			dctOp = NONE;
+			break;
+		case NONE:
+		default:
+			ix = new_ix;
+			iy = new_iy;
+			break;
+		}
+		pos[0] = ix;
+		pos[1] = iy;
+		return dctOp;
+	}
+
+	// Writes the blocks of the MCU at ix, iy of dct_coefs transformed by
+	// dctOp to new_dct_coefs or if it is null to encoder. tmpCoef is used by
+	// the transforms which reorder the coefficients.
+	private void writeMCU(int ix, int iy, int dctOp, int[][] dct,
+			int[] last_dc, DctStore new_dct_coefs, HuffEncoder encoder,
+			int[] tmpCoef) throws IOException, RestartException {
+		int off = 0;
+		for (int c = 0; c < components_in_scan; c++) {
+			if (new_dct_coefs == null)
+				encoder.setTables(ac_table[c], dc_table[c]);
+			switch (dctOp) {
+			case TRANSPOSE:
+			case ROT_90:
+			case ROT_270:
+			case TRANSVERSE:
+				boolean revX = dctOp == ROT_270
+						|| dctOp == TRANSVERSE;
+				boolean revY = dctOp == ROT_90
+						|| dctOp == TRANSVERSE;
+				for (int mx = 0; mx < V[c]; mx++) {
+					for (int my = 0; my < H[c]; my++) {
+						writeBlock(ix, iy, off
+								+ (revY ? H[c] - 1 - my : my)
+								* V[c]
+								+ (revX ? V[c] - 1 - mx : mx),
+								dctOp, c, dct, last_dc,
+								new_dct_coefs, encoder, tmpCoef);
+					}
+				}
+				break;
+			case FLIP_H:
+			case FLIP_V:
+			case ROT_180:
+				boolean flipX = dctOp != FLIP_V;
+				boolean flipY = dctOp != FLIP_H;
+				for (int my = 0; my < V[c]; my++) {
+					for (int mx = 0; mx < H[c]; mx++) {
+						writeBlock(ix, iy, off
+								+ (flipY ? V[c] - 1 - my : my)
+								* H[c]
+								+ (flipX ? H[c] - 1 - mx : mx),
+								dctOp, c, dct, last_dc,
+								new_dct_coefs, encoder, tmpCoef);
+					}
+				}
+				break;
+			case NONE:
+			default:
+				for (int b = 0; b < V[c] * H[c]; b++)
+					writeBlock(ix, iy, off + b, NONE, c, dct,
+							last_dc, new_dct_coefs, encoder, tmpCoef);
+				break;
+			}
+			off += V[c] * H[c];
+		}
+
+	}
+
+	private void writeBlock(int ix, int iy, int block, int dctOp, int c,
+			int[][] dct, int[] last_dc, DctStore new_dct_coefs,
+			HuffEncoder encoder, int[] tmpCoef) throws IOException,
+			RestartException {
+		int len = dct_coefs.getBlock(ix, iy, block, dct);
+		int new_dct[][];
+		switch (dctOp) {
+		case TRANSPOSE:
+			new_dct = transposeDCT(dct, len, tmpCoef);
+			break;
+		case ROT_90:
+			new_dct = rotate90DCT(dct, len, tmpCoef);
+			break;
+		case ROT_270:
+			new_dct = rotate270DCT(dct, len, tmpCoef);
+			break;
+		case TRANSVERSE:
+			new_dct = transverseDCT(dct, len, tmpCoef);
+			break;
+		case FLIP_H:
+			new_dct = flipHDct(dct, len);
+			break;
+		case FLIP_V:
+			new_dct = flipVDct(dct, len);
+			break;
+		case ROT_180:
+			new_dct = rotate180Dct(dct, len);
+			break;
+		case NONE:
+		default:
+			new_dct = dct;
+			break;
+		}
+		if (new_dct_coefs != null)
+			new_dct_coefs.addBlock(new_dct[0], new_dct[1], len);
+		else
+			last_dc[c] = encoder.encode(new_dct, last_dc[c], len);
+	}
+
+	// DctStore used by streamTransform. Each row is transformed and written
+	// out as soon as all its blocks are added and is not retained. Only NONE,
+	// FLIP_H and CROP are handled.
+	private class StreamingDctStore extends DctStore {
+		private int op, restart_interval, restarts_to_go;
+		private int outWidthMCU, outHeightMCU;
+		private int xCropOffsetMCU, yCropOffsetMCU;
+		private boolean handleXEdge;
+		private int[] last_dc;
+		private int[][] dct = new int[2][DCTSIZE2];
+
+		// Row being written
+		private int row = -1;
+		private int[] rowCoefs, rowBlockEnds;
+
+		StreamingDctStore(int widthMCU, int heightMCU, int blocksPerMCU) {
+			super(widthMCU, heightMCU, blocksPerMCU);
+		}
+
+		// Called with the image parameters adjusted for op
+		void initWrite(OutputStream os, int op, int options,
+				int restart_interval) {
+			this.op = op;
+			this.restart_interval = restart_interval;
+			restarts_to_go = restart_interval;
+			outWidthMCU = LLJTran.this.widthMCU;
+			outHeightMCU = LLJTran.this.heightMCU;
+			handleXEdge = (options & OPT_XFORM_ADJUST_EDGES) != 0
+					&& partialXMCU;
+			if (op == CROP) {
+				xCropOffsetMCU = cropBounds.left / getMCUWidth();
+				yCropOffsetMCU = cropBounds.top / getMCUHeight();
+			}
+			last_dc = new int[components_in_scan];
+			encoder = new HuffEncoder(os);
+		}
+
+		protected void putRow(int iy, int[] coefs, int len, int[] blockEnds)
+				throws IOException {
+			if (last_dc == null)
+				throw new IllegalStateException(
+						"Row decoded before initialization of write");
+			int new_iy = iy - yCropOffsetMCU;
+			if (new_iy >= 0 && new_iy < outHeightMCU) {
+				row = iy;
+				rowCoefs = coefs;
+				rowBlockEnds = blockEnds;
+				try {
+					writeRow(iy);
+				} finally {
+					freeRow(iy);
+				}
+			}
+		}
+
+		boolean hasRow(int iy) {
+			return iy == row && rowCoefs != null;
+		}
+
+		void freeRow(int iy) {
+			if (iy == row) {
+				rowCoefs = null;
+				rowBlockEnds = null;
+			}
+		}
+
+		int getBlock(int ix, int iy, int block, int[][] dct) {
+			if (!hasRow(iy))
+				throw new IllegalStateException("Row " + iy
+						+ " is not available while streaming");
+			return unpackBlock(rowCoefs, rowBlockEnds, ix * blocksPerMCU
+					+ block, dct);
+		}
+
+		private void writeRow(int iy) throws IOException {
+			int ix, dctOp, off;
+			for (int new_ix = 0; new_ix < outWidthMCU; new_ix++) {
+				dctOp = op;
+				switch (op) {
+				case FLIP_H:
+					ix = outWidthMCU - 1 - new_ix;
+					if (handleXEdge) {
+						if (ix > 0)
+							ix--;
 						else {
-							iy = heightMCU - 1;
-							dctOp = dctOp == ROT_180 ? FLIP_H : NONE;
+							ix = outWidthMCU - 1;
+							dctOp = NONE;
 						}
 					}
 					break;
 				case CROP:
 					ix = new_ix + xCropOffsetMCU;
-					iy = new_iy + yCropOffsetMCU;
 					dctOp = NONE;
 					break;
 				case NONE:
 				default:
 					ix = new_ix;
-					iy = new_iy;
 					break;
 				}
-				next_mcu = dct_coefs[iy][ix];
-
+				off = 0;
 				try {
 					for (int c = 0; c < components_in_scan; c++) {
-						if (!transformDct)
-							encoder.setTables(ac_table[c], dc_table[c]);
-						switch (dctOp) {
-						case TRANSPOSE:
-							for (int mx = 0; mx < V[c]; mx++) {
-								for (int my = 0; my < H[c]; my++) {
-									int dct[][] = next_mcu[off + my * V[c] + mx];
-									int new_dct[][] = transposeDCT(dct);
-									if (transformDct)
-										new_mcu[new_off++] = new_dct;
-									else
-										last_dc[c] = encoder.encode(new_dct,
-												last_dc[c], dct[0].length);
-								}
-							}
-							break;
-						case ROT_90:
-							for (int mx = 0; mx < V[c]; mx++) {
-								for (int my = H[c] - 1; my >= 0; my--) {
-									int dct[][] = next_mcu[off + my * V[c] + mx];
-									int new_dct[][] = rotate90DCT(dct);
-									if (transformDct)
-										new_mcu[new_off++] = new_dct;
-									else
-										last_dc[c] = encoder.encode(new_dct,
-												last_dc[c], dct[0].length);
-								}
-							}
-							break;
-						case ROT_270:
-							for (int mx = V[c] - 1; mx >= 0; mx--) {
-								for (int my = 0; my < H[c]; my++) {
-									int dct[][] = next_mcu[off + my * V[c] + mx];
-									int new_dct[][] = rotate270DCT(dct);
-									if (transformDct)
-										new_mcu[new_off++] = new_dct;
-									else
-										last_dc[c] = encoder.encode(new_dct,
-												last_dc[c], dct[0].length);
-								}
-							}
-							break;
-						case TRANSVERSE:
-							for (int mx = V[c] - 1; mx >= 0; mx--) {
-								for (int my = H[c] - 1; my >= 0; my--) {
-									int dct[][] = next_mcu[off + my * V[c] + mx];
-									int new_dct[][] = transverseDCT(dct);
-									if (transformDct)
-										new_mcu[new_off++] = new_dct;
-									else
-										last_dc[c] = encoder.encode(new_dct,
-												last_dc[c], dct[0].length);
-								}
-							}
-							break;
-						case FLIP_H:
-							for (int my = 0; my < V[c]; my++) {
-								for (int mx = H[c] - 1; mx >= 0; mx--) {
-									int dct[][] = next_mcu[off + my * H[c] + mx];
-									int new_dct[][] = flipHDct(dct);
-									if (transformDct)
-										new_mcu[new_off++] = new_dct;
-									else
-										last_dc[c] = encoder.encode(new_dct,
-												last_dc[c], dct[0].length);
-								}
-							}
-							break;
-						case FLIP_V:
-							for (int my = V[c] - 1; my >= 0; my--) {
-								for (int mx = 0; mx < H[c]; mx++) {
-									int dct[][] = next_mcu[off + my * H[c] + mx];
-									int new_dct[][] = flipVDct(dct);
-									if (transformDct)
-										new_mcu[new_off++] = new_dct;
-									else
-										last_dc[c] = encoder.encode(new_dct,
-												last_dc[c], dct[0].length);
-								}
-							}
-							break;
-						case ROT_180:
-							for (int my = V[c] - 1; my >= 0; my--) {
-								for (int mx = H[c] - 1; mx >= 0; mx--) {
-									int dct[][] = next_mcu[off + my * H[c] + mx];
-									int new_dct[][] = rotate180Dct(dct);
-									if (transformDct)
-										new_mcu[new_off++] = new_dct;
-									else
-										last_dc[c] = encoder.encode(new_dct,
-												last_dc[c], dct[0].length);
-								}
-							}
-							break;
-						case NONE:
-						default:
-							for (int b = 0; b < V[c] * H[c]; b++) {
-								int dct[][] = next_mcu[off + b];
-								if (transformDct)
-									new_mcu[new_off++] = dct;
-								else
-									last_dc[c] = encoder.encode(dct,
-											last_dc[c], dct[0].length);
-							}
-							break;
+						encoder.setTables(ac_table[c], dc_table[c]);
+						if (dctOp == FLIP_H) {
+							for (int my = 0; my < V[c]; my++)
+								for (int mx = 0; mx < H[c]; mx++)
+									writeBlock(ix, iy, off + my * H[c] + H[c]
+											- 1 - mx, FLIP_H, c, dct, last_dc,
+											null, encoder, null);
+						} else {
+							for (int b = 0; b < V[c] * H[c]; b++)
+								writeBlock(ix, iy, off + b, NONE, c, dct,
+										last_dc, null, encoder, null);
 						}
 						off += V[c] * H[c];
 					}
 
-					if (transformDct)
-						new_mcu = next_mcu;
-					else {
-						if (restart_interval != 0 && --restarts_to_go == 0) {
-							restarts_to_go = restart_interval;
-							if (_Ss == 0) {
-								for (int k = 0; k < last_dc.length; k++)
-									last_dc[k] = 0;
-							}
-							encoder.restart();
-						}
-
-						currentProgress += progressPerMcu;
-						if (writeProgressCallback != null
-								&& currentProgress - callbackProgress > writeProgressCallback
-										.getCallbackInterval()) {
-							callbackProgress = currentProgress;
-							writeProgressCallback.progressHandler(
-									callbackProgress,
-									(int) Math.round(callbackProgress * 100));
+					if (restart_interval != 0 && --restarts_to_go == 0) {
+						restarts_to_go = restart_interval;
+						if (_Ss == 0) {
+							for (int k = 0; k < last_dc.length; k++)
+								last_dc[k] = 0;
 						}
+						encoder.restart();
 					}
 				} catch (RestartException re) {
-					// re.printStackTrace();
 					restarts_to_go = 0;
 				}
 			}
-			new_ix = 0;
-			new_dct_row = dct_coefs[iy];
-			if (pullDownMode)
-				dct_coefs[iy] = null;
 		}
-
-		iWriteVars.new_ix = new_ix;
-		iWriteVars.new_iy = new_iy;
-		iWriteVars.restarts_to_go = restarts_to_go;
-		iWriteVars.currentProgress = currentProgress;
-		iWriteVars.callbackProgress = callbackProgress;
-
-		if (new_iy >= heightMCU) {
-			retVal = false;
-			if (transformDct)
-				dct_coefs = new_dct_coefs;
-			else
-				encoder.flush();
-			// Cleanup
-			encoder = null;
-		}
-
-		return retVal;
 	}
 
 	// class variables partialXMCU and partialYMCU should be set to indicate
@@ -4764,10 +6474,10 @@ public class LLJTran extends BasicJpegIo implements IterativeReader,
 	// Utility method to copy dct coeffictients for transforming methods
 	// to avoid changing the main array while gatheringStats or if not
 	// changing the original image
-	private static void copyDct(int srcDct[][], int destDct[][]) {
+	private static void copyDct(int srcDct[][], int destDct[][], int len) {
 		int i;
 		for (i = 0; i < srcDct.length; ++i)
-			System.arraycopy(srcDct[i], 0, destDct[i], 0, srcDct[i].length);
+			System.arraycopy(srcDct[i], 0, destDct[i], 0, len);
 	}
 
 	private static void compactDct(int tmpCoef[], int destDct[][]) {
@@ -4793,15 +6503,33 @@ public class LLJTran extends BasicJpegIo implements IterativeReader,
 	 * @see #retainDct
 	 */
 	protected int[][] transposeDCT(int[][] dct) {
+		return transposeDCT(dct, dct[0].length);
+	}
+
+	/**
+	 * Internal method to Transpose the first len coefficients of a dct array
+	 * 
+	 * @param dct
+	 *            Dct Coefficient array
+	 * @param len
+	 *            Number of coefficients in dct
+	 * @see #retainDct
+	 */
+	protected int[][] transposeDCT(int[][] dct, int len) {
+		return transposeDCT(dct, len, tmp_dct[0]);
+	}
+
+	// Same as transposeDCT(dct, len) using tmpCoef as the temporary coefficient
+	// array
+	private int[][] transposeDCT(int[][] dct, int len, int[] tmpCoef) {
 		int i, k;
 		// In all dct transform method tmp_dct is used as a temporary coeff
 		// array in addition to being used as a return value
 		// in case retainDct is true meaning the original dct should not be
 		// written to.
-		int tmpCoef[] = tmp_dct[0];
 		for (i = 0; i < tmpCoef.length; ++i)
 			tmpCoef[i] = 0;
-		for (i = 0; i < dct[0].length; i++) {
+		for (i = 0; i < len; i++) {
 			k = jpegnaturalorder[dct[1][i]];
 			k = ((k & 7) << 3) + (k >> 3);
 			tmpCoef[jpegzigzagorder[k]] = dct[0][i];
@@ -4819,11 +6547,29 @@ public class LLJTran extends BasicJpegIo implements IterativeReader,
 	 * @see #retainDct
 	 */
 	protected int[][] rotate90DCT(int[][] dct) {
+		return rotate90DCT(dct, dct[0].length);
+	}
+
+	/**
+	 * Internal method to Rotate clockwise 90 degrees the first len coefficients of a dct array
+	 * 
+	 * @param dct
+	 *            Dct Coefficient array
+	 * @param len
+	 *            Number of coefficients in dct
+	 * @see #retainDct
+	 */
+	protected int[][] rotate90DCT(int[][] dct, int len) {
+		return rotate90DCT(dct, len, tmp_dct[0]);
+	}
+
+	// Same as rotate90DCT(dct, len) using tmpCoef as the temporary coefficient
+	// array
+	private int[][] rotate90DCT(int[][] dct, int len, int[] tmpCoef) {
 		int i, k;
-		int tmpCoef[] = tmp_dct[0];
 		for (i = 0; i < tmpCoef.length; ++i)
 			tmpCoef[i] = 0;
-		for (i = 0; i < dct[0].length; i++) {
+		for (i = 0; i < len; i++) {
 			k = jpegnaturalorder[dct[1][i]];
 			k = ((k & 7) << 3) + (k >> 3);
 			tmpCoef[jpegzigzagorder[k]] = (k & 1) == 1 ? -dct[0][i] : dct[0][i];
@@ -4841,11 +6587,29 @@ public class LLJTran extends BasicJpegIo implements IterativeReader,
 	 * @see #retainDct
 	 */
 	protected int[][] rotate270DCT(int[][] dct) {
+		return rotate270DCT(dct, dct[0].length);
+	}
+
+	/**
+	 * Internal method to Rotate clockwise 270 degrees the first len coefficients of a dct array
+	 * 
+	 * @param dct
+	 *            Dct Coefficient array
+	 * @param len
+	 *            Number of coefficients in dct
+	 * @see #retainDct
+	 */
+	protected int[][] rotate270DCT(int[][] dct, int len) {
+		return rotate270DCT(dct, len, tmp_dct[0]);
+	}
+
+	// Same as rotate270DCT(dct, len) using tmpCoef as the temporary coefficient
+	// array
+	private int[][] rotate270DCT(int[][] dct, int len, int[] tmpCoef) {
 		int i, k;
-		int tmpCoef[] = tmp_dct[0];
 		for (i = 0; i < tmpCoef.length; ++i)
 			tmpCoef[i] = 0;
-		for (i = 0; i < dct[0].length; i++) {
+		for (i = 0; i < len; i++) {
 			k = jpegnaturalorder[dct[1][i]];
 			k = ((k & 7) << 3) + (k >> 3);
 			tmpCoef[jpegzigzagorder[k]] = (k & 8) == 8 ? -dct[0][i] : dct[0][i];
@@ -4863,12 +6627,30 @@ public class LLJTran extends BasicJpegIo implements IterativeReader,
 	 * @see #retainDct
 	 */
 	protected int[][] transverseDCT(int[][] dct) {
+		return transverseDCT(dct, dct[0].length);
+	}
+
+	/**
+	 * Internal method to Transverse the first len coefficients of a dct array
+	 * 
+	 * @param dct
+	 *            Dct Coefficient array
+	 * @param len
+	 *            Number of coefficients in dct
+	 * @see #retainDct
+	 */
+	protected int[][] transverseDCT(int[][] dct, int len) {
+		return transverseDCT(dct, len, tmp_dct[0]);
+	}
+
+	// Same as transverseDCT(dct, len) using tmpCoef as the temporary coefficient
+	// array
+	private int[][] transverseDCT(int[][] dct, int len, int[] tmpCoef) {
 		int i, k;
-		int tmpCoef[] = tmp_dct[0];
 		for (i = 0; i < tmpCoef.length; ++i)
 			tmpCoef[i] = 0;
 		boolean neg;
-		for (i = 0; i < dct[0].length; i++) {
+		for (i = 0; i < len; i++) {
 			k = jpegnaturalorder[dct[1][i]];
 			neg = (k & 1) != 0;
 			k = ((k & 7) << 3) + (k >> 3);
@@ -4888,10 +6670,22 @@ public class LLJTran extends BasicJpegIo implements IterativeReader,
 	 * @see #retainDct
 	 */
 	protected int[][] flipHDct(int[][] dct) {
+		return flipHDct(dct, dct[0].length);
+	}
+
+	/**
+	 * Internal method to Horizontally Flip the first len coefficients of a dct array
+	 * 
+	 * @param dct
+	 *            Dct Coefficient array
+	 * @param len
+	 *            Number of coefficients in dct
+	 * @see #retainDct
+	 */
+	protected int[][] flipHDct(int[][] dct, int len) {
 		int retVal[][] = dct;
-		int len = dct[0].length;
 		if (retainDct) {
-			copyDct(dct, tmp_dct);
+			copyDct(dct, tmp_dct, len);
 			retVal = tmp_dct;
 		}
 		for (int k = 0; k < len; k++) {
@@ -4909,10 +6703,22 @@ public class LLJTran extends BasicJpegIo implements IterativeReader,
 	 * @see #retainDct
 	 */
 	protected int[][] flipVDct(int[][] dct) {
+		return flipVDct(dct, dct[0].length);
+	}
+
+	/**
+	 * Internal method to Vertically Flip the first len coefficients of a dct array
+	 * 
+	 * @param dct
+	 *            Dct Coefficient array
+	 * @param len
+	 *            Number of coefficients in dct
+	 * @see #retainDct
+	 */
+	protected int[][] flipVDct(int[][] dct, int len) {
 		int retVal[][] = dct;
-		int len = dct[0].length;
 		if (retainDct) {
-			copyDct(dct, tmp_dct);
+			copyDct(dct, tmp_dct, len);
 			retVal = tmp_dct;
 		}
 		for (int k = 0; k < len; k++) {
@@ -4930,10 +6736,22 @@ public class LLJTran extends BasicJpegIo implements IterativeReader,
 	 * @see #retainDct
 	 */
 	protected int[][] rotate180Dct(int[][] dct) {
+		return rotate180Dct(dct, dct[0].length);
+	}
+
+	/**
+	 * Internal method to Rotate 180 degrees the first len coefficients of a dct array
+	 * 
+	 * @param dct
+	 *            Dct Coefficient array
+	 * @param len
+	 *            Number of coefficients in dct
+	 * @see #retainDct
+	 */
+	protected int[][] rotate180Dct(int[][] dct, int len) {
 		int retVal[][] = dct;
-		int len = dct[0].length;
 		if (retainDct) {
-			copyDct(dct, tmp_dct);
+			copyDct(dct, tmp_dct, len);
 			retVal = tmp_dct;
 		}
 		for (int k = 0; k < len; k++) {
@@ -4984,59 +6802,173 @@ public class LLJTran extends BasicJpegIo implements IterativeReader,
 
 	private class HuffDecoder {
 		private InputStream is;
-		int bit_buff;
+		// Input is read in chunks into buf. Bytes from pos till limit have
+		// been read from is but not yet consumed by the decoder.
+		private byte[] buf;
+		private int pos, limit;
+		private boolean marked;
+		// Set when buf is the array backing the input buffer
+		private ByteBuffer inBuffer;
+		long bit_buff;
 		int bit_buff_len;
+		// Marker encountered while decoding. 0 if none
+		int marker;
+
+		int[] cur_maxcode, cur_huffval, cur_valoffset, cur_lookup;
 
-		int[] cur_maxcode, cur_huffval, cur_valoffset;
+		// Tables of the image at the time of construction. These are retained
+		// even if the tables are regenerated for writing during the decoding.
+		private int[] dcIx = dc_ix, acIx = ac_ix;
+		private int[][] dcMaxcode = dc_maxcode, dcHuffval = dc_huffval,
+				dcValoffset = dc_valoffset, dcLookup = dc_lookup;
+		private int[][] acMaxcode = ac_maxcode, acHuffval = ac_huffval,
+				acValoffset = ac_valoffset, acLookup = ac_lookup;
 
 		HuffDecoder(InputStream is) {
 			this.is = is;
+			if (is instanceof ByteBufferInputStream
+					&& ((ByteBufferInputStream) is).getBuffer().hasArray()) {
+				// Decode directly from the array backing the buffer
+				inBuffer = ((ByteBufferInputStream) is).getBuffer();
+				buf = inBuffer.array();
+				pos = inBuffer.arrayOffset() + inBuffer.position();
+				limit = inBuffer.arrayOffset() + inBuffer.limit();
+			} else
+				buf = new byte[DECODER_CHUNK_SIZE];
+		}
+
+		// Decoder for data already in memory. Bytes consumed are not counted
+		// in readcounter.
+		HuffDecoder(byte[] data, int offset, int len) {
+			buf = data;
+			pos = offset;
+			limit = offset + len;
 		}
 
 		void setTables(boolean ac, int index) {
 			if (ac) {
 				// find index of table
-				for (int i = 0; i < ac_ix.length; i++) {
-					if (ac_ix[i] == index) { // found
-						cur_maxcode = ac_maxcode[i];
-						cur_huffval = ac_huffval[i];
-						cur_valoffset = ac_valoffset[i];
+				for (int i = 0; i < acIx.length; i++) {
+					if (acIx[i] == index) { // found
+						cur_maxcode = acMaxcode[i];
+						cur_huffval = acHuffval[i];
+						cur_valoffset = acValoffset[i];
+						cur_lookup = acLookup[i];
 						break;
 					}
 				}
 			} else {
 				// find index of table
-				for (int i = 0; i < dc_ix.length; i++) {
-					if (dc_ix[i] == index) { // found
-						cur_maxcode = dc_maxcode[i];
-						cur_huffval = dc_huffval[i];
-						cur_valoffset = dc_valoffset[i];
+				for (int i = 0; i < dcIx.length; i++) {
+					if (dcIx[i] == index) { // found
+						cur_maxcode = dcMaxcode[i];
+						cur_huffval = dcHuffval[i];
+						cur_valoffset = dcValoffset[i];
+						cur_lookup = dcLookup[i];
 						break;
 					}
 				}
 			}
 		}
 
+		// Reads the next chunk of input into buf. Returns false on end of
+		// input.
+		private boolean fill() throws IOException {
+			if (is == null || inBuffer != null)
+				return false;
+			// Mark the stream if possible so that bytes read beyond the scan
+			// can be given back in release()
+			marked = is.markSupported();
+			if (marked)
+				is.mark(buf.length);
+			int len;
+			do
+				len = is.read(buf, 0, buf.length);
+			while (len == 0);
+			pos = 0;
+			limit = len < 0 ? 0 : len;
+			return len > 0;
+		}
+
+		/**
+		 * Returns the next byte of input without any processing of 0xff
+		 * stuffing or markers or -1 if the end of input is reached.
+		 */
+		int readRaw() throws IOException {
+			if (pos >= limit && !fill())
+				return -1;
+			if (is != null)
+				readcounter++;
+			return buf[pos++] & 255;
+		}
+
+		/**
+		 * Gives back the bytes which have been read from the input but not
+		 * consumed by the decoder so that the caller can continue to read the
+		 * input from where the decoder stopped. Returns the stream from which
+		 * further input is to be read.
+		 */
+		InputStream release() throws IOException {
+			InputStream retVal = is;
+			int unused = limit - pos;
+			if (inBuffer != null) {
+				inBuffer.position(pos - inBuffer.arrayOffset());
+				inBuffer = null;
+			} else if (unused > 0) {
+				if (marked) {
+					is.reset();
+					BasicIo.skip(is, pos);
+				} else {
+					PushbackInputStream pis = new PushbackInputStream(is,
+							unused);
+					pis.unread(buf, pos, unused);
+					retVal = pis;
+				}
+			}
+			pos = limit = 0;
+			buf = null;
+			return retVal;
+		}
+
 		void checkBitBuffer(int len) throws IOException, RestartException {
 			if (bit_buff_len < len) {
+				if (len > BIT_BUFF_MAX_REQUEST) // !!!
+					throw new IOException("An attempt to read more than "
+							+ BIT_BUFF_MAX_REQUEST + " bit (inbuff="
+							+ bit_buff_len + ", len=" + len + ") ("
+							+ getLocationName() + ")");
+				// Forget it if we have hit a marker which should be a restart
+				// marker
+				if (marker != 0)
+					return;
+				// Fill bit_buff as far as possible so that the following
+				// calls need not come here. Bytes other than 0xff are taken
+				// directly from buf.
+				byte[] buf = this.buf;
+				int pos = this.pos;
+				long bit_buff = this.bit_buff;
+				int bit_buff_len = this.bit_buff_len;
 				int nextbyte;
-				if (len > 16) // !!!
-					throw new IOException(
-							"An attempt to read more than 16 bit (inbuff="
-									+ bit_buff_len + ", len=" + len + ") ("
-									+ getLocationName() + ")");
-				do {
-					nextbyte = read();
-					// Forget it if we have hit an unprocessed_marker which
-					// should be a restart marker
-					if (unprocessed_marker != 0)
-						break;
-
-					// Fill bit_buff till we have atleast len bits
-					bit_buff <<= BYTE_SIZE;
-					bit_buff |= nextbyte;
+				while (bit_buff_len <= BIT_BUFF_SIZE - BYTE_SIZE) {
+					if (pos < limit && (nextbyte = buf[pos] & 255) != 0xff)
+						pos++;
+					else {
+						if (is != null)
+							readcounter += pos - this.pos;
+						this.pos = pos;
+						nextbyte = read();
+						pos = this.pos;
+						if (marker != 0)
+							break;
+					}
+					bit_buff = (bit_buff << BYTE_SIZE) | nextbyte;
 					bit_buff_len += BYTE_SIZE;
-				} while (bit_buff_len < len);
+				}
+				if (is != null)
+					readcounter += pos - this.pos;
+				this.pos = pos;
+				this.bit_buff = bit_buff;
+				this.bit_buff_len = bit_buff_len;
 			}
 		}
 
@@ -5044,9 +6976,8 @@ public class LLJTran extends BasicJpegIo implements IterativeReader,
 			int result = -1;
 
 			// Read a byte only if we have not hit a marker while decoding
-			if (unprocessed_marker == 0) {
-				result = is.read();
-				readcounter++;
+			if (marker == 0) {
+				result = readRaw();
 
 				// Special Cases
 				if (result == -1)
@@ -5055,8 +6986,7 @@ public class LLJTran extends BasicJpegIo implements IterativeReader,
 				if (result == 0xff) {
 					// Skip 0xff filling
 					do {
-						result = is.read();
-						readcounter++;
+						result = readRaw();
 					} while (result == 0xff);
 
 					if (result == 0)
@@ -5064,7 +6994,7 @@ public class LLJTran extends BasicJpegIo implements IterativeReader,
 					else
 						// marker found. Further calls to read if any will do
 						// nothing and checkBitBuffer will not fill bit_buff
-						unprocessed_marker = result;
+						marker = result;
 				}
 			}
 			return result;
@@ -5082,15 +7012,15 @@ public class LLJTran extends BasicJpegIo implements IterativeReader,
 					// Under Normal case of len bits being available take 1st
 					// len bits.
 					bit_buff_len -= len;
-					retVal = (bit_buff >> bit_buff_len)
-							& (0xffff >> (16 - len));
+					retVal = (int) (bit_buff >>> bit_buff_len)
+							& (-1 >>> (32 - len));
 				} else {
 					// If Enough bits are not available (Due to marker
 					// encounter) then take what is available.
 					int defecit = len - bit_buff_len;
 					bit_buff_len = 0;
 					// Fill the deficit bits with zeroes
-					retVal = (bit_buff << defecit) & (0xffff >> (16 - len));
+					retVal = (int) (bit_buff << defecit) & (-1 >>> (32 - len));
 				}
 			}
 
@@ -5106,10 +7036,26 @@ public class LLJTran extends BasicJpegIo implements IterativeReader,
 		}
 
 		int decode(int min_bits) throws IOException, RestartException {
+			// Try to resolve the code with a single lookup of the next
+			// HUFF_LOOKAHEAD bits. This is possible only if that many bits are
+			// available, which is not the case near a marker.
+			checkBitBuffer(HUFF_LOOKAHEAD);
 			int l = min_bits;
-			// decode has determined that the code is at least min_bits
-			// bits long, so fetch that many bits in one swoop.
-			int code = getBits(l);
+			int code;
+			if (bit_buff_len >= HUFF_LOOKAHEAD) {
+				int entry = cur_lookup[(int) (bit_buff >>> (bit_buff_len - HUFF_LOOKAHEAD))
+						& ((1 << HUFF_LOOKAHEAD) - 1)];
+				if (entry != 0) {
+					bit_buff_len -= entry >> 8;
+					return entry & 255;
+				}
+				// Code is longer than HUFF_LOOKAHEAD bits
+				l = HUFF_LOOKAHEAD;
+				code = getBits(l);
+			} else
+				// decode has determined that the code is at least min_bits
+				// bits long, so fetch that many bits in one swoop.
+				code = getBits(l);
 
 			// Collect the rest of the Huffman code one bit at a time.
 			// This is per Figure F.16 in the JPEG spec.
@@ -5144,22 +7090,44 @@ public class LLJTran extends BasicJpegIo implements IterativeReader,
 	}
 
 	private class HuffEncoder {
-		private int bufferputbits;
-		private int bufferputbuffer;
+		// Encoded bytes are collected in outBuffer and written to the
+		// outputstream when it is full or on flush. writecounter is updated
+		// when the bytes are written to the outputstream.
+		private static final int OUT_BUFFER_SIZE = 8192;
+		private long bitBuffer;
+		private int bitCount;
+		private byte outBuffer[];
+		private int outPos;
 		private OutputStream outputstream;
 		private int[][] dc_ecodetable, ac_ecodetable;
 		int next_restart_num;
 		int acTblIndex, dcTblIndex;
 
+		// Not set for the encoders of restart intervals encoded in parallel
+		private boolean countWritten;
+		// If set only the frequencies of the symbols are counted in stats
+		// and nothing is written
+		private HuffGenerator stats;
+
 		public HuffEncoder(OutputStream os) {
+			this(os, true);
+		}
+
+		HuffEncoder(OutputStream os, boolean countWritten) {
 			outputstream = os;
+			this.countWritten = countWritten;
+			outBuffer = new byte[OUT_BUFFER_SIZE];
+		}
+
+		HuffEncoder(HuffGenerator stats) {
+			this.stats = stats;
 		}
 
 		void setTables(int iac, int idc) {
 			boolean dt_found = false, at_found = false;
 			for (int i = 0; i < ac_ix.length; i++) {
 				if (ac_ix[i] == iac) { // found
-					if (!gatheringStats)
+					if (stats == null)
 						ac_ecodetable = enc_ac_matrix[i];
 					this.acTblIndex = i;
 					at_found = true;
@@ -5168,7 +7136,7 @@ public class LLJTran extends BasicJpegIo implements IterativeReader,
 			}
 			for (int i = 0; i < dc_ix.length; i++) {
 				if (dc_ix[i] == idc) { // found
-					if (!gatheringStats)
+					if (stats == null)
 						dc_ecodetable = enc_dc_matrix[i];
 					this.dcTblIndex = i;
 					dt_found = true;
@@ -5195,13 +7163,9 @@ public class LLJTran extends BasicJpegIo implements IterativeReader,
 				temp = -temp;
 				temp2--;
 			}
-			nbits = 0;
-			while (temp != 0) {
-				nbits++;
-				temp >>= 1;
-			}
-			if (gatheringStats)
-				huffGen.updateDCCount(dcTblIndex, nbits);
+			nbits = 32 - Integer.numberOfLeadingZeros(temp);
+			if (stats != null)
+				stats.updateDCCount(dcTblIndex, nbits);
 			else
 				writeCode(dc_ecodetable[nbits][0], dc_ecodetable[nbits][1]);
 			// The arguments in bufferIt are code and size.
@@ -5212,8 +7176,8 @@ public class LLJTran extends BasicJpegIo implements IterativeReader,
 			for (k = 1; k < len; k++) {
 				r = coef[1][k] - coef[1][k - 1] - 1;
 				while (r > 15) { // write for 0 ig gap > 15
-					if (gatheringStats)
-						huffGen.updateACCount(acTblIndex, 0xF0);
+					if (stats != null)
+						stats.updateACCount(acTblIndex, 0xF0);
 					else
 						writeCode(ac_ecodetable[0xF0][0],
 								ac_ecodetable[0xF0][1]);
@@ -5224,20 +7188,18 @@ public class LLJTran extends BasicJpegIo implements IterativeReader,
 					temp = -temp;
 					temp2--;
 				}
-				nbits = 1; // temp is never 0
-				while ((temp >>= 1) != 0)
-					nbits++;
+				nbits = 32 - Integer.numberOfLeadingZeros(temp); // temp is never 0
 				i = (r << 4) + nbits;
-				if (gatheringStats)
-					huffGen.updateACCount(acTblIndex, i);
+				if (stats != null)
+					stats.updateACCount(acTblIndex, i);
 				else
 					writeCode(ac_ecodetable[i][0], ac_ecodetable[i][1]);
 				writeCode(temp2, nbits);
 			}
 
 			if ((63 - coef[1][len - 1]) > 0) { // mark that the end of data
-				if (gatheringStats)
-					huffGen.updateACCount(acTblIndex, 0);
+				if (stats != null)
+					stats.updateACCount(acTblIndex, 0);
 				else
 					writeCode(ac_ecodetable[0][0], ac_ecodetable[0][1]);
 			}
@@ -5246,72 +7208,83 @@ public class LLJTran extends BasicJpegIo implements IterativeReader,
 		}
 
 		void restart() throws IOException {
-			if (gatheringStats)
+			if (stats != null)
 				return;
-			flush();
-			outputstream.write(M_PRX);
-			outputstream.write((M_RST0 & 255) + next_restart_num);
-			writecounter += 2;
+			flushBits();
+			if (outPos > OUT_BUFFER_SIZE - 2)
+				writeBuffer();
+			outBuffer[outPos++] = M_PRX;
+			outBuffer[outPos++] = (byte) ((M_RST0 & 255) + next_restart_num);
 			next_restart_num = (next_restart_num + 1) & 7;
-			bufferputbits = bufferputbuffer = 0;
 		}
 
-		// Uses an integer long (32 bits) buffer to store the Huffman encoded
-		// bits
-		// and sends them to out stream by the byte.
-
+		// Adds the size lower bits of code to a long bit buffer. The bits are
+		// moved to outBuffer 32 at a time which is at most 48 bits in the bit
+		// buffer since the size is at most 16.
 		void writeCode(int code, int size) throws IOException {
-			if (gatheringStats)
+			if (stats != null)
 				return;
 			if (size == 0)
 				throw new RuntimeException(
 						"Runtime Error: Missing Huffman Table Entry");
-			int putbuffer = code;
-			int putbits = bufferputbits;
-			putbuffer &= (1 << size) - 1;
-			putbits += size;
-			putbuffer <<= 24 - putbits;
-			putbuffer |= bufferputbuffer;
-			int c;
-			while (putbits >= 8) {
-				c = ((putbuffer >> 16) & 0xff);
-				outputstream.write(c);
-				writecounter++;
-				if (c == 0xff) {
-					outputstream.write(0);
-					writecounter++;
+			bitBuffer = (bitBuffer << size) | (code & ((1 << size) - 1));
+			bitCount += size;
+			if (bitCount >= 32) {
+				bitCount -= 32;
+				int w = (int) (bitBuffer >>> bitCount);
+				if (outPos > OUT_BUFFER_SIZE - 8)
+					writeBuffer();
+				// Checks if none of the bytes of w is 0xff which needs to be
+				// followed by a stuffed 0 byte.
+				int nw = ~w;
+				if (((nw - 0x01010101) & ~nw & 0x80808080) == 0) {
+					outBuffer[outPos] = (byte) (w >>> 24);
+					outBuffer[outPos + 1] = (byte) (w >>> 16);
+					outBuffer[outPos + 2] = (byte) (w >>> 8);
+					outBuffer[outPos + 3] = (byte) w;
+					outPos += 4;
+				} else {
+					putByte(w >>> 24);
+					putByte((w >>> 16) & 0xff);
+					putByte((w >>> 8) & 0xff);
+					putByte(w & 0xff);
 				}
-				putbuffer <<= 8;
-				putbits -= 8;
 			}
-			bufferputbuffer = putbuffer;
-			bufferputbits = putbits;
+		}
+
+		private void putByte(int c) {
+			outBuffer[outPos++] = (byte) c;
+			if (c == 0xff)
+				outBuffer[outPos++] = 0;
+		}
+
+		// Moves the bits in the bit buffer to outBuffer padding the last
+		// byte with 0 bits.
+		private void flushBits() throws IOException {
+			if (outPos > OUT_BUFFER_SIZE - 16)
+				writeBuffer();
+			while (bitCount >= 8) {
+				bitCount -= 8;
+				putByte((int) (bitBuffer >>> bitCount) & 0xff);
+			}
+			if (bitCount > 0)
+				putByte((int) (bitBuffer << (8 - bitCount)) & 0xff);
+			bitBuffer = 0;
+			bitCount = 0;
+		}
+
+		private void writeBuffer() throws IOException {
+			outputstream.write(outBuffer, 0, outPos);
+			if (countWritten)
+				writecounter += outPos;
+			outPos = 0;
 		}
 
 		void flush() throws IOException {
-			if (gatheringStats)
+			if (stats != null)
 				return;
-			int putbuffer = bufferputbuffer;
-			int putbits = bufferputbits;
-			int c;
-			while (putbits >= 8) {
-				c = (putbuffer >> 16) & 0xff;
-				outputstream.write(c);
-				writecounter++;
-				if (c == 0xFF) {
-					outputstream.write(0);
-					writecounter++;
-				}
-				putbuffer <<= 8;
-				putbits -= 8;
-			}
-			if (putbits > 0) {
-				c = (putbuffer >> 16) & (0xff00 >> putbits) & 0xff;
-				outputstream.write(c);
-				writecounter++;
-			}
-			bufferputbuffer = putbuffer;
-			bufferputbits = putbits;
+			flushBits();
+			writeBuffer();
 		}
 	}
 
@@ -5345,6 +7318,16 @@ public class LLJTran extends BasicJpegIo implements IterativeReader,
 			++ac_count[tableIndex][symbol];
 		}
 
+		// Adds the frequencies counted by other
+		void add(HuffGenerator other) {
+			for (int i = 0; i < dc_count.length; i++)
+				for (int j = 0; j < dc_count[i].length; j++)
+					dc_count[i][j] += other.dc_count[i][j];
+			for (int i = 0; i < ac_count.length; i++)
+				for (int j = 0; j < ac_count[i].length; j++)
+					ac_count[i][j] += other.ac_count[i][j];
+		}
+
 		/*
 		 * Code is modified from jpeg_gen_optimal_table function in jchuff.c
 		 * file of IJG code. It writes to bs the Number of symbols for each of
@@ -5371,6 +7354,15 @@ public class LLJTran extends BasicJpegIo implements IterativeReader,
 			for (i = 0; i < 257; i++)
 				others[i] = -1; /* init links to empty */
 
+			/*
+			 * A table not used by any component has no symbols. Give it one
+			 * so that a valid table is written.
+			 */
+			for (i = 0; i < 256 && freq[i] == 0; i++)
+				;
+			if (i == 256)
+				freq[0] = 1;
+
 			freq[256] = 1; /* make sure 256 has a nonzero count */
 			/*
 			 * Including the pseudo-symbol 256 in the Huffman procedure
@@ -5572,11 +7564,12 @@ public class LLJTran extends BasicJpegIo implements IterativeReader,
 	private int[][] ac_maxcode;
 	private int[][] ac_huffval;
 	private int[][] dc_huffbits, ac_huffbits;
+	private int[][] dc_lookup, ac_lookup;
 	private int[] ac_ix;
 	private int[][] q_table;
 	private int[] q_ix;
 	private int[] q_prec;
-	private int[][][][][] dct_coefs;
+	private DctStore dct_coefs;
 	/**
 	 * In all dct transform method tmp_dct is used as a temporary coeff array in
 	 * addition to being used as a return value in case retainDct is true
@@ -5590,7 +7583,33 @@ public class LLJTran extends BasicJpegIo implements IterativeReader,
 	private int[][][] enc_dc_matrix;
 
 	private HuffGenerator huffGen;
+	// Counts the frequencies of the symbols while reading if
+	// optimizeHuffOnRead is set
+	private HuffEncoder readStats;
+	private int[] readStatsLastDc;
+	// Frequencies counted while reading the current coefficients
+	private HuffGenerator readHuffGen;
 	private ProgressCallback readProgressCallback, writeProgressCallback;
+	private int readThreads = 1;
+	private int writeThreads = 1;
+	private long dctHeapBudget = Runtime.getRuntime().maxMemory() / 2;
+	private File tempDirectory;
+	// Set by streamTransform so that initReadDCT creates a StreamingDctStore
+	private boolean streamingRead;
+	// Region of the image to be decoded passed to read. null for all
+	private Rect readCropHint;
+	private boolean dcOnly;
+	private boolean optimizeHuffOnRead;
+	private boolean mapInput;
+	private boolean lazyImageInfo;
+	private TagProjection tagProjection;
+	// Set if the current coefficients have only the DC values
+	private boolean dcOnlyRead;
+	// Thumbnail for OPT_XFORM_THUMBNAIL_FROM_DC while transforming appxs
+	private byte[] dcThumbnail;
+	private static final int DC_THUMBNAIL_WIDTH = 160;
+	private static final int DC_THUMBNAIL_HEIGHT = 120;
+	private static final int DC_THUMBNAIL_QUALITY = 75;
 
 	/**
 	 * Internal variable containing unprocessed_marker. 0 if none
@@ -0,0 +1,132 @@
+/* MediaUtil LLJTran - $RCSfile: MappedDctStore.java,v $
+ * Copyright (C) 1999-2005 Dmitriy Rogatkin, Suresh Mahalingam.  All rights reserved.
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *  THIS SOFTWARE IS PROVIDED BY THE AUTHOR AND CONTRIBUTORS ``AS IS'' AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ *  IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ *  ARE DISCLAIMED. IN NO EVENT SHALL THE AUTHOR OR CONTRIBUTORS BE LIABLE FOR
+ *  ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *	$Id$
+ *
+ * Some ideas and algorithms were borrowed from:
+ * Thomas G. Lane, and James R. Weeks
+ */
+package android.mediautil.image.jpeg;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+
+/**
+ * DctStore keeping the packed rows in a memory mapped temporary file so that
+ * images whose coefficients do not fit in the heap can be handled. The file is
+ * mapped in chunks of CHUNK_SIZE ints or the size of a row if that is larger.
+ * Each row is written as its block end offsets followed by its coefficients
+ * and never spans chunks.
+ */
+class MappedDctStore extends DctStore {
+	private static final int CHUNK_SIZE = 1 << 24;
+
+	private File file;
+	private RandomAccessFile raf;
+	private FileChannel channel;
+	private ArrayList<IntBuffer> chunks = new ArrayList<IntBuffer>();
+	private long nextChunkPos;
+	private IntBuffer curChunk;
+	private int[] rowChunk;
+	private int[] rowOffset;
+
+	/**
+	 * @param tmpDir
+	 *            Directory in which to create the temporary file or null for
+	 *            the default temporary directory
+	 */
+	MappedDctStore(int widthMCU, int heightMCU, int blocksPerMCU, File tmpDir)
+			throws IOException {
+		super(widthMCU, heightMCU, blocksPerMCU);
+		rowChunk = new int[heightMCU];
+		rowOffset = new int[heightMCU];
+		for (int iy = 0; iy < heightMCU; iy++)
+			rowChunk[iy] = -1;
+		file = File.createTempFile("lljtran", ".dct", tmpDir);
+		raf = new RandomAccessFile(file, "rw");
+		channel = raf.getChannel();
+		// The file remains accessible through the open channel after being
+		// deleted on systems which allow it
+		if (file.delete())
+			file = null;
+		else
+			file.deleteOnExit();
+	}
+
+	protected void putRow(int iy, int[] coefs, int len, int[] blockEnds)
+			throws IOException {
+		int size = blocksPerRow + len;
+		if (curChunk == null || curChunk.remaining() < size) {
+			int chunkSize = Math.max(CHUNK_SIZE, size);
+			curChunk = channel.map(FileChannel.MapMode.READ_WRITE,
+					nextChunkPos, 4L * chunkSize).order(ByteOrder.nativeOrder())
+					.asIntBuffer();
+			nextChunkPos += 4L * chunkSize;
+			chunks.add(curChunk);
+		}
+		rowChunk[iy] = chunks.size() - 1;
+		rowOffset[iy] = curChunk.position();
+		curChunk.put(blockEnds, 0, blocksPerRow);
+		curChunk.put(coefs, 0, len);
+	}
+
+	boolean hasRow(int iy) {
+		return rowChunk[iy] >= 0;
+	}
+
+	void freeRow(int iy) {
+		// The space in the file is not reused
+		rowChunk[iy] = -1;
+	}
+
+	int getBlock(int ix, int iy, int block, int[][] dct) {
+		IntBuffer chunk = chunks.get(rowChunk[iy]);
+		int rowStart = rowOffset[iy];
+		int b = ix * blocksPerMCU + block;
+		int start = b == 0 ? 0 : chunk.get(rowStart + b - 1);
+		int len = chunk.get(rowStart + b) - start;
+		int pos = rowStart + blocksPerRow + start;
+		int[] values = dct[0];
+		int[] indices = dct[1];
+		for (int i = 0; i < len; i++) {
+			int c = chunk.get(pos + i);
+			values[i] = c >> INDEX_BITS;
+			indices[i] = c & INDEX_MASK;
+		}
+		return len;
+	}
+
+	void close() {
+		chunks = null;
+		curChunk = null;
+		try {
+			raf.close();
+		} catch (IOException e) {
+			// can't do much
+		}
+		if (file != null)
+			file.delete();
+	}
+}
@@ -0,0 +1,350 @@
+/* MediaUtil LLJTran - $RCSfile: MarkerIndex.java,v $
+ * Copyright (C) 1999-2005 Dmitriy Rogatkin, Suresh Mahalingam.  All rights reserved.
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *  THIS SOFTWARE IS PROVIDED BY THE AUTHOR AND CONTRIBUTORS ``AS IS'' AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ *  IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ *  ARE DISCLAIMED. IN NO EVENT SHALL THE AUTHOR OR CONTRIBUTORS BE LIABLE FOR
+ *  ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *	$Id$
+ *
+ */
+package android.mediautil.image.jpeg;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import android.mediautil.generic.FileFormatException;
+
+/**
+ * Index of the marker segments of a Jpeg image on a seekable input. The index
+ * is built by reading the 2 byte length of each marker segment and seeking
+ * over the rest of it, so getting to the image data needs only a few small
+ * reads irrespective of the size of the APPx segments.
+ * <p>
+ * 
+ * Markers are recorded upto and including the first SOS. The entropy coded
+ * data is not read unless all scans are requested. Instead the EOI is
+ * recorded if the input ends with it. Requesting all scans reads through the
+ * entropy coded data to index the markers between the scans of progressive
+ * images and the EOI ending the image.
+ * <p>
+ * 
+ * For each marker the offset of its 0xFF prefix and the total length of the
+ * segment including the marker and the length bytes are recorded. The
+ * length of SOI, EOI and other markers without a segment is 2. The length of
+ * SOS covers only the scan header and its entropy coded data starts at
+ * getOffset(i) + getLength(i).
+ */
+public class MarkerIndex {
+	// Number of bytes read from a FileChannel at a time
+	private static final int WINDOW_SIZE = 4096;
+
+	private int count;
+	private int[] markers = new int[16];
+	private long[] offsets = new long[16];
+	private int[] lengths = new int[16];
+	private long size;
+	private boolean complete;
+
+	// Input. Either buffer or channel is set
+	private ByteBuffer buffer;
+	private int bufferStart;
+	private FileChannel channel;
+	private long channelStart;
+	private byte[] window;
+	private long windowPos;
+	private int windowLen;
+
+	private MarkerIndex() {
+	}
+
+	/**
+	 * Builds the index for a file.
+	 * 
+	 * @param file
+	 *            Jpeg file
+	 * @param allScans
+	 *            true to read through the entropy coded data and index all
+	 *            the scans
+	 * @return Index of the markers in file
+	 * @throws FileFormatException
+	 *             If file does not start with SOI
+	 */
+	public static MarkerIndex build(File file, boolean allScans)
+			throws IOException {
+		FileInputStream fis = new FileInputStream(file);
+		try {
+			return build(fis.getChannel(), allScans);
+		} finally {
+			fis.close();
+		}
+	}
+
+	/**
+	 * Builds the index for the image starting at the current position of a
+	 * FileChannel. The position of the channel is not changed and the offsets
+	 * are relative to it.
+	 * 
+	 * @param channel
+	 *            Channel to read the image from
+	 * @param allScans
+	 *            true to read through the entropy coded data and index all
+	 *            the scans
+	 * @return Index of the markers of the image
+	 * @throws FileFormatException
+	 *             If the image does not start with SOI
+	 */
+	public static MarkerIndex build(FileChannel channel, boolean allScans)
+			throws IOException {
+		MarkerIndex index = new MarkerIndex();
+		index.channel = channel;
+		index.channelStart = channel.position();
+		index.size = channel.size() - index.channelStart;
+		index.window = new byte[WINDOW_SIZE];
+		index.windowPos = -1;
+		try {
+			index.build(allScans);
+		} finally {
+			index.channel = null;
+			index.window = null;
+		}
+		return index;
+	}
+
+	/**
+	 * Builds the index for the image between the position and limit of a
+	 * ByteBuffer. The position of the buffer is not changed and the offsets
+	 * are relative to it.
+	 * 
+	 * @param buffer
+	 *            Buffer containing the image
+	 * @param allScans
+	 *            true to read through the entropy coded data and index all
+	 *            the scans
+	 * @return Index of the markers of the image
+	 * @throws FileFormatException
+	 *             If the image does not start with SOI
+	 */
+	public static MarkerIndex build(ByteBuffer buffer, boolean allScans)
+			throws IOException {
+		MarkerIndex index = new MarkerIndex();
+		index.buffer = buffer;
+		index.bufferStart = buffer.position();
+		index.size = buffer.remaining();
+		try {
+			index.build(allScans);
+		} finally {
+			index.buffer = null;
+		}
+		return index;
+	}
+
+	/**
+	 * Gets the number of markers indexed.
+	 * 
+	 * @return Number of markers
+	 */
+	public int getCount() {
+		return count;
+	}
+
+	/**
+	 * Gets the code of a marker, which is the byte following the 0xFF prefix.
+	 * 
+	 * @param i
+	 *            Index of the marker
+	 * @return Marker code between 0 and 255
+	 */
+	public int getMarker(int i) {
+		return markers[i];
+	}
+
+	/**
+	 * Gets the offset of a marker from the start of the image.
+	 * 
+	 * @param i
+	 *            Index of the marker
+	 * @return Offset of the 0xFF prefix of the marker
+	 */
+	public long getOffset(int i) {
+		return offsets[i];
+	}
+
+	/**
+	 * Gets the length of a marker segment including the marker.
+	 * 
+	 * @param i
+	 *            Index of the marker
+	 * @return Length of the segment
+	 */
+	public int getLength(int i) {
+		return lengths[i];
+	}
+
+	/**
+	 * Finds a marker.
+	 * 
+	 * @param marker
+	 *            Marker code, for example 0xE1 for APP1
+	 * @param from
+	 *            Index to start searching from
+	 * @return Index of the first marker with the code at or after from or -1
+	 *         if there is none
+	 */
+	public int find(int marker, int from) {
+		for (int i = from; i < count; i++)
+			if (markers[i] == marker)
+				return i;
+		return -1;
+	}
+
+	/**
+	 * Finds the first occurrence of a marker.
+	 * 
+	 * @param marker
+	 *            Marker code, for example 0xE1 for APP1
+	 * @return Index of the marker or -1 if there is none
+	 */
+	public int find(int marker) {
+		return find(marker, 0);
+	}
+
+	/**
+	 * Gets the size of the input.
+	 * 
+	 * @return Number of bytes from the start of the image to the end of the
+	 *         input
+	 */
+	public long getSize() {
+		return size;
+	}
+
+	/**
+	 * Returns whether the index extends upto EOI. This is false if the EOI is
+	 * not at the end of the input when not all scans are read or if the
+	 * structure of the image is broken.
+	 * 
+	 * @return true if the EOI was found
+	 */
+	public boolean isComplete() {
+		return complete;
+	}
+
+	// Returns the byte at pos or -1 if pos is beyond the input
+	private int byteAt(long pos) throws IOException {
+		if (pos >= size)
+			return -1;
+		if (buffer != null)
+			return buffer.get(bufferStart + (int) pos) & 255;
+		if (windowPos < 0 || pos < windowPos || pos >= windowPos + windowLen) {
+			ByteBuffer bb = ByteBuffer.wrap(window);
+			windowLen = 0;
+			int len;
+			while (bb.hasRemaining()
+					&& (len = channel.read(bb, channelStart + pos + windowLen)) > 0)
+				windowLen += len;
+			if (windowLen == 0)
+				return -1;
+			windowPos = pos;
+		}
+		return window[(int) (pos - windowPos)] & 255;
+	}
+
+	private void add(int marker, long offset, int length) {
+		if (count == markers.length) {
+			int newLen = count * 2;
+			int[] newMarkers = new int[newLen];
+			long[] newOffsets = new long[newLen];
+			int[] newLengths = new int[newLen];
+			System.arraycopy(markers, 0, newMarkers, 0, count);
+			System.arraycopy(offsets, 0, newOffsets, 0, count);
+			System.arraycopy(lengths, 0, newLengths, 0, count);
+			markers = newMarkers;
+			offsets = newOffsets;
+			lengths = newLengths;
+		}
+		markers[count] = marker;
+		offsets[count] = offset;
+		lengths[count] = length;
+		count++;
+	}
+
+	private void build(boolean allScans) throws IOException {
+		if (byteAt(0) != 0xff || byteAt(1) != (BasicJpegIo.M_SOI & 255))
+			throw new FileFormatException("Not a Jpeg File");
+		add(BasicJpegIo.M_SOI & 255, 0, 2);
+		long pos = 2;
+		int b;
+		while (true) {
+			if (byteAt(pos) != 0xff)
+				return; // Broken structure
+			// Skip 0xff filling
+			do
+				b = byteAt(++pos);
+			while (b == 0xff);
+			if (b <= 0)
+				return;
+			long offset = pos - 1;
+			pos++;
+			if (b == (BasicJpegIo.M_EOI & 255)) {
+				add(b, offset, 2);
+				complete = true;
+				return;
+			}
+			if (b == 0x01
+					|| (b & 0xf8) == (BasicJpegIo.M_RST0 & 255)) {
+				// Markers without a segment
+				add(b, offset, 2);
+				continue;
+			}
+			int hi = byteAt(pos), lo = byteAt(pos + 1);
+			if (lo < 0)
+				return;
+			int len = (hi << 8) | lo;
+			if (len < 2 || pos + len > size)
+				return;
+			pos += len;
+			add(b, offset, len + 2);
+			if (b == (BasicJpegIo.M_SOS & 255)) {
+				if (!allScans) {
+					if (size >= pos + 2 && byteAt(size - 2) == 0xff
+							&& byteAt(size - 1) == (BasicJpegIo.M_EOI & 255)) {
+						add(BasicJpegIo.M_EOI & 255, size - 2, 2);
+						complete = true;
+					}
+					return;
+				}
+				// Find the marker ending the entropy coded data
+				while ((b = byteAt(pos)) >= 0) {
+					if (b == 0xff) {
+						int next = byteAt(pos + 1);
+						if (next != 0 && next != 0xff
+								&& (next & 0xf8) != (BasicJpegIo.M_RST0 & 255))
+							break;
+						if (next != 0xff)
+							pos++;
+					}
+					pos++;
+				}
+				if (b < 0)
+					return;
+			}
+		}
+	}
+}
@@ -0,0 +1,632 @@
+/* MediaUtil LLJTran - $RCSfile: MetadataExtractor.java,v $
+ * Copyright (C) 1999-2005 Dmitriy Rogatkin, Suresh Mahalingam.  All rights reserved.
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *  THIS SOFTWARE IS PROVIDED BY THE AUTHOR AND CONTRIBUTORS ``AS IS'' AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ *  IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ *  ARE DISCLAIMED. IN NO EVENT SHALL THE AUTHOR OR CONTRIBUTORS BE LIABLE FOR
+ *  ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *	$Id$
+ *
+ */
+package android.mediautil.image.jpeg;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FileInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.LinkedList;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import android.mediautil.generic.Log;
+import android.mediautil.generic.directio.ByteCounter;
+import android.mediautil.generic.directio.IterativeReader;
+
+/**
+ * Reads the ImageInfo (Exif) of all the Jpeg files under a set of directories
+ * using a number of threads. Each thread reads upto READ_INFO using its own
+ * LLJTran which is reused for the next file through resetInput. Each thread
+ * keeps the files and directories it finds in its own queue and takes work
+ * from the other queues when its queue is empty.
+ * <p>
+ * 
+ * The results are passed to a ResultListener as they are read or can be
+ * taken one at a time from a bounded queue using take(). A file which cannot
+ * be read or takes longer than the timeout gives a Result with an error and
+ * the extraction carries on with the other files. The number of files read
+ * per second and the bytes read per file are logged every reportInterval
+ * files at LEVEL_INFO and are also available through the getters.
+ * 
+ * <pre>
+ * TagProjection projection = new TagProjection();
+ * projection.addTag(Exif.DATETIMEORIGINAL);
+ * MetadataExtractor extractor = new MetadataExtractor(4);
+ * extractor.setTagProjection(projection);
+ * extractor.extract(new File[] { new File(&quot;/sdcard/DCIM&quot;) },
+ * 		new MetadataExtractor.ResultListener() {
+ * 			public void onResult(MetadataExtractor.Result result) {
+ * 				if (result.getError() == null)
+ * 					index(result.getFile(), result.getProjectedTags());
+ * 			}
+ * 		});
+ * </pre>
+ */
+public class MetadataExtractor {
+	private static final String TAG = "MetadataExtractor";
+
+	/** Default timeout for reading a file in milliseconds */
+	public static final long DEFAULT_TIMEOUT = 30000;
+
+	/** Default number of files after which the progress is logged */
+	public static final int DEFAULT_REPORT_INTERVAL = 1000;
+
+	// Number of bytes read in a nextRead call between checks of the timeout
+	private static final int READ_CHUNK = 8192;
+
+	// Number of Results held for take()
+	private static final int QUEUE_SIZE = 256;
+
+	// Milliseconds to wait for room in the Result queue between checks of
+	// cancel()
+	private static final long OFFER_WAIT = 100;
+
+	// Filter for the default file types
+	private static final FileFilter JPEG_FILTER = new FileFilter() {
+		public boolean accept(File file) {
+			String name = file.getName().toLowerCase();
+			return file.isDirectory() || name.endsWith(".jpg")
+					|| name.endsWith(".jpeg") || name.endsWith(".jpe");
+		}
+	};
+
+	/**
+	 * Result of reading a file.
+	 */
+	public static class Result {
+		Result(File file) {
+			this.file = file;
+		}
+
+		public File getFile() {
+			return file;
+		}
+
+		/**
+		 * Gets the ImageInfo read.
+		 * 
+		 * @return The ImageInfo or null if there was an error
+		 */
+		public AbstractImageInfo<?> getImageInfo() {
+			return imageInfo;
+		}
+
+		/**
+		 * Gets the tags read if a TagProjection is set.
+		 * 
+		 * @return The tags read or null if there was an error, no
+		 *         TagProjection is set or the file does not have Exif
+		 */
+		public ProjectedTags getProjectedTags() {
+			return projectedTags;
+		}
+
+		/**
+		 * Gets the number of bytes read from the file.
+		 * 
+		 * @return Number of bytes read
+		 */
+		public long getBytesRead() {
+			return bytesRead;
+		}
+
+		/**
+		 * Gets the time taken to read the file.
+		 * 
+		 * @return Time in milliseconds
+		 */
+		public long getTime() {
+			return time;
+		}
+
+		/**
+		 * Gets the error encountered reading the file.
+		 * 
+		 * @return Error message or null if the file was read
+		 */
+		public String getError() {
+			return error;
+		}
+
+		public boolean isTimedOut() {
+			return timedOut;
+		}
+
+		private File file;
+		private AbstractImageInfo<?> imageInfo;
+		private ProjectedTags projectedTags;
+		private long bytesRead, time;
+		private String error;
+		private boolean timedOut;
+	}
+
+	/**
+	 * Interface to receive the Results.
+	 */
+	public interface ResultListener {
+		/**
+		 * Called with the Result of each file. This is called from the
+		 * extracting threads and so needs to be thread safe.
+		 * 
+		 * @param result
+		 *            Result of reading a file
+		 */
+		public void onResult(Result result);
+	}
+
+	/**
+	 * Constructor.
+	 * 
+	 * @param numThreads
+	 *            Number of threads to read the files with
+	 */
+	public MetadataExtractor(int numThreads) {
+		if (numThreads < 1)
+			throw new IllegalArgumentException("Invalid numThreads "
+					+ numThreads);
+		this.numThreads = numThreads;
+	}
+
+	/**
+	 * Sets the Exif tags to be read.
+	 * 
+	 * @param tagProjection
+	 *            Tags to be read or null to read the full ImageInfo
+	 * @see LLJTran#setTagProjection(TagProjection)
+	 */
+	public void setTagProjection(TagProjection tagProjection) {
+		this.tagProjection = tagProjection;
+	}
+
+	/**
+	 * Sets the time allowed for reading a file. The timeout is checked after
+	 * every few KB read, so it does not cut short a single read blocked on
+	 * the file system.
+	 * 
+	 * @param timeout
+	 *            Timeout in milliseconds or 0 for none. The default is
+	 *            DEFAULT_TIMEOUT
+	 */
+	public void setTimeout(long timeout) {
+		this.timeout = timeout;
+	}
+
+	/**
+	 * Sets the filter for the files and directories to be read. The default
+	 * accepts all directories and files with the extensions .jpg, .jpeg and
+	 * .jpe.
+	 * 
+	 * @param filter
+	 *            Filter which must accept the directories to be walked
+	 */
+	public void setFileFilter(FileFilter filter) {
+		this.filter = filter;
+	}
+
+	/**
+	 * Sets the number of files after which the progress is logged.
+	 * 
+	 * @param reportInterval
+	 *            Number of files or 0 to not log the progress
+	 */
+	public void setReportInterval(int reportInterval) {
+		this.reportInterval = reportInterval;
+	}
+
+	/**
+	 * Reads all the files under roots passing the Results to listener. This
+	 * returns after all the files are read or after cancel() is called. The
+	 * calling thread is used as one of the threads.
+	 * 
+	 * @param roots
+	 *            Directories or files to be read
+	 * @param listener
+	 *            Listener to receive the Results
+	 */
+	public void extract(File roots[], ResultListener listener) {
+		Worker workers[] = init(roots, listener);
+		Thread threads[] = new Thread[workers.length - 1];
+		for (int i = 0; i < threads.length; i++) {
+			threads[i] = new Thread(workers[i + 1], "MetadataExtractor "
+					+ (i + 1));
+			threads[i].start();
+		}
+		workers[0].run();
+		for (int i = 0; i < threads.length; i++)
+			try {
+				threads[i].join();
+			} catch (InterruptedException e) {
+				cancel();
+				i--;
+			}
+	}
+
+	/**
+	 * Starts reading all the files under roots in the background. The Results
+	 * are to be taken using take().
+	 * 
+	 * @param roots
+	 *            Directories or files to be read
+	 * @see #take()
+	 */
+	public void start(File roots[]) {
+		results = new ArrayBlockingQueue<Result>(QUEUE_SIZE);
+		Worker workers[] = init(roots, null);
+		for (int i = 0; i < workers.length; i++)
+			new Thread(workers[i], "MetadataExtractor " + (i + 1)).start();
+	}
+
+	/**
+	 * Takes the next Result after start() waiting for it if needed.
+	 * 
+	 * @return The next Result or null if all the files are read
+	 * @throws InterruptedException
+	 *             If interrupted while waiting
+	 * @see #start(File[])
+	 */
+	public Result take() throws InterruptedException {
+		Result result = results.take();
+		if (result == END) {
+			// For any other thread taking Results
+			results.put(END);
+			return null;
+		}
+		return result;
+	}
+
+	/**
+	 * Stops the extraction. The files being read are completed. With take()
+	 * their Results, and any others not yet taken, may be dropped if the
+	 * Result queue is full.
+	 */
+	public void cancel() {
+		cancelled = true;
+		synchronized (idle) {
+			idle.notifyAll();
+		}
+	}
+
+	/**
+	 * Gets the number of files read so far including those with errors.
+	 * 
+	 * @return Number of files
+	 */
+	public int getFileCount() {
+		return fileCount.get();
+	}
+
+	/**
+	 * Gets the number of files which could not be read.
+	 * 
+	 * @return Number of files with errors
+	 */
+	public int getErrorCount() {
+		return errorCount.get();
+	}
+
+	/**
+	 * Gets the total bytes read from the files so far.
+	 * 
+	 * @return Bytes read
+	 */
+	public long getBytesRead() {
+		return bytesRead.get();
+	}
+
+	/**
+	 * Gets the rate at which files have been read so far.
+	 * 
+	 * @return Files read per second
+	 */
+	public double getImagesPerSecond() {
+		long elapsed = System.currentTimeMillis() - startTime;
+		return elapsed > 0 ? fileCount.get() * 1000.0 / elapsed : 0;
+	}
+
+	private Worker[] init(File roots[], ResultListener listener) {
+		this.listener = listener;
+		if (listener != null)
+			results = null;
+		cancelled = false;
+		fileCount.set(0);
+		errorCount.set(0);
+		bytesRead.set(0);
+		pending.set(0);
+		startTime = System.currentTimeMillis();
+		workers = new Worker[numThreads];
+		for (int i = 0; i < numThreads; i++)
+			workers[i] = new Worker(i);
+		liveWorkers.set(numThreads);
+		for (int i = 0; i < roots.length; i++)
+			workers[i % numThreads].push(roots[i]);
+		return workers;
+	}
+
+	private void report() {
+		int count = fileCount.get();
+		android.util.Log.i(TAG, count + " files, " + errorCount.get()
+				+ " errors, " + Math.round(getImagesPerSecond())
+				+ " images/sec, " + bytesRead.get() / count + " bytes/file");
+	}
+
+	// Input counting the bytes read from a file. Bytes skipped are not read
+	// and so are not counted.
+	private static class CountingInputStream extends FilterInputStream
+			implements ByteCounter {
+		CountingInputStream(InputStream in) {
+			super(in);
+		}
+
+		@Override
+		public int read() throws IOException {
+			int b = super.read();
+			if (b >= 0)
+				count++;
+			return b;
+		}
+
+		@Override
+		public int read(byte b[], int off, int len) throws IOException {
+			int n = super.read(b, off, len);
+			if (n > 0)
+				count += n;
+			return n;
+		}
+
+		@Override
+		public long getByteCount() {
+			return count;
+		}
+
+		private long count;
+	}
+
+	private class Worker implements Runnable {
+		Worker(int index) {
+			this.index = index;
+		}
+
+		public void run() {
+			try {
+				File file;
+				while ((file = nextTask()) != null) {
+					try {
+						if (file.isDirectory())
+							list(file);
+						else
+							emit(read(file));
+					} finally {
+						if (pending.decrementAndGet() == 0)
+							synchronized (idle) {
+								idle.notifyAll();
+							}
+					}
+				}
+			} finally {
+				if (liveWorkers.decrementAndGet() == 0 && results != null)
+					offer(END);
+			}
+		}
+
+		// Adds a task without waking the idle workers
+		void push(File file) {
+			pending.incrementAndGet();
+			synchronized (queue) {
+				queue.addLast(file);
+			}
+		}
+
+		// Wakes the idle workers after tasks are pushed
+		private void signal() {
+			synchronized (idle) {
+				pushCount++;
+				idle.notifyAll();
+			}
+		}
+
+		// Takes the last task of the own queue or the first task of
+		// another queue, waiting while other workers may push more. Returns
+		// null once there are no tasks left.
+		private File nextTask() {
+			while (!cancelled) {
+				int seen;
+				synchronized (idle) {
+					seen = pushCount;
+				}
+				synchronized (queue) {
+					if (!queue.isEmpty())
+						return queue.removeLast();
+				}
+				for (int i = 1; i < workers.length; i++) {
+					LinkedList<File> other = workers[(index + i)
+							% workers.length].queue;
+					synchronized (other) {
+						if (!other.isEmpty())
+							return other.removeFirst();
+					}
+				}
+				synchronized (idle) {
+					while (pushCount == seen && pending.get() != 0
+							&& !cancelled)
+						try {
+							idle.wait();
+						} catch (InterruptedException e) {
+							cancelled = true;
+						}
+				}
+				if (pending.get() == 0)
+					break;
+			}
+			return null;
+		}
+
+		private void list(File dir) {
+			File files[] = dir.listFiles(filter);
+			if (files == null) {
+				if (Log.debugLevel >= Log.LEVEL_WARNING)
+					android.util.Log.w(TAG, "Warning: Unable to list " + dir);
+				return;
+			}
+			for (int i = 0; i < files.length; i++)
+				push(files[i]);
+			if (files.length > 0)
+				signal();
+		}
+
+		private Result read(File file) {
+			Result result = new Result(file);
+			long start = System.currentTimeMillis();
+			CountingInputStream in = null;
+			try {
+				in = new CountingInputStream(new FileInputStream(file));
+				if (llj == null) {
+					llj = new LLJTran(in);
+					llj.setTagProjection(tagProjection);
+				} else
+					llj.resetInput(in);
+				llj.initRead(LLJTran.READ_INFO, true, false);
+				long deadline = timeout > 0 ? start + timeout : Long.MAX_VALUE;
+				long count = in.getByteCount();
+				while (llj.nextRead(READ_CHUNK) == IterativeReader.CONTINUE) {
+					if (in.getByteCount() == count) {
+						// Nothing more is being read
+						result.error = "Unexpected End Of Input";
+						break;
+					}
+					count = in.getByteCount();
+					if (System.currentTimeMillis() > deadline) {
+						result.timedOut = true;
+						result.error = "Timed out after " + timeout + " ms";
+						break;
+					}
+				}
+				if (result.error == null)
+					result.error = llj.getErrorMsg();
+				if (result.error == null) {
+					result.imageInfo = llj.getImageInfo();
+					if (result.imageInfo instanceof Exif)
+						result.projectedTags = ((Exif) result.imageInfo)
+								.getProjectedTags();
+				}
+			} catch (IOException e) {
+				result.error = e.toString();
+			} catch (LLJTranException e) {
+				result.error = e.getMessage();
+			} catch (RuntimeException e) {
+				// Corrupt files can trip up the parsing
+				result.error = e.toString();
+			} finally {
+				if (in != null) {
+					result.bytesRead = in.getByteCount();
+					try {
+						in.close();
+					} catch (IOException e) {
+					}
+				}
+			}
+			// An LLJTran is not reusable after an error
+			if (result.error != null)
+				llj = null;
+			result.time = System.currentTimeMillis() - start;
+			return result;
+		}
+
+		private void emit(Result result) {
+			bytesRead.addAndGet(result.bytesRead);
+			if (result.error != null) {
+				errorCount.incrementAndGet();
+				if (Log.debugLevel >= Log.LEVEL_WARNING)
+					android.util.Log.w(TAG, "Warning: " + result.file + ": "
+							+ result.error);
+			}
+			int count = fileCount.incrementAndGet();
+			if (reportInterval > 0 && count % reportInterval == 0
+					&& Log.debugLevel >= Log.LEVEL_INFO)
+				report();
+			if (listener != null) {
+				try {
+					listener.onResult(result);
+				} catch (RuntimeException e) {
+					if (Log.debugLevel >= Log.LEVEL_ERROR)
+						android.util.Log.e(TAG, "Error: ResultListener failed for "
+								+ result.file, e);
+				}
+			} else
+				offer(result);
+		}
+
+		// Adds to the Result queue waiting while it is full. Once cancelled
+		// a Result is dropped, or for END the oldest Result is dropped, so
+		// that a worker does not wait on a queue which is not being taken
+		// from.
+		private void offer(Result result) {
+			try {
+				while (!results.offer(result, OFFER_WAIT,
+						TimeUnit.MILLISECONDS))
+					if (cancelled) {
+						if (result != END)
+							return;
+						results.poll();
+					}
+			} catch (InterruptedException e) {
+				cancelled = true;
+				if (result == END)
+					offer(END);
+			}
+		}
+
+		private final int index;
+		private final LinkedList<File> queue = new LinkedList<File>();
+		private LLJTran llj;
+	}
+
+	// Marks the end of the Results for take()
+	private static final Result END = new Result(null);
+
+	private final int numThreads;
+	private TagProjection tagProjection;
+	private long timeout = DEFAULT_TIMEOUT;
+	private FileFilter filter = JPEG_FILTER;
+	private int reportInterval = DEFAULT_REPORT_INTERVAL;
+	private ResultListener listener;
+	private ArrayBlockingQueue<Result> results;
+	private Worker workers[];
+	private volatile boolean cancelled;
+	private long startTime;
+	// Lock on which idle workers wait for tasks and the count of the
+	// signals of new tasks guarded by it
+	private final Object idle = new Object();
+	private int pushCount;
+	// Tasks pushed and not yet completed
+	private final AtomicInteger pending = new AtomicInteger();
+	private final AtomicInteger liveWorkers = new AtomicInteger();
+	private final AtomicInteger fileCount = new AtomicInteger();
+	private final AtomicInteger errorCount = new AtomicInteger();
+	private final AtomicLong bytesRead = new AtomicLong();
+}
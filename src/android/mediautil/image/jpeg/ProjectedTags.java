@@ -0,0 +1,255 @@
+/* MediaUtil LLJTran - $RCSfile: ProjectedTags.java,v $
+ * Copyright (C) 1999-2005 Dmitriy Rogatkin, Suresh Mahalingam.  All rights reserved.
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *  THIS SOFTWARE IS PROVIDED BY THE AUTHOR AND CONTRIBUTORS ``AS IS'' AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ *  IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ *  ARE DISCLAIMED. IN NO EVENT SHALL THE AUTHOR OR CONTRIBUTORS BE LIABLE FOR
+ *  ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *	$Id$
+ *
+ */
+package android.mediautil.image.jpeg;
+
+import android.mediautil.generic.Rational;
+
+/**
+ * The Exif tags read for a {@link TagProjection}. The tags are held in flat
+ * arrays in the order found, each with the subTag of the sub IFD of the main
+ * or Thumbnail IFD it was found in or 0 if it was found in the main or
+ * Thumbnail IFD itself. Numeric values are held in an int array with RATIONAL
+ * and SRATIONAL values as numerator, denominator pairs. The Thumbnail tags
+ * are corrected or removed in the same way as when the IFDs are built.
+ * 
+ * @see Exif#getProjectedTags()
+ */
+public class ProjectedTags {
+	/**
+	 * Gets the number of tags read.
+	 * 
+	 * @return Number of tags
+	 */
+	public int getCount() {
+		return count;
+	}
+
+	/**
+	 * Finds a tag in the same way as it is looked up by
+	 * {@link Exif#getTagValue(Integer,int,boolean)}.
+	 * 
+	 * @param tag
+	 *            Exif tag
+	 * @param subTag
+	 *            Sub Tag if any or pass -1
+	 * @param main
+	 *            true if it is in the main IFD, false if it is in the
+	 *            Thumbnail IFD
+	 * @return Index of the tag or -1 if not read
+	 */
+	public int find(int tag, int subTag, boolean main) {
+		for (int i = 0; i < count; i++)
+			if (tags[i] == tag && mains[i] == main
+					&& (subTag <= 0 || subTags[i] == 0 || subTags[i] == subTag))
+				return i;
+		return -1;
+	}
+
+	/**
+	 * Finds a tag in the main IFD or its sub IFDs.
+	 * 
+	 * @param tag
+	 *            Exif tag
+	 * @return Index of the tag or -1 if not read
+	 * @see #find(int,int,boolean)
+	 */
+	public int find(int tag) {
+		return find(tag, -1, true);
+	}
+
+	public int getTag(int index) {
+		return tags[index];
+	}
+
+	/**
+	 * Gets the subTag of the sub IFD the tag was found in.
+	 * 
+	 * @param index
+	 *            Index of the tag
+	 * @return subTag of the sub IFD or 0 if the tag is in the main or
+	 *         Thumbnail IFD
+	 */
+	public int getSubTag(int index) {
+		return subTags[index];
+	}
+
+	public boolean isMain(int index) {
+		return mains[index];
+	}
+
+	public int getType(int index) {
+		return types[index];
+	}
+
+	/**
+	 * Gets the number of values of a tag.
+	 * 
+	 * @param index
+	 *            Index of the tag
+	 * @return Number of values. 1 for an ASCII tag
+	 */
+	public int getValueCount(int index) {
+		return types[index] == Exif.ASCII ? 1 : valueCounts[index];
+	}
+
+	/**
+	 * Gets a value as an int. For the RATIONAL and SRATIONAL types this is the
+	 * numerator divided by the denominator.
+	 * 
+	 * @param index
+	 *            Index of the tag
+	 * @param valueIndex
+	 *            Index of the value
+	 * @return The value
+	 */
+	public int getInt(int index, int valueIndex) {
+		checkValueIndex(index, valueIndex);
+		int type = types[index];
+		if (type == Exif.RATIONAL || type == Exif.SRATIONAL) {
+			int pos = valueStarts[index] + 2 * valueIndex;
+			return values[pos + 1] == 0 ? 0 : values[pos] / values[pos + 1];
+		}
+		return values[valueStarts[index] + valueIndex];
+	}
+
+	/**
+	 * Gets a value as a Rational. Values of the integer types have a
+	 * denominator of 1.
+	 * 
+	 * @param index
+	 *            Index of the tag
+	 * @param valueIndex
+	 *            Index of the value
+	 * @return The value
+	 */
+	public Rational getRational(int index, int valueIndex) {
+		checkValueIndex(index, valueIndex);
+		int type = types[index];
+		if (type == Exif.RATIONAL || type == Exif.SRATIONAL) {
+			int pos = valueStarts[index] + 2 * valueIndex;
+			return new Rational(values[pos], values[pos + 1]);
+		}
+		return new Rational(values[valueStarts[index] + valueIndex], 1);
+	}
+
+	/**
+	 * Gets the value of an ASCII tag.
+	 * 
+	 * @param index
+	 *            Index of the tag
+	 * @return The String value or null if the tag is not of the ASCII type
+	 */
+	public String getString(int index) {
+		return strings[index];
+	}
+
+	private void checkValueIndex(int index, int valueIndex) {
+		if (types[index] == Exif.ASCII || valueIndex < 0
+				|| valueIndex >= valueCounts[index])
+			throw new IndexOutOfBoundsException("Value " + valueIndex
+					+ " not present for tag " + tags[index]);
+	}
+
+	// Adds a tag returning the position in values to store its numeric
+	// values at
+	int add(int tag, int subTag, boolean main, int type, int valueCount,
+			String str) {
+		if (count == tags.length) {
+			int newLen = count * 2;
+			int newTags[] = new int[newLen];
+			int newSubTags[] = new int[newLen];
+			boolean newMains[] = new boolean[newLen];
+			int newTypes[] = new int[newLen];
+			int newValueCounts[] = new int[newLen];
+			int newValueStarts[] = new int[newLen];
+			String newStrings[] = new String[newLen];
+			System.arraycopy(tags, 0, newTags, 0, count);
+			System.arraycopy(subTags, 0, newSubTags, 0, count);
+			System.arraycopy(mains, 0, newMains, 0, count);
+			System.arraycopy(types, 0, newTypes, 0, count);
+			System.arraycopy(valueCounts, 0, newValueCounts, 0, count);
+			System.arraycopy(valueStarts, 0, newValueStarts, 0, count);
+			System.arraycopy(strings, 0, newStrings, 0, count);
+			tags = newTags;
+			subTags = newSubTags;
+			mains = newMains;
+			types = newTypes;
+			valueCounts = newValueCounts;
+			valueStarts = newValueStarts;
+			strings = newStrings;
+		}
+		int numValues = 0;
+		if (type != Exif.ASCII)
+			numValues = (type == Exif.RATIONAL || type == Exif.SRATIONAL) ? 2 * valueCount
+					: valueCount;
+		if (numUsed + numValues > values.length) {
+			int newValues[] = new int[Math.max(values.length * 2, numUsed
+					+ numValues)];
+			System.arraycopy(values, 0, newValues, 0, numUsed);
+			values = newValues;
+		}
+		tags[count] = tag;
+		subTags[count] = subTag;
+		mains[count] = main;
+		types[count] = type;
+		valueCounts[count] = valueCount;
+		valueStarts[count] = numUsed;
+		strings[count] = str;
+		count++;
+		int pos = numUsed;
+		numUsed += numValues;
+		return pos;
+	}
+
+	// Sets a value of an integer type tag
+	void setInt(int index, int valueIndex, int value) {
+		checkValueIndex(index, valueIndex);
+		values[valueStarts[index] + valueIndex] = value;
+	}
+
+	// Removes a tag leaving its values unused
+	void remove(int index) {
+		int n = count - index - 1;
+		System.arraycopy(tags, index + 1, tags, index, n);
+		System.arraycopy(subTags, index + 1, subTags, index, n);
+		System.arraycopy(mains, index + 1, mains, index, n);
+		System.arraycopy(types, index + 1, types, index, n);
+		System.arraycopy(valueCounts, index + 1, valueCounts, index, n);
+		System.arraycopy(valueStarts, index + 1, valueStarts, index, n);
+		System.arraycopy(strings, index + 1, strings, index, n);
+		count--;
+		strings[count] = null;
+	}
+
+	private int count;
+	private int[] tags = new int[8];
+	private int[] subTags = new int[8];
+	private boolean[] mains = new boolean[8];
+	private int[] types = new int[8];
+	private int[] valueCounts = new int[8];
+	private int[] valueStarts = new int[8];
+	private String[] strings = new String[8];
+	int[] values = new int[32];
+	private int numUsed;
+}
@@ -0,0 +1,122 @@
+/* MediaUtil LLJTran - $RCSfile: TagProjection.java,v $
+ * Copyright (C) 1999-2005 Dmitriy Rogatkin, Suresh Mahalingam.  All rights reserved.
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *  THIS SOFTWARE IS PROVIDED BY THE AUTHOR AND CONTRIBUTORS ``AS IS'' AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ *  IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ *  ARE DISCLAIMED. IN NO EVENT SHALL THE AUTHOR OR CONTRIBUTORS BE LIABLE FOR
+ *  ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *	$Id$
+ *
+ */
+package android.mediautil.image.jpeg;
+
+/**
+ * The set of Exif tags to be read when only a few tags of an image are needed.
+ * When set on LLJTran using {@link LLJTran#setTagProjection(TagProjection)}
+ * Exif reads only these tags into a {@link ProjectedTags} while reading the
+ * ImageInfo. Sub IFDs which cannot contain a requested tag are not walked and
+ * the walk stops once all the requested tags are found. The full IFDs are
+ * built only if the Exif is accessed through getTagValue or is written.
+ * <p>
+ * 
+ * A tag is requested with a subTag and main flag in the same way as it is
+ * looked up using {@link Exif#getTagValue(Integer,int,boolean)}. A subTag of
+ * -1 looks in the IFD and all its sub IFDs while a subTag like
+ * {@link Exif#GPSINFO} restricts it to the IFD and that sub IFD. All the
+ * entries of a sub IFD can be requested using addIFD.
+ * 
+ * <pre>
+ * TagProjection projection = new TagProjection();
+ * projection.addTag(Exif.ORIENTATION);
+ * projection.addTag(Exif.DATETIMEORIGINAL);
+ * projection.addIFD(Exif.GPSINFO, true);
+ * llj.setTagProjection(projection);
+ * llj.read(LLJTran.READ_INFO, true);
+ * ProjectedTags tags = ((Exif) llj.getImageInfo()).getProjectedTags();
+ * </pre>
+ */
+public class TagProjection {
+	/** Tag value requesting all the entries of a sub IFD */
+	public static final int ALL_TAGS = -1;
+
+	/**
+	 * Requests a tag in the main IFD or any of its sub IFDs.
+	 * 
+	 * @param tag
+	 *            Exif tag
+	 */
+	public void addTag(int tag) {
+		addTag(tag, -1, true);
+	}
+
+	/**
+	 * Requests a tag.
+	 * 
+	 * @param tag
+	 *            Exif tag
+	 * @param subTag
+	 *            Sub Tag if any or pass -1
+	 * @param main
+	 *            true if it is in the main IFD, false if it is in the
+	 *            Thumbnail IFD
+	 */
+	public void addTag(int tag, int subTag, boolean main) {
+		if (count == tags.length) {
+			int newTags[] = new int[count * 2];
+			int newSubTags[] = new int[count * 2];
+			boolean newMains[] = new boolean[count * 2];
+			System.arraycopy(tags, 0, newTags, 0, count);
+			System.arraycopy(subTags, 0, newSubTags, 0, count);
+			System.arraycopy(mains, 0, newMains, 0, count);
+			tags = newTags;
+			subTags = newSubTags;
+			mains = newMains;
+		}
+		tags[count] = tag;
+		subTags[count] = subTag;
+		mains[count] = main;
+		count++;
+	}
+
+	/**
+	 * Requests all the entries of a sub IFD like the GPS IFD.
+	 * 
+	 * @param subTag
+	 *            Tag of the sub IFD like {@link Exif#GPSINFO}
+	 * @param main
+	 *            true if it is a sub IFD of the main IFD, false if it is of
+	 *            the Thumbnail IFD
+	 */
+	public void addIFD(int subTag, boolean main) {
+		if (subTag <= 0)
+			throw new IllegalArgumentException("Invalid subTag " + subTag);
+		addTag(ALL_TAGS, subTag, main);
+	}
+
+	/**
+	 * Gets the number of tags and IFDs requested.
+	 * 
+	 * @return Number of requests
+	 */
+	public int getCount() {
+		return count;
+	}
+
+	int count;
+	int[] tags = new int[8];
+	int[] subTags = new int[8];
+	boolean[] mains = new boolean[8];
+}
@@ -0,0 +1,280 @@
+/* MediaUtil LLJTran - $RCSfile: ThumbnailEncoder.java,v $
+ * Copyright (C) 1999-2005 Dmitriy Rogatkin, Suresh Mahalingam.  All rights reserved.
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *  THIS SOFTWARE IS PROVIDED BY THE AUTHOR AND CONTRIBUTORS ``AS IS'' AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ *  IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ *  ARE DISCLAIMED. IN NO EVENT SHALL THE AUTHOR OR CONTRIBUTORS BE LIABLE FOR
+ *  ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *	$Id$
+ *
+ * Some ideas and algorithms were borrowed from:
+ * Thomas G. Lane, and James R. Weeks
+ */
+package android.mediautil.image.jpeg;
+
+import java.io.ByteArrayOutputStream;
+
+/**
+ * Simple baseline jpeg encoder for small images like thumbnails. The image is
+ * encoded as YCbCr without subsampling using the sample quantization tables of
+ * the jpeg standard scaled for the quality and the standard Huffman tables.
+ */
+final class ThumbnailEncoder {
+	private static final int DCTSIZE = LLJTran.DCTSIZE;
+	private static final int DCTSIZE2 = LLJTran.DCTSIZE2;
+
+	// Sample quantization tables from Annex K of the jpeg standard in natural
+	// order
+	private static final int LUMINANCE_QT[] = { 16, 11, 10, 16, 24, 40, 51,
+			61, 12, 12, 14, 19, 26, 58, 60, 55, 14, 13, 16, 24, 40, 57, 69, 56,
+			14, 17, 22, 29, 51, 87, 80, 62, 18, 22, 37, 56, 68, 109, 103, 77,
+			24, 35, 55, 64, 81, 104, 113, 92, 49, 64, 78, 87, 103, 121, 120,
+			101, 72, 92, 95, 98, 112, 100, 103, 99 };
+
+	private static final int CHROMINANCE_QT[] = { 17, 18, 24, 47, 99, 99, 99,
+			99, 18, 21, 26, 66, 99, 99, 99, 99, 24, 26, 56, 99, 99, 99, 99, 99,
+			47, 66, 99, 99, 99, 99, 99, 99, 99, 99, 99, 99, 99, 99, 99, 99, 99,
+			99, 99, 99, 99, 99, 99, 99, 99, 99, 99, 99, 99, 99, 99, 99, 99, 99,
+			99, 99, 99, 99, 99, 99 };
+
+	// cos((2x+1)u pi/16) scaled by C(u)/2 indexed by u * 8 + x
+	private static final double DCT_COS[] = new double[DCTSIZE2];
+
+	static {
+		for (int u = 0; u < DCTSIZE; u++)
+			for (int x = 0; x < DCTSIZE; x++)
+				DCT_COS[u * DCTSIZE + x] = (u == 0 ? Math.sqrt(0.5) : 1)
+						/ 2 * Math.cos((2 * x + 1) * u * Math.PI / 16);
+	}
+
+	// Huffman codes and sizes by symbol. Index 0 is for luminance and 1 for
+	// chrominance
+	private int dcCode[][] = new int[2][256], dcSize[][] = new int[2][256];
+	private int acCode[][] = new int[2][256], acSize[][] = new int[2][256];
+	private int qt[][] = new int[2][DCTSIZE2];
+
+	private ByteArrayOutputStream out;
+	private int bitBuff, bitBuffLen;
+
+	private ThumbnailEncoder(int quality) {
+		// Quality scaling as in libjpeg
+		if (quality <= 0)
+			quality = 1;
+		if (quality > 100)
+			quality = 100;
+		int scale = quality < 50 ? 5000 / quality : 200 - quality * 2;
+		for (int i = 0; i < DCTSIZE2; i++) {
+			qt[0][i] = Math.min(255, Math.max(1,
+					(LUMINANCE_QT[i] * scale + 50) / 100));
+			qt[1][i] = Math.min(255, Math.max(1,
+					(CHROMINANCE_QT[i] * scale + 50) / 100));
+		}
+
+		// Generate the codes from the standard tables as in Annex C
+		byte tables[] = LLJTran.stdHuffTables;
+		int pos = 0;
+		while (pos < tables.length) {
+			int tableClass = (tables[pos] >> 4) & 15;
+			int index = tables[pos++] & 15;
+			int codes[] = tableClass == 0 ? dcCode[index] : acCode[index];
+			int sizes[] = tableClass == 0 ? dcSize[index] : acSize[index];
+			int symbolPos = pos + 16;
+			int code = 0;
+			for (int len = 1; len <= 16; len++) {
+				int count = tables[pos + len - 1] & 255;
+				for (int i = 0; i < count; i++) {
+					int symbol = tables[symbolPos++] & 255;
+					codes[symbol] = code++;
+					sizes[symbol] = len;
+				}
+				code <<= 1;
+			}
+			pos = symbolPos;
+		}
+	}
+
+	/**
+	 * Encodes an image.
+	 * 
+	 * @param pixels
+	 *            Pixels as ARGB values row by row. Alpha is ignored.
+	 * @param width
+	 *            Image width
+	 * @param height
+	 *            Image height
+	 * @param quality
+	 *            Quality from 1 to 100
+	 * @return The jpeg image
+	 */
+	static byte[] encode(int[] pixels, int width, int height, int quality) {
+		return new ThumbnailEncoder(quality).encode(pixels, width, height);
+	}
+
+	private byte[] encode(int[] pixels, int width, int height) {
+		out = new ByteArrayOutputStream(width * height / 2 + 1024);
+		writeHeaders(width, height);
+
+		int block[][] = new int[3][DCTSIZE2];
+		double coefs[] = new double[DCTSIZE2];
+		int last_dc[] = new int[3];
+		for (int by = 0; by < height; by += DCTSIZE) {
+			for (int bx = 0; bx < width; bx += DCTSIZE) {
+				// Convert to level shifted YCbCr repeating the edge pixels
+				// for partial blocks
+				for (int y = 0; y < DCTSIZE; y++) {
+					int row = Math.min(by + y, height - 1) * width;
+					for (int x = 0; x < DCTSIZE; x++) {
+						int p = pixels[row + Math.min(bx + x, width - 1)];
+						int r = (p >> 16) & 255;
+						int g = (p >> 8) & 255;
+						int b = p & 255;
+						int i = y * DCTSIZE + x;
+						block[0][i] = ((19595 * r + 38470 * g + 7471 * b + 32768) >> 16) - 128;
+						block[1][i] = (-11059 * r - 21709 * g + 32768 * b + 32768) >> 16;
+						block[2][i] = (32768 * r - 27439 * g - 5329 * b + 32768) >> 16;
+					}
+				}
+				for (int c = 0; c < 3; c++) {
+					int t = c == 0 ? 0 : 1;
+					fdct(block[c], coefs);
+					last_dc[c] = encodeBlock(coefs, qt[t], last_dc[c], t);
+				}
+			}
+		}
+
+		// Pad the last byte with 1 bits
+		if (bitBuffLen > 0)
+			writeBits(0x7f, 7);
+		out.write(BasicJpegIo.M_PRX);
+		out.write(BasicJpegIo.M_EOI);
+		return out.toByteArray();
+	}
+
+	private void writeHeaders(int width, int height) {
+		out.write(BasicJpegIo.M_PRX);
+		out.write(BasicJpegIo.M_SOI);
+
+		writeMarker(BasicJpegIo.M_DQT, 2 * (1 + DCTSIZE2));
+		for (int t = 0; t < 2; t++) {
+			out.write(t);
+			for (int i = 0; i < DCTSIZE2; i++)
+				out.write(qt[t][LLJTran.jpegnaturalorder[i]]);
+		}
+
+		writeMarker(BasicJpegIo.M_SOF0, 15);
+		out.write(8);
+		writeShort(height);
+		writeShort(width);
+		out.write(3);
+		for (int c = 0; c < 3; c++) {
+			out.write(c + 1);
+			out.write(0x11);
+			out.write(c == 0 ? 0 : 1);
+		}
+
+		writeMarker(BasicJpegIo.M_DHT, LLJTran.stdHuffTables.length);
+		out.write(LLJTran.stdHuffTables, 0, LLJTran.stdHuffTables.length);
+
+		writeMarker(BasicJpegIo.M_SOS, 10);
+		out.write(3);
+		for (int c = 0; c < 3; c++) {
+			out.write(c + 1);
+			out.write(c == 0 ? 0 : 0x11);
+		}
+		out.write(0);
+		out.write(DCTSIZE2 - 1);
+		out.write(0);
+	}
+
+	// Writes the marker and its length for len bytes of data
+	private void writeMarker(int marker, int len) {
+		out.write(BasicJpegIo.M_PRX);
+		out.write(marker);
+		writeShort(len + 2);
+	}
+
+	private void writeShort(int v) {
+		out.write(v >> 8);
+		out.write(v);
+	}
+
+	private static void fdct(int[] block, double[] coefs) {
+		double tmp[] = new double[DCTSIZE2];
+		// Rows
+		for (int y = 0; y < DCTSIZE; y++)
+			for (int u = 0; u < DCTSIZE; u++) {
+				double sum = 0;
+				for (int x = 0; x < DCTSIZE; x++)
+					sum += block[y * DCTSIZE + x] * DCT_COS[u * DCTSIZE + x];
+				tmp[y * DCTSIZE + u] = sum;
+			}
+		// Columns
+		for (int u = 0; u < DCTSIZE; u++)
+			for (int v = 0; v < DCTSIZE; v++) {
+				double sum = 0;
+				for (int y = 0; y < DCTSIZE; y++)
+					sum += tmp[y * DCTSIZE + u] * DCT_COS[v * DCTSIZE + y];
+				coefs[v * DCTSIZE + u] = sum;
+			}
+	}
+
+	// Quantizes and encodes a block. Returns the quantized DC value.
+	private int encodeBlock(double[] coefs, int[] q, int last_dc, int t) {
+		int dc = (int) Math.round(coefs[0] / q[0]);
+		writeValue(dcCode[t], dcSize[t], 0, dc - last_dc);
+		int run = 0;
+		for (int k = 1; k < DCTSIZE2; k++) {
+			int i = LLJTran.jpegnaturalorder[k];
+			int v = (int) Math.round(coefs[i] / q[i]);
+			if (v == 0) {
+				run++;
+				continue;
+			}
+			while (run > 15) {
+				writeBits(acCode[t][0xf0], acSize[t][0xf0]);
+				run -= 16;
+			}
+			writeValue(acCode[t], acSize[t], run, v);
+			run = 0;
+		}
+		if (run > 0)
+			writeBits(acCode[t][0], acSize[t][0]);
+		return dc;
+	}
+
+	// Writes the code for the run and size category of v followed by the bits
+	// of v
+	private void writeValue(int[] codes, int[] sizes, int run, int v) {
+		int bits = v < 0 ? v - 1 : v;
+		int size = v == 0 ? 0 : 32 - Integer.numberOfLeadingZeros(Math.abs(v));
+		int symbol = (run << 4) | size;
+		writeBits(codes[symbol], sizes[symbol]);
+		if (size > 0)
+			writeBits(bits & ((1 << size) - 1), size);
+	}
+
+	private void writeBits(int bits, int len) {
+		bitBuff = (bitBuff << len) | bits;
+		bitBuffLen += len;
+		while (bitBuffLen >= 8) {
+			bitBuffLen -= 8;
+			int b = (bitBuff >> bitBuffLen) & 255;
+			out.write(b);
+			if (b == 0xff)
+				out.write(0);
+		}
+	}
+}
@@ -31,7 +31,6 @@ import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
 
 import android.mediautil.generic.FileFormatException;
-import android.mediautil.generic.Rational;
 
 public class TiffExif extends Exif {
 	final static int FAKE_JPEG_OFFSET = FIRST_IFD_OFF + 1;
@@ -58,22 +57,16 @@ public class TiffExif extends Exif {
 				setTagValue(
 						JPEGINTERCHANGEFORMATLENGTH,
 						0,
-						new Entry(LONG,
-								new Object[] { Integer.valueOf(((Integer) e
-										.getValue(0))
-										- getThumbnailOffset()
-										+ DIR_ENTRY_SIZE) }), false); // Exif
-																		// add
-																		// this
-																		// value
-																		// to
-																		// offset
+						new Entry(LONG, new int[] { e.getInt(0)
+								- getThumbnailOffset() + DIR_ENTRY_SIZE }),
+						false); // Exif add this value to offset
 			}
 		}
 		if (getTagValue(JPEGINTERCHANGEFORMAT, 0, false) == null)
 			setTagValue(JPEGINTERCHANGEFORMAT, 0, new Entry(LONG,
-					new Object[] { Integer.valueOf(offset - FIRST_IFD_OFF) }),
-					false); // Exif add this value to offset
+					new int[] { offset - FIRST_IFD_OFF }), false); // Exif add
+																	// this value
+																	// to offset
 		offset = 0;
 	}
 
@@ -134,26 +127,30 @@ public class TiffExif extends Exif {
 					} catch (UnsupportedEncodingException e) {
 					}
 				} else {
-					Object[] values = new Object[count];
-					boolean signed = (type >= SSHORT);
-					for (int j = 0; j < count; j++) {
-						if (type % RATIONAL != 0) // Not a fraction
-							values[j] = s2n(data_off, typelen, signed);
-						else
-							// The type is either 5 or 10
-							values[j] = new Rational(s2n(data_off, 4, signed),
-									s2n(data_off + 4, 4, signed));
-						data_off += typelen;
-						if (tag == EXIFOFFSET && j == 0
-								&& ((Integer) values[0]).intValue() > 0) {
-							IFD iifd;
-							storeIFD(((Integer) values[0]).intValue() - offset
-									+ FAKE_JPEG_OFFSET, iifd = new IFD(tag,
-									type));
-							ifd_p.addIFD(iifd);
-						} else
-							ifd_p.addEntry(tag, new Entry(type, values));
+					Entry values;
+					if (count <= 0)
+						continue;
+					if (typelen == 1) {
+						byte[] bytes = new byte[count];
+						System.arraycopy(data, data_off, bytes, 0, count);
+						values = new Entry(type, bytes);
+					} else {
+						boolean signed = (type >= SSHORT);
+						int vlen = type % RATIONAL != 0 ? typelen : 4;
+						int[] ints = new int[count * typelen / vlen];
+						for (int j = 0; j < ints.length; j++) {
+							ints[j] = s2n(data_off, vlen, signed);
+							data_off += vlen;
+						}
+						values = new Entry(type, ints);
 					}
+					if (tag == EXIFOFFSET && values.getInt(0) > 0) {
+						IFD iifd;
+						storeIFD(values.getInt(0) - offset + FAKE_JPEG_OFFSET,
+								iifd = new IFD(tag, type));
+						ifd_p.addIFD(iifd);
+					} else
+						ifd_p.addEntry(tag, values);
 				}
 				data = ifd;
 			}
@@ -0,0 +1,127 @@
+/* MediaUtil LLJTran - $RCSfile: WindowDctStore.java,v $
+ * Copyright (C) 1999-2005 Dmitriy Rogatkin, Suresh Mahalingam.  All rights reserved.
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *  THIS SOFTWARE IS PROVIDED BY THE AUTHOR AND CONTRIBUTORS ``AS IS'' AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ *  IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ *  ARE DISCLAIMED. IN NO EVENT SHALL THE AUTHOR OR CONTRIBUTORS BE LIABLE FOR
+ *  ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *	$Id$
+ *
+ * Some ideas and algorithms were borrowed from:
+ * Thomas G. Lane, and James R. Weeks
+ */
+package android.mediautil.image.jpeg;
+
+import java.io.IOException;
+
+/**
+ * DctStore which keeps only the MCUs within a rectangular window of the
+ * image. Blocks of MCUs outside the window are dropped when added and the
+ * blocks of the window are kept in another DctStore of the size of the window.
+ */
+class WindowDctStore extends DctStore {
+	private int left, top, right, bottom;
+	private DctStore store;
+
+	// Position of the next block to be added
+	private int curMCU, curBlock;
+
+	/**
+	 * @param left
+	 *            First MCU column of the window
+	 * @param top
+	 *            First MCU row of the window
+	 * @param right
+	 *            MCU column after the window
+	 * @param bottom
+	 *            MCU row after the window
+	 * @param store
+	 *            Store for the window of size (right-left)x(bottom-top) MCUs
+	 */
+	WindowDctStore(int widthMCU, int heightMCU, int blocksPerMCU, int left,
+			int top, int right, int bottom, DctStore store) {
+		super(widthMCU, heightMCU, blocksPerMCU);
+		this.left = left;
+		this.top = top;
+		this.right = right;
+		this.bottom = bottom;
+		this.store = store;
+	}
+
+	int getBottom() {
+		return bottom;
+	}
+
+	/**
+	 * Returns true if the MCU at ix, iy is within the window.
+	 */
+	boolean contains(int ix, int iy) {
+		return ix >= left && ix < right && iy >= top && iy < bottom;
+	}
+
+	/**
+	 * Returns true if the w x h MCUs starting at ix, iy are within the
+	 * window.
+	 */
+	boolean contains(int ix, int iy, int w, int h) {
+		return contains(ix, iy) && ix + w <= right && iy + h <= bottom;
+	}
+
+	void addBlock(int[] values, int[] indices, int len) throws IOException {
+		if (contains(curMCU % widthMCU, curMCU / widthMCU))
+			store.addBlock(values, indices, len);
+		if (++curBlock == blocksPerMCU) {
+			curBlock = 0;
+			curMCU++;
+		}
+	}
+
+	/**
+	 * Skips the blocks of the next MCU which must be outside the window.
+	 */
+	void skipMCU() {
+		curMCU++;
+	}
+
+	boolean isComplete() {
+		return store.isComplete();
+	}
+
+	protected void putRow(int iy, int[] coefs, int len, int[] blockEnds) {
+		// Blocks are passed on to store in addBlock
+		throw new IllegalStateException();
+	}
+
+	boolean hasRow(int iy) {
+		return iy >= top && iy < bottom && store.hasRow(iy - top);
+	}
+
+	void freeRow(int iy) {
+		if (iy >= top && iy < bottom)
+			store.freeRow(iy - top);
+	}
+
+	int getBlock(int ix, int iy, int block, int[][] dct) {
+		if (!contains(ix, iy))
+			throw new IllegalArgumentException("MCU " + ix + ", " + iy
+					+ " is outside the region read");
+		return store.getBlock(ix - left, iy - top, block, dct);
+	}
+
+	void close() {
+		store.close();
+	}
+}
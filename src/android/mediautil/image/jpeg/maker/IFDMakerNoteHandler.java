@@ -57,8 +57,7 @@ public class IFDMakerNoteHandler implements MakerNoteHandler {
 
 	private int getSizeInBytes(IFD ifd) {
 		int nbEntries = 0;
-		if (ifd.getEntries() != null)
-			nbEntries += ifd.getEntries().size();
+		nbEntries += ifd.getEntryCount();
 		if (ifd.getIFDs() != null)
 			nbEntries += ifd.getIFDs().length;
 		return 2 + nbEntries * Exif.DIR_ENTRY_SIZE;